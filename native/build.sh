@@ -0,0 +1,35 @@
+#!/bin/sh
+# Builds the optional native batch backend into native/build:
+#
+#   librefractkernel.so  the C kernel, for any x86-64 Linux (AVX2 is used where present)
+#   classes/             NativeBatchBackend, which binds the kernel with the foreign
+#                        function API of JDK 22+, or of JDK 21 as a preview feature
+#
+# The rest of Refract must be compiled first, e.g. to bin by Eclipse, or pass the
+# directory or jar as the first argument. Then run with something like:
+#
+#   java --enable-native-access=ALL-UNNAMED -Djava.library.path=native/build \
+#       -cp bin:native/build/classes com.ijuru.refract.bench.BatchBenchmark
+#
+# adding --enable-preview on JDK 21. Without the backend, Refract uses the Java kernels.
+
+set -e
+cd "$(dirname "$0")"
+CLASSES=${1:-../bin}
+CC=${CC:-gcc}
+JAVAC=${JAVAC:-javac}
+mkdir -p build/classes
+
+# Arithmetic mustn't be fused or reordered, so that results are identical to the Java kernels
+$CC -O3 -ffp-contract=off -fno-fast-math -fPIC -shared -o build/librefractkernel.so refractkernel.c
+
+RELEASE=$($JAVAC -version 2>&1 | sed 's/^javac \([0-9]*\).*/\1/')
+if [ "$RELEASE" -ge 22 ]; then
+	FLAGS=""
+elif [ "$RELEASE" -eq 21 ]; then
+	FLAGS="--release 21 --enable-preview"
+else
+	echo "The foreign function API needs JDK 21 or later, found $RELEASE" >&2
+	exit 1
+fi
+$JAVAC $FLAGS -nowarn -cp "$CLASSES" -d build/classes java/com/ijuru/refract/kernel/NativeBatchBackend.java
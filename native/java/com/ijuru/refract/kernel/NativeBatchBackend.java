@@ -0,0 +1,155 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_DOUBLE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Batch backend which hands whole tiles of z = z^2 + c to the C kernel in refractkernel.c,
+ * through the foreign function API. Tiles are kept in off-heap memory which the kernel
+ * reads and writes in place, so nothing is copied on the way in or out of a call. This is
+ * built separately from the rest of Refract by native/build.sh, and is loaded by
+ * BatchBackend when it is available. The library is looked for on the java.library.path,
+ * unless the refract.native.library system property gives its path.
+ */
+public class NativeBatchBackend extends BatchBackend
+{
+	public static final String LIBRARY_PROPERTY = "refract.native.library";
+	private static final String LIBRARY_NAME = "refractkernel";
+	
+	private final MethodHandle iterateZ2;	// Calls refract_iterate_z2
+	
+	/**
+	 * Constructor
+	 * @throws IllegalStateException if the library can't be found
+	 */
+	public NativeBatchBackend()
+	{
+		SymbolLookup library = SymbolLookup.libraryLookup(findLibrary(), Arena.global());
+		MemorySegment symbol = library.find("refract_iterate_z2").orElse(null);
+		if (symbol == null)
+			throw new IllegalStateException("Library has no refract_iterate_z2");
+		
+		iterateZ2 = Linker.nativeLinker().downcallHandle(symbol, FunctionDescriptor.ofVoid(
+				JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_DOUBLE, JAVA_DOUBLE, JAVA_DOUBLE,
+				JAVA_INT, JAVA_DOUBLE, JAVA_DOUBLE, JAVA_DOUBLE, JAVA_INT, JAVA_INT,
+				JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+	}
+	
+	/**
+	 * Finds the library file
+	 */
+	private static Path findLibrary()
+	{
+		String path = System.getProperty(LIBRARY_PROPERTY);
+		if (path != null)
+			return Paths.get(path);
+		
+		String file = System.mapLibraryName(LIBRARY_NAME);
+		for (String dir : System.getProperty("java.library.path", "").split(File.pathSeparator)) {
+			Path candidate = Paths.get(dir, file);
+			if (Files.isReadable(candidate))
+				return candidate;
+		}
+		throw new IllegalStateException(file + " isn't on the java.library.path");
+	}
+	
+	public String getName()
+	{
+		return "native";
+	}
+	
+	public boolean supports(Kernel kernel, KernelPass pass)
+	{
+		return kernel.getId().equals(Kernels.Z2.getId()) && !pass.isDistance() && pass.getStatistic() == OrbitStatistic.NONE;
+	}
+	
+	public BatchTile createTile(int width, int height)
+	{
+		return new NativeTile(width, height);
+	}
+	
+	public void iterate(Kernel kernel, KernelPass pass, BatchTile tile, boolean resume, KernelCounters counters)
+	{
+		if (!supports(kernel, pass))
+			throw new IllegalArgumentException("Native backend can't iterate " + kernel.getId());
+		checkTile(pass, tile);
+		
+		NativeTile nativeTile = (NativeTile)tile;
+		try {
+			iterateZ2.invokeExact(pass.getWidth(), pass.getHeight(), pass.getCenterX(), pass.getCenterY(), pass.getZoom(), pass.getRe(), pass.getIm(),
+					pass.isJulia() ? 1 : 0, pass.getJuliaRe(), pass.getJuliaIm(), pass.getBailout(), pass.getMaxIters(), pass.getPrevMaxIters(),
+					resume ? 1 : 0, nativeTile.zx, nativeTile.zy, nativeTile.iters, nativeTile.counters);
+		}
+		catch (RuntimeException ex) {
+			throw ex;
+		}
+		catch (Throwable ex) {
+			throw new IllegalStateException("Native kernel failed", ex);
+		}
+		
+		counters.add((int)nativeTile.counters.getAtIndex(JAVA_LONG, 0), nativeTile.counters.getAtIndex(JAVA_LONG, 1));
+	}
+	
+	/**
+	 * Tile of the native backend, whose buffers are off the heap
+	 */
+	private static class NativeTile extends BatchTile
+	{
+		private final Arena arena = Arena.ofShared();
+		private final MemorySegment zx, zy;		// Real(Z) and Imag(Z) values
+		private final MemorySegment iters;		// Iteration values
+		private final MemorySegment counters;	// Escaped pixels and iterations of the last call
+		
+		public NativeTile(int width, int height)
+		{
+			super(width, height);
+			long pixels = (long)width * height;
+			zx = arena.allocate(pixels * JAVA_DOUBLE.byteSize(), JAVA_DOUBLE.byteAlignment());
+			zy = arena.allocate(pixels * JAVA_DOUBLE.byteSize(), JAVA_DOUBLE.byteAlignment());
+			iters = arena.allocate(pixels * JAVA_INT.byteSize(), JAVA_INT.byteAlignment());
+			counters = arena.allocate(2 * JAVA_LONG.byteSize(), JAVA_LONG.byteAlignment());
+		}
+		
+		public void copyIters(int[] dest, int offset)
+		{
+			MemorySegment.copy(iters, JAVA_INT, 0, dest, offset, getWidth() * getHeight());
+		}
+		
+		public void release()
+		{
+			arena.close();
+		}
+	}
+}
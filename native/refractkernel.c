@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Native batch kernel for z = z^2 + c, called by NativeBatchBackend through the foreign
+ * function API. Pixels are iterated in blocks of lanes which step together, so that the
+ * compiler can vectorize across pixels. Each lane only takes a step while it hasn't
+ * escaped, which gives exactly the same z and iteration values as the Java kernel, as
+ * long as the arithmetic is done in the same order and isn't fused (-ffp-contract=off).
+ */
+
+#include <stdint.h>
+
+#define LANES 8	/* Pixels iterated together */
+
+/*
+ * Iterates every pixel of a pass, in the same way as Z2Kernel.iterate
+ * centerX and centerY are the pixel coords of the center of the image, as the pass may be a tile of it
+ * counters receives the number of pixels which escaped and the iterations executed
+ */
+__attribute__((target_clones("avx2", "default")))
+void refract_iterate_z2(int32_t width, int32_t height, int32_t centerX, int32_t centerY, double zoom, double re, double im,
+		int32_t julia, double jr, double ji, double bailout, int32_t maxIters, int32_t prevMaxIters,
+		int32_t resume, double *cacheX, double *cacheY, int32_t *iters, int64_t *counters)
+{
+	int32_t halfCX = centerX;
+	int32_t halfCY = centerY;
+	double bailout2 = bailout * bailout;
+	int64_t nescaped = 0;
+	int64_t niterations = 0;
+	
+	for (int32_t y = 0; y < height; ++y) {
+		double ci0 = (double)(y - halfCY) / zoom - im;
+		
+		for (int32_t x0 = 0; x0 < width; x0 += LANES) {
+			double zr[LANES], zi[LANES], cr[LANES], ci[LANES];
+			int64_t n[LANES], start[LANES];
+			int32_t count = (width - x0 < LANES) ? width - x0 : LANES;
+			int64_t base = (int64_t)y * width + x0;
+			
+			for (int32_t l = 0; l < LANES; ++l) {
+				// Lanes past the end of the row are parked at the max so they never step
+				int32_t i = (l < count) ? l : 0;
+				double pr = (double)(x0 + i - halfCX) / zoom + re;
+				if (resume) {
+					zr[l] = cacheX[base + i];
+					zi[l] = cacheY[base + i];
+					n[l] = iters[base + i];
+				}
+				else {
+					zr[l] = pr;
+					zi[l] = ci0;
+					n[l] = 0;
+				}
+				if (l >= count)
+					n[l] = maxIters;
+				start[l] = n[l];
+				cr[l] = julia ? jr : pr;
+				ci[l] = julia ? ji : ci0;
+			}
+			
+			// Step every lane which is still active until none are
+			for (;;) {
+				int64_t active = 0;
+				for (int32_t l = 0; l < LANES; ++l) {
+					double zr2 = zr[l] * zr[l];
+					double zi2 = zi[l] * zi[l];
+					int64_t step = (zr2 + zi2 < bailout2) & (n[l] < maxIters);
+					double nzi = 2 * zr[l] * zi[l] + ci[l];
+					double nzr = zr2 - zi2 + cr[l];
+					zr[l] = step ? nzr : zr[l];
+					zi[l] = step ? nzi : zi[l];
+					n[l] += step;
+					active |= step;
+				}
+				if (!active)
+					break;
+			}
+			
+			for (int32_t l = 0; l < count; ++l) {
+				cacheX[base + l] = zr[l];
+				cacheY[base + l] = zi[l];
+				iters[base + l] = (int32_t)n[l];
+				if (n[l] < maxIters && start[l] >= prevMaxIters)
+					++nescaped;
+				niterations += n[l] - start[l];
+			}
+		}
+	}
+	
+	counters[0] = nescaped;
+	counters[1] = niterations;
+}
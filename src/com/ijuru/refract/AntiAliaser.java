@@ -0,0 +1,156 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Produces anti-aliased images from a renderer's iteration values. Only pixels on an
+ * edge, i.e. those with a neighbour of a different iteration value, are supersampled,
+ * so the cost is a fraction of supersampling the whole image.
+ */
+public class AntiAliaser
+{
+	private static final int ROWS_PER_TASK = 16;	// Rows given to each parallel task
+	
+	private final int grid; // Samples per edge pixel are grid x grid
+	
+	/**
+	 * Constructor
+	 * @param grid the size of the grid of jittered samples taken from each edge pixel
+	 */
+	public AntiAliaser(int grid)
+	{
+		if (grid < 1)
+			throw new IllegalArgumentException();
+		
+		this.grid = grid;
+	}
+	
+	/**
+	 * Renders an anti-aliased image from the current iteration values of a renderer, which
+	 * shouldn't be updated meanwhile
+	 * @param renderer the renderer
+	 * @param colorizer the colorizer
+	 * @return the RGB values
+	 */
+	public int[] render(final Renderer renderer, final Colorizer colorizer)
+	{
+		final int width = renderer.getWidth();
+		final int height = renderer.getHeight();
+		final int[] rgb = new int[width * height];
+		
+		int nthreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int y = 0; y < height; y += ROWS_PER_TASK) {
+				final int y0 = y;
+				final int y1 = Math.min(height, y + ROWS_PER_TASK);
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call()
+					{
+						renderRows(renderer, colorizer, rgb, y0, y1);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> result : results)
+				result.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			executor.shutdown();
+		}
+		return rgb;
+	}
+	
+	/**
+	 * Renders a band of rows
+	 */
+	private void renderRows(Renderer renderer, Colorizer colorizer, int[] rgb, int y0, int y1)
+	{
+		int width = renderer.getWidth();
+		int height = renderer.getHeight();
+		int[] iters = renderer.getIterBuffer();
+		int[] rowMaxIters = renderer.getRowMaxIters();
+		
+		// Seed by position so that the same image always gets the same samples
+		Random random = new Random(y0);
+		int nsamples = grid * grid;
+		
+		for (int y = y0; y < y1; ++y) {
+			int maxIters = rowMaxIters[y];
+			for (int x = 0, index = y * width; x < width; ++x, ++index) {
+				int n = iters[index];
+				int color = colorizer.getColor(n, maxIters);
+				
+				if (!isEdge(iters, width, height, x, y, n)) {
+					rgb[index] = color;
+					continue;
+				}
+				
+				// Take stratified samples with a random offset within each cell of the grid,
+				// and average them with the pixel's own value
+				int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+				for (int sy = 0; sy < grid; ++sy) {
+					for (int sx = 0; sx < grid; ++sx) {
+						double px = x + (sx + random.nextDouble()) / grid - 0.5;
+						double py = y + (sy + random.nextDouble()) / grid - 0.5;
+						int sample = colorizer.getColor(renderer.sample(px, py, maxIters), maxIters);
+						r += (sample >> 16) & 0xFF;
+						g += (sample >> 8) & 0xFF;
+						b += sample & 0xFF;
+					}
+				}
+				r /= nsamples + 1;
+				g /= nsamples + 1;
+				b /= nsamples + 1;
+				rgb[index] = (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+	
+	/**
+	 * Gets whether any of the 8 neighbours of a pixel have a different iteration value
+	 */
+	private static boolean isEdge(int[] iters, int width, int height, int x, int y, int n)
+	{
+		for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ++ny) {
+			for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); ++nx) {
+				if (iters[ny * width + nx] != n)
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ijuru.refract.kernel.Kernel;
+
+/**
+ * Renders the Buddhabrot, i.e. the density of the orbits of random points c which
+ * escape. Every core runs a worker which traces orbits into its own density buffer,
+ * and workers periodically merge their buffers into the shared density so they never
+ * contend over individual pixels. Points are importance sampled: a coarse grid of the
+ * sampling region is probed first, and cells near the boundary of the set, where
+ * long escaping orbits come from, are sampled far more often than the rest. Each orbit
+ * is weighted by how much more likely its cell was to be sampled so that the density
+ * converges to the same image as uniform sampling would.
+ */
+public class BuddhabrotRenderer
+{
+	private static final double RADIUS = 2;			// Sampling region is a square of this half width
+	private static final int GRID_SIZE = 256;		// Cells per side of the importance sampling grid
+	private static final int GRID_PROBES = 4;		// Probes per side of each cell
+	private static final double MIN_WEIGHT = 0.02;	// Relative weight of cells away from the boundary
+	private static final int MERGE_MILLIS = 250;	// How often workers merge their densities
+	private static final int PUBLISH_MILLIS = 500;	// How often listeners are notified
+	private static final int SAMPLES_PER_CHECK = 1024; // Samples between checks of the time
+	
+	private final Kernel kernel;
+	private final int width, height; // Dimensions of the density
+	private final double zoom, re, im; // Mapping from complex space to density pixels
+	private final int minIters, maxIters; // Only orbits with lengths in this range are counted
+	private final int threads;
+	
+	private final double[] density; // Merged density, guarded by itself
+	private long samples = 0; // Number of points sampled so far, guarded by density
+	private volatile boolean changed = false; // True if density has changed since listeners were last notified
+	
+	private volatile double[] cellCumWeights = null; // Cumulative weights of the grid cells
+	private volatile double[] cellScales = null; // Weight of each orbit from each cell
+	
+	private ExecutorService workers = null;
+	private ScheduledExecutorService publisher = null;
+	private volatile boolean running = false;
+	private AtomicBoolean active = null; // Cleared to stop the workers of the current start
+	private final List<BuddhabrotListener> listeners = new CopyOnWriteArrayList<BuddhabrotListener>();
+	
+	/**
+	 * Constructor. The density is mapped to complex space in the same way as the iteration
+	 * values of a renderer with the same dimensions and coords.
+	 * @param kernel the kernel used to iterate points
+	 * @param width the width of the density
+	 * @param height the height of the density
+	 * @param zoom the zoom factor for pixel space -> complex space mapping
+	 * @param re the real offset
+	 * @param im the imaginary offset
+	 * @param minIters the min length of orbits which are counted
+	 * @param maxIters the max number of iterations, beyond which points are in the set
+	 */
+	public BuddhabrotRenderer(Kernel kernel, int width, int height, double zoom, double re, double im, int minIters, int maxIters)
+	{
+		this.kernel = kernel;
+		this.width = width;
+		this.height = height;
+		this.zoom = zoom;
+		this.re = re;
+		this.im = im;
+		this.minIters = minIters;
+		this.maxIters = maxIters;
+		this.threads = Runtime.getRuntime().availableProcessors();
+		this.density = new double[width * height];
+	}
+	
+	/**
+	 * Starts or resumes rendering. Density accumulates across restarts.
+	 */
+	public synchronized void start()
+	{
+		if (running)
+			return;
+		
+		running = true;
+		
+		// Each start's workers have their own flag, so that workers of an earlier start which
+		// haven't noticed they were stopped can't be revived by this one
+		final AtomicBoolean active = new AtomicBoolean(true);
+		this.active = active;
+		
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Refract buddhabrot");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		};
+		
+		workers = Executors.newFixedThreadPool(threads, factory);
+		
+		// The first start probes the sampling grid, with the rows shared between the workers
+		final double[] weights = (cellCumWeights == null) ? new double[GRID_SIZE * GRID_SIZE] : null;
+		final CyclicBarrier barrier = (weights != null) ? new CyclicBarrier(threads, new Runnable() {
+			public void run()
+			{
+				// Workers stop probing when stopped, so the weights may be incomplete
+				if (active.get())
+					createSamplingGrid(weights);
+			}
+		}) : null;
+		
+		for (int t = 0; t < threads; ++t) {
+			final int thread = t;
+			final long seed = System.nanoTime() + t;
+			workers.execute(new Runnable() {
+				public void run()
+				{
+					if (barrier != null) {
+						probeRows(weights, thread, threads, active);
+						try {
+							barrier.await();
+						}
+						catch (InterruptedException ex) {
+							return;
+						}
+						catch (BrokenBarrierException ex) {
+							return;
+						}
+					}
+					sample(new Random(seed), active);
+				}
+			});
+		}
+		
+		publisher = Executors.newSingleThreadScheduledExecutor(factory);
+		publisher.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				if (changed) {
+					changed = false;
+					for (BuddhabrotListener listener : listeners)
+						listener.densityUpdated(BuddhabrotRenderer.this);
+				}
+			}
+		}, PUBLISH_MILLIS, PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops rendering. Workers merge what they have accumulated before they stop, and
+	 * listeners are notified once they have or after a while if some are still tracing.
+	 */
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		
+		running = false;
+		active.set(false);
+		workers.shutdown();
+		publisher.shutdown();
+		try {
+			workers.awaitTermination(MERGE_MILLIS * 4, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		
+		// Let listeners see the final merges
+		for (BuddhabrotListener listener : listeners)
+			listener.densityUpdated(this);
+	}
+	
+	/**
+	 * Gets whether rendering is running
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+	
+	/**
+	 * Probes every nth row of cells of the importance sampling grid. Cells which contain
+	 * both escaping and non-escaping probes, or escaping probes with orbits long enough
+	 * to be counted, are on the boundary and get full weight.
+	 */
+	private void probeRows(double[] weights, int first, int step, AtomicBoolean active)
+	{
+		double cellSize = 2 * RADIUS / GRID_SIZE;
+		
+		for (int cy = first; cy < GRID_SIZE && active.get(); cy += step) {
+			for (int cx = 0; cx < GRID_SIZE; ++cx) {
+				boolean inside = false, outside = false, counted = false;
+				for (int py = 0; py <= GRID_PROBES; ++py) {
+					for (int px = 0; px <= GRID_PROBES; ++px) {
+						double cr = -RADIUS + (cx + (double)px / GRID_PROBES) * cellSize;
+						double ci = -RADIUS + (cy + (double)py / GRID_PROBES) * cellSize;
+						int n = kernel.iteratePoint(cr, ci, cr, ci, maxIters, Kernel.DEF_BAILOUT);
+						if (n == maxIters)
+							inside = true;
+						else {
+							outside = true;
+							if (n >= minIters)
+								counted = true;
+						}
+					}
+				}
+				weights[cy * GRID_SIZE + cx] = ((inside && outside) || counted) ? 1 : MIN_WEIGHT;
+			}
+		}
+	}
+	
+	/**
+	 * Creates the importance sampling distribution from the probed cell weights
+	 */
+	private void createSamplingGrid(double[] weights)
+	{
+		int ncells = weights.length;
+		double total = 0;
+		for (int c = 0; c < ncells; ++c)
+			total += weights[c];
+		
+		// Each orbit is scaled by the ratio of its cell's probability under uniform sampling
+		// to its probability under importance sampling
+		double[] cumWeights = new double[ncells];
+		double[] scales = new double[ncells];
+		double cum = 0;
+		for (int c = 0; c < ncells; ++c) {
+			cum += weights[c];
+			cumWeights[c] = cum / total;
+			scales[c] = total / (ncells * weights[c]);
+		}
+		cellScales = scales;
+		cellCumWeights = cumWeights;
+	}
+	
+	/**
+	 * Samples points until stopped. Runs in each worker thread.
+	 */
+	private void sample(Random random, AtomicBoolean active)
+	{
+		float[] local = new float[width * height];
+		double[] orbit = new double[2 * maxIters];
+		double cellSize = 2 * RADIUS / GRID_SIZE;
+		double[] cumWeights = cellCumWeights;
+		double[] scales = cellScales;
+		int halfCX = width / 2;
+		int halfCY = height / 2;
+		long localSamples = 0;
+		long lastMerge = System.currentTimeMillis();
+		
+		while (active.get()) {
+			// Orbits can be long, so the flag is checked between every one
+			int s;
+			for (s = 0; s < SAMPLES_PER_CHECK && active.get(); ++s) {
+				// Pick a cell by its weight then a point uniformly within it
+				int cell = findCell(cumWeights, random.nextDouble());
+				double cr = -RADIUS + (cell % GRID_SIZE + random.nextDouble()) * cellSize;
+				double ci = -RADIUS + (cell / GRID_SIZE + random.nextDouble()) * cellSize;
+				
+				int length = kernel.traceOrbit(cr, ci, cr, ci, maxIters, Kernel.DEF_BAILOUT, orbit);
+				if (length < minIters)
+					continue;
+				
+				float scale = (float)scales[cell];
+				for (int i = 0; i < length; ++i) {
+					int x = (int)Math.floor((orbit[2 * i] - re) * zoom) + halfCX;
+					int y = (int)Math.floor((orbit[2 * i + 1] + im) * zoom) + halfCY;
+					if (x >= 0 && x < width && y >= 0 && y < height)
+						local[y * width + x] += scale;
+				}
+			}
+			localSamples += s;
+			
+			long now = System.currentTimeMillis();
+			if (now - lastMerge >= MERGE_MILLIS) {
+				merge(local, localSamples);
+				localSamples = 0;
+				lastMerge = now;
+			}
+		}
+		merge(local, localSamples);
+	}
+	
+	/**
+	 * Finds the cell whose cumulative weight range contains a value
+	 */
+	private static int findCell(double[] cumWeights, double value)
+	{
+		int low = 0, high = cumWeights.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cumWeights[mid] <= value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * Adds a worker's density to the shared density and clears it
+	 */
+	private void merge(float[] local, long localSamples)
+	{
+		synchronized (density) {
+			for (int i = 0; i < local.length; ++i) {
+				if (local[i] != 0) {
+					density[i] += local[i];
+					local[i] = 0;
+				}
+			}
+			samples += localSamples;
+		}
+		changed = true;
+	}
+	
+	/**
+	 * Gets the number of points sampled so far
+	 */
+	public long getSampleCount()
+	{
+		synchronized (density) {
+			return samples;
+		}
+	}
+	
+	/**
+	 * Copies the current density
+	 * @return the density, where each value is the expected number of orbit points in that
+	 *         pixel per point sampled from the whole sampling region, times the sample count
+	 */
+	public double[] getDensity()
+	{
+		synchronized (density) {
+			return density.clone();
+		}
+	}
+	
+	/**
+	 * Maps the current density to RGB values. Densities are scaled by their square root
+	 * so that faint orbits are still visible next to the brightest areas.
+	 * @param colors the palette colors, from lowest to highest density
+	 * @param rgb the buffer to write colors to
+	 */
+	public void colorize(int[] colors, int[] rgb)
+	{
+		double[] values = getDensity();
+		double max = 0;
+		for (double value : values)
+			max = Math.max(max, value);
+		
+		int ncolors = colors.length;
+		double scale = (max > 0) ? (ncolors - 1) / Math.sqrt(max) : 0;
+		for (int i = 0; i < values.length; ++i)
+			rgb[i] = colors[(int)(Math.sqrt(values[i]) * scale)];
+	}
+	
+	/**
+	 * Adds a listener which is notified as the density changes
+	 */
+	public void addListener(BuddhabrotListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Gets the width of the density
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	/**
+	 * Gets the height of the density
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+}
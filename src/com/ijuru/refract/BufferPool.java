@@ -0,0 +1,133 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+/**
+ * Allocates buffers which are resized often, e.g. whenever a panel is resized, by
+ * reusing the capacity of the current buffer whenever the new size fits in it. Buffers
+ * grow with some headroom so that a run of small increases, such as dragging a split
+ * pane divider, doesn't allocate each time, and only shrink once the new size would
+ * waste most of the capacity. Buffers may therefore be longer than asked for, and are
+ * not cleared when reused.
+ */
+public class BufferPool
+{
+	private static final double GROWTH = 1.25;	// Capacity allocated as a multiple of the size asked for
+	private static final int SHRINK_RATIO = 4;	// Buffers are only shrunk if this many times the size asked for
+	
+	private long allocations = 0; // Number of buffers allocated
+	private long allocatedBytes = 0; // Bytes of buffers allocated
+	
+	/**
+	 * Gets an int buffer of at least the given size
+	 * @param current the current buffer, or null if none
+	 * @param size the size needed
+	 * @return the current buffer if it fits, otherwise a new one
+	 */
+	public int[] ints(int[] current, int size)
+	{
+		if (current != null && fits(current.length, size))
+			return current;
+		
+		int capacity = capacity(size);
+		allocated(4L * capacity);
+		return new int[capacity];
+	}
+	
+	/**
+	 * Gets a double buffer of at least the given size
+	 * @param current the current buffer, or null if none
+	 * @param size the size needed
+	 * @return the current buffer if it fits, otherwise a new one
+	 */
+	public double[] doubles(double[] current, int size)
+	{
+		if (current != null && fits(current.length, size))
+			return current;
+		
+		int capacity = capacity(size);
+		allocated(8L * capacity);
+		return new double[capacity];
+	}
+	
+	/**
+	 * Gets a float buffer of at least the given size
+	 * @param current the current buffer, or null if none
+	 * @param size the size needed
+	 * @return the current buffer if it fits, otherwise a new one
+	 */
+	public float[] floats(float[] current, int size)
+	{
+		if (current != null && fits(current.length, size))
+			return current;
+		
+		int capacity = capacity(size);
+		allocated(4L * capacity);
+		return new float[capacity];
+	}
+	
+	/**
+	 * Gets a boolean buffer of at least the given size
+	 * @param current the current buffer, or null if none
+	 * @param size the size needed
+	 * @return the current buffer if it fits, otherwise a new one
+	 */
+	public boolean[] booleans(boolean[] current, int size)
+	{
+		if (current != null && fits(current.length, size))
+			return current;
+		
+		int capacity = capacity(size);
+		allocated(capacity);
+		return new boolean[capacity];
+	}
+	
+	private static boolean fits(int length, int size)
+	{
+		return length >= size && length / SHRINK_RATIO <= size;
+	}
+	
+	private static int capacity(int size)
+	{
+		return (int)Math.min(Integer.MAX_VALUE - 8, (long)Math.ceil(size * GROWTH));
+	}
+	
+	private synchronized void allocated(long bytes)
+	{
+		++allocations;
+		allocatedBytes += bytes;
+	}
+	
+	/**
+	 * Gets the number of buffers allocated
+	 */
+	public synchronized long getAllocations()
+	{
+		return allocations;
+	}
+	
+	/**
+	 * Gets the number of bytes of buffers allocated
+	 */
+	public synchronized long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodically writes checkpoints of a renderer to a file. The renderer calls this
+ * after each update, and only copies its buffers when a checkpoint is due. Compression
+ * and writing happen on a separate thread so rendering never waits for the disk, and
+ * a checkpoint is skipped if the previous one is still being written. Once a checkpoint
+ * fails no more are taken, and the error is left for the owner to report.
+ */
+public class CheckpointWriter
+{
+	private final File file;
+	private final long intervalNanos;
+	private final ExecutorService executor;
+	private final AtomicBoolean writing = new AtomicBoolean(false); // True while a checkpoint is being written
+	private long lastCheckpoint; // When the last checkpoint was taken, in nanos
+	private volatile IOException lastError = null;
+	private volatile int written = 0; // Number of checkpoints written
+	
+	/**
+	 * Constructor. The first checkpoint is taken after the first update.
+	 * @param file the file to write checkpoints to
+	 * @param intervalMillis the time between checkpoints in millis
+	 */
+	public CheckpointWriter(File file, int intervalMillis)
+	{
+		this.file = file;
+		this.intervalNanos = intervalMillis * 1000000L;
+		this.lastCheckpoint = System.nanoTime() - intervalNanos;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Refract checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Called on the render thread after each update of the renderer
+	 * @param renderer the renderer
+	 */
+	public void renderUpdated(Renderer renderer)
+	{
+		long now = System.nanoTime();
+		if (now - lastCheckpoint < intervalNanos || lastError != null || executor.isShutdown() || !writing.compareAndSet(false, true))
+			return;
+		
+		final RenderCheckpoint checkpoint;
+		try {
+			checkpoint = renderer.createCheckpoint();
+		}
+		catch (IllegalStateException ex) {
+			writing.set(false); // Nothing rendered yet
+			return;
+		}
+		lastCheckpoint = now;
+		
+		try {
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					try {
+						checkpoint.write(file);
+						++written;
+					}
+					catch (IOException ex) {
+						lastError = ex;
+					}
+					finally {
+						writing.set(false);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			writing.set(false); // Shut down since we checked
+		}
+	}
+	
+	/**
+	 * Stops writing checkpoints once any in progress has been written
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+	
+	/**
+	 * Gets the file which checkpoints are written to
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * Gets the number of checkpoints written
+	 */
+	public int getWrittenCount()
+	{
+		return written;
+	}
+	
+	/**
+	 * Gets the error which stopped checkpoints being written, or null if none has failed
+	 */
+	public IOException getLastError()
+	{
+		return lastError;
+	}
+}
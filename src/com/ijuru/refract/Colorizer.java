@@ -0,0 +1,145 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+/**
+ * Maps iteration values, distances or orbit statistics to RGB values using an interpolated palette
+ */
+public final class Colorizer
+{
+	private static final double DISTANCE_SCALE = 24; // Palette colors per e-fold increase of distance
+	private static final double TRAP_SCALE = 48; // Palette colors per e-fold decrease of trap distance
+	private static final double MAX_TRAP_INDEX = 1 << 20; // Largest palette index given to trap distances
+	
+	private final int[] colors; // Interpolated palette colors
+	private final int offset; // Positive offset for iters -> colors mapping
+	private final int setColor; // Color of pixels within the set
+	
+	/**
+	 * Constructor
+	 * @param colors the interpolated palette colors
+	 * @param palOffset the offset for iters -> colors mapping, which may be negative
+	 * @param setColor the color of pixels within the set
+	 */
+	public Colorizer(int[] colors, int palOffset, int setColor)
+	{
+		this.colors = colors;
+		this.offset = palOffset % colors.length + colors.length;
+		this.setColor = setColor;
+	}
+	
+	/**
+	 * Gets the color of a single iteration value
+	 */
+	public int getColor(int iters, int maxIters)
+	{
+		return (iters == maxIters) ? setColor : colors[(iters + offset) % colors.length];
+	}
+	
+	/**
+	 * Colors a run of iteration values
+	 * @param iters the iteration values
+	 * @param rgb the buffer to write colors to
+	 * @param index the index of the first value
+	 * @param count the number of values
+	 * @param maxIters the max iteration value that the values were calculated to
+	 */
+	public void colorize(int[] iters, int[] rgb, int index, int count, int maxIters)
+	{
+		int npalette = colors.length;
+		int end = index + count;
+		for (int i = index; i < end; ++i) {
+			int n = iters[i];
+			rgb[i] = (n == maxIters) ? setColor : colors[(n + offset) % npalette];
+		}
+	}
+	
+	/**
+	 * Colors a run of pixels by their estimated distance to the set. Pixels within a
+	 * pixel of the set are given the set color, which makes thin filaments visible
+	 * without needing a high max iteration value.
+	 * @param iters the iteration values
+	 * @param distance the estimated distances in complex space
+	 * @param rgb the buffer to write colors to
+	 * @param index the index of the first value
+	 * @param count the number of values
+	 * @param maxIters the max iteration value that the values were calculated to
+	 * @param zoom the zoom factor used to convert distances to pixels
+	 */
+	public void colorizeDistance(int[] iters, float[] distance, int[] rgb, int index, int count, int maxIters, double zoom)
+	{
+		int npalette = colors.length;
+		int end = index + count;
+		for (int i = index; i < end; ++i) {
+			double pixels = distance[i] * zoom;
+			if (iters[i] == maxIters || !(pixels >= 1))
+				rgb[i] = setColor;
+			else
+				rgb[i] = colors[(int)((Math.log(pixels) * DISTANCE_SCALE + offset) % npalette)];
+		}
+	}
+	
+	/**
+	 * Colors a run of pixels by the average of the stripe function over their orbits,
+	 * which spreads over the whole palette as it ranges from 0 to 1
+	 * @param iters the iteration values
+	 * @param orbit the stripe averages
+	 * @param rgb the buffer to write colors to
+	 * @param index the index of the first value
+	 * @param count the number of values
+	 * @param maxIters the max iteration value that the values were calculated to
+	 */
+	public void colorizeStripes(int[] iters, double[] orbit, int[] rgb, int index, int count, int maxIters)
+	{
+		int npalette = colors.length;
+		int end = index + count;
+		for (int i = index; i < end; ++i) {
+			double stripes = orbit[i];
+			if (iters[i] == maxIters || !(stripes >= 0 && stripes <= 1))
+				rgb[i] = setColor;
+			else
+				rgb[i] = colors[((int)(stripes * (npalette - 1)) + offset) % npalette];
+		}
+	}
+	
+	/**
+	 * Colors a run of pixels by how close their orbits came to the trap
+	 * @param iters the iteration values
+	 * @param orbit the smallest squared distances of the orbits from the trap
+	 * @param rgb the buffer to write colors to
+	 * @param index the index of the first value
+	 * @param count the number of values
+	 * @param maxIters the max iteration value that the values were calculated to
+	 */
+	public void colorizeTrap(int[] iters, double[] orbit, int[] rgb, int index, int count, int maxIters)
+	{
+		int npalette = colors.length;
+		int end = index + count;
+		for (int i = index; i < end; ++i) {
+			// The palette wraps around both ways, as orbits can stay further than 1 from the trap.
+			// Orbits which pass right through it are clamped.
+			double closest = -0.5 * Math.log(orbit[i]) * TRAP_SCALE;
+			if (iters[i] == maxIters || Double.isNaN(closest))
+				rgb[i] = setColor;
+			else
+				rgb[i] = colors[(int)Math.floorMod((long)Math.min(MAX_TRAP_INDEX, closest) + offset, (long)npalette)];
+		}
+	}
+}
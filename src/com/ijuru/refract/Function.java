@@ -19,14 +19,61 @@
 
 package com.ijuru.refract;
 
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.Kernels;
+
 /**
- * Enumeration of available fractal functions
+ * Enumeration of the preset fractal functions
  */
 public enum Function {
-	MANDELBROT,
-	MANDELBROT_3,
-	MANDELBROT_4,		
-	JULIA,
-	JULIA_3,
-	JULIA_4
+	MANDELBROT(Kernels.Z2, false),
+	MANDELBROT_3(Kernels.Z3, false),
+	MANDELBROT_4(Kernels.Z4, false),
+	JULIA(Kernels.Z2, true),
+	JULIA_3(Kernels.Z3, true),
+	JULIA_4(Kernels.Z4, true),
+	BURNING_SHIP(Kernels.BURNING_SHIP, false),
+	BURNING_SHIP_JULIA(Kernels.BURNING_SHIP, true),
+	TRICORN(Kernels.TRICORN, false),
+	TRICORN_JULIA(Kernels.TRICORN, true);
+	
+	private final Kernel kernel;
+	private final boolean julia;
+	
+	private Function(Kernel kernel, boolean julia)
+	{
+		this.kernel = kernel;
+		this.julia = julia;
+	}
+	
+	/**
+	 * Gets the kernel which iterates this function
+	 */
+	public Kernel getKernel()
+	{
+		return kernel;
+	}
+	
+	/**
+	 * Gets whether this function generates a Julia set
+	 */
+	public boolean isJulia()
+	{
+		return julia;
+	}
+	
+	/**
+	 * Gets the preset function for a kernel
+	 * @param kernel the kernel
+	 * @param julia true for a Julia set
+	 * @return the function, or null if there is no preset for the kernel
+	 */
+	public static Function forKernel(Kernel kernel, boolean julia)
+	{
+		for (Function func : values()) {
+			if (func.kernel == kernel && func.julia == julia)
+				return func;
+		}
+		return null;
+	}
 }
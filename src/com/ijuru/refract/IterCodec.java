@@ -0,0 +1,552 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses iteration buffers. Neighbouring iteration values are highly correlated,
+ * so each value is predicted from its left, upper and upper left neighbours (the
+ * median edge detector of LOCO-I) and only the residual is stored, as a zigzag varint.
+ * Runs of zero residuals, which is what flat areas and the inside of the set become,
+ * are stored as a single varint. The result can optionally be deflated too.
+ * 
+ * Tiles are coded independently so they can be written as they are rendered, and an
+ * archive of a whole buffer has an index of where each tile starts so any tile can be
+ * decoded without the others. An archive is:
+ * 
+ *   int     magic "RFIC"
+ *   short   version
+ *   short   flags (1 = tiles are deflated)
+ *   int     width, height, tile size
+ *   int     end offset of each tile, relative to the end of the index
+ *   tiles
+ */
+public final class IterCodec
+{
+	public static final int DEF_TILESIZE = 64;
+	
+	private static final int MAGIC = 0x52464943; // "RFIC"
+	private static final short VERSION = 1;
+	private static final int FLAG_DEFLATE = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int MAX_PIXELS = Integer.MAX_VALUE - 8; // Largest array most JVMs can allocate
+	
+	/**
+	 * Tile encodings
+	 */
+	private static final byte TILE_PLAIN = 0;
+	private static final byte TILE_DEFLATED = 1;
+	
+	private final int tileSize;
+	private final boolean deflate;
+	
+	/**
+	 * Constructor
+	 * @param tileSize the width and height of tiles
+	 * @param deflate true to deflate tiles, which is smaller but slower
+	 */
+	public IterCodec(int tileSize, boolean deflate)
+	{
+		this.tileSize = tileSize;
+		this.deflate = deflate;
+	}
+	
+	/**
+	 * Encodes a whole iteration buffer as an archive
+	 * @param iters the iteration values
+	 * @param width the width of the buffer
+	 * @param height the height of the buffer
+	 * @return the archive
+	 */
+	public byte[] encode(int[] iters, int width, int height)
+	{
+		int cols = (width + tileSize - 1) / tileSize;
+		int rows = (height + tileSize - 1) / tileSize;
+		int ntiles = cols * rows;
+		
+		ByteSink sink = new ByteSink(width * height + 64);
+		sink.writeInt(MAGIC);
+		sink.writeInt((VERSION << 16) | (deflate ? FLAG_DEFLATE : 0));
+		sink.writeInt(width);
+		sink.writeInt(height);
+		sink.writeInt(tileSize);
+		int indexStart = sink.size();
+		sink.skip(4 * ntiles);
+		int dataStart = sink.size();
+		
+		Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+		try {
+			ByteSink tokens = deflate ? new ByteSink(tileSize * tileSize) : null;
+			for (int row = 0, tile = 0; row < rows; ++row) {
+				for (int col = 0; col < cols; ++col, ++tile) {
+					int x = col * tileSize, y = row * tileSize;
+					writeTile(sink, tokens, deflater, iters, width, x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+					sink.putInt(indexStart + 4 * tile, sink.size() - dataStart);
+				}
+			}
+		}
+		finally {
+			if (deflater != null)
+				deflater.end();
+		}
+		return sink.toByteArray();
+	}
+	
+	/**
+	 * Encodes a single tile of an iteration buffer on its own
+	 * @param iters the iteration values
+	 * @param stride the width of the buffer
+	 * @param x the X coord of the tile
+	 * @param y the Y coord of the tile
+	 * @param w the width of the tile
+	 * @param h the height of the tile
+	 * @return the encoded tile
+	 */
+	public byte[] encodeTile(int[] iters, int stride, int x, int y, int w, int h)
+	{
+		ByteSink sink = new ByteSink(w * h / 2 + 16);
+		Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+		try {
+			writeTile(sink, deflate ? new ByteSink(w * h) : null, deflater, iters, stride, x, y, w, h);
+		}
+		finally {
+			if (deflater != null)
+				deflater.end();
+		}
+		return sink.toByteArray();
+	}
+	
+	/**
+	 * Decodes a single tile encoded by encodeTile into an iteration buffer
+	 * @param data the encoded tile
+	 * @param iters the iteration values to decode into
+	 * @param stride the width of the buffer
+	 * @param x the X coord of the tile
+	 * @param y the Y coord of the tile
+	 * @param w the width of the tile
+	 * @param h the height of the tile
+	 * @throws IOException if the data is corrupt
+	 */
+	public static void decodeTile(byte[] data, int[] iters, int stride, int x, int y, int w, int h) throws IOException
+	{
+		Inflater inflater = new Inflater();
+		try {
+			readTile(data, 0, data.length, inflater, iters, stride, x, y, w, h);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+	
+	/**
+	 * Decodes a whole archive
+	 * @param data the archive
+	 * @return the iteration values
+	 * @throws IOException if the data is corrupt
+	 */
+	public static int[] decode(byte[] data) throws IOException
+	{
+		Archive archive = new Archive(data);
+		int[] iters = new int[archive.getWidth() * archive.getHeight()];
+		for (int tile = 0; tile < archive.getTileCount(); ++tile)
+			archive.decodeTile(tile, iters);
+		return iters;
+	}
+	
+	/**
+	 * Writes a tile, as its encoding then its tokens
+	 */
+	private static void writeTile(ByteSink sink, ByteSink tokens, Deflater deflater, int[] iters, int stride, int x, int y, int w, int h)
+	{
+		if (deflater == null) {
+			sink.write(TILE_PLAIN);
+			writeTokens(sink, iters, stride, x, y, w, h);
+			return;
+		}
+		
+		tokens.reset();
+		writeTokens(tokens, iters, stride, x, y, w, h);
+		
+		deflater.reset();
+		deflater.setInput(tokens.buffer(), 0, tokens.size());
+		deflater.finish();
+		int start = sink.size();
+		sink.write(TILE_DEFLATED);
+		sink.writeVarint(tokens.size());
+		while (!deflater.finished()) {
+			sink.ensure(tokens.size() / 2 + 64);
+			sink.advance(deflater.deflate(sink.buffer(), sink.size(), sink.capacity() - sink.size()));
+		}
+		
+		// Incompressible tiles are stored plain
+		if (sink.size() - start > tokens.size() + 1) {
+			sink.truncate(start);
+			sink.write(TILE_PLAIN);
+			sink.write(tokens.buffer(), 0, tokens.size());
+		}
+	}
+	
+	/**
+	 * Writes the residual tokens of a tile. A token is a varint whose low bit is clear for
+	 * a zigzagged residual in the remaining bits, or set for a run of zero residuals.
+	 */
+	private static void writeTokens(ByteSink sink, int[] iters, int stride, int x, int y, int w, int h)
+	{
+		int run = 0;
+		for (int j = 0; j < h; ++j) {
+			int row = (y + j) * stride + x;
+			for (int i = 0; i < w; ++i) {
+				int value = iters[row + i];
+				int residual = value - predict(iters, row + i, stride, i, j);
+				if (residual == 0) {
+					++run;
+					continue;
+				}
+				if (run > 0) {
+					sink.writeVarint(((long)run << 1) | 1);
+					run = 0;
+				}
+				sink.writeVarint(((long)((residual << 1) ^ (residual >> 31)) & 0xFFFFFFFFL) << 1);
+			}
+		}
+		if (run > 0)
+			sink.writeVarint(((long)run << 1) | 1);
+	}
+	
+	/**
+	 * Predicts a value from its already decoded neighbours within the same tile
+	 * @param index the index of the value
+	 * @param i the column of the value within its tile
+	 * @param j the row of the value within its tile
+	 */
+	private static int predict(int[] iters, int index, int stride, int i, int j)
+	{
+		if (j == 0)
+			return (i == 0) ? 0 : iters[index - 1];
+		if (i == 0)
+			return iters[index - stride];
+		
+		int a = iters[index - 1], b = iters[index - stride], c = iters[index - stride - 1];
+		if (c >= Math.max(a, b))
+			return Math.min(a, b);
+		if (c <= Math.min(a, b))
+			return Math.max(a, b);
+		return a + b - c;
+	}
+	
+	/**
+	 * Reads a tile from part of a byte array
+	 */
+	private static void readTile(byte[] data, int offset, int length, Inflater inflater, int[] iters, int stride, int x, int y, int w, int h) throws IOException
+	{
+		if (length < 1)
+			throw new IOException("Empty tile");
+		
+		byte encoding = data[offset];
+		if (encoding == TILE_PLAIN) {
+			readTokens(data, offset + 1, offset + length, iters, stride, x, y, w, h);
+			return;
+		}
+		if (encoding != TILE_DEFLATED)
+			throw new IOException("Unknown tile encoding " + encoding);
+		
+		int[] pos = { offset + 1 };
+		long size = readVarint(data, pos, offset + length);
+		if (size > 10L * w * h + 10)
+			throw new IOException("Invalid tile size");
+		byte[] tokens = new byte[(int)size];
+		
+		inflater.reset();
+		inflater.setInput(data, pos[0], offset + length - pos[0]);
+		try {
+			int n = 0;
+			while (n < tokens.length) {
+				int inflated = inflater.inflate(tokens, n, tokens.length - n);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated tile");
+				n += inflated;
+			}
+		}
+		catch (DataFormatException ex) {
+			throw new IOException("Corrupt tile", ex);
+		}
+		readTokens(tokens, 0, tokens.length, iters, stride, x, y, w, h);
+	}
+	
+	/**
+	 * Reads the residual tokens of a tile and reconstructs its values
+	 */
+	private static void readTokens(byte[] data, int offset, int end, int[] iters, int stride, int x, int y, int w, int h) throws IOException
+	{
+		int[] pos = { offset };
+		long run = 0;
+		for (int j = 0; j < h; ++j) {
+			int row = (y + j) * stride + x;
+			for (int i = 0; i < w; ++i) {
+				int residual = 0;
+				if (run > 0)
+					--run;
+				else {
+					long token = readVarint(data, pos, end);
+					if ((token & 1) != 0)
+						run = (token >>> 1) - 1;
+					else {
+						int zigzag = (int)(token >>> 1);
+						residual = (zigzag >>> 1) ^ -(zigzag & 1);
+					}
+				}
+				iters[row + i] = predict(iters, row + i, stride, i, j) + residual;
+			}
+		}
+		if (run > 0 || pos[0] != end)
+			throw new IOException("Tile has the wrong number of values");
+	}
+	
+	/**
+	 * Reads a varint
+	 * @param pos the position to read from, which is advanced past the varint
+	 */
+	private static long readVarint(byte[] data, int[] pos, int end) throws IOException
+	{
+		long value = 0;
+		int p = pos[0];
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (p >= end)
+				throw new IOException("Truncated varint");
+			byte b = data[p++];
+			value |= (long)(b & 0x7F) << shift;
+			if (b >= 0) {
+				pos[0] = p;
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint");
+	}
+	
+	/**
+	 * An encoded buffer, from which any tile can be decoded on its own
+	 */
+	public static final class Archive
+	{
+		private final byte[] data;
+		private final int width, height, tileSize;
+		private final int cols, rows;
+		private final int dataStart; // Offset of the first tile
+		
+		/**
+		 * Constructor
+		 * @param data the archive
+		 * @throws IOException if the header is invalid
+		 */
+		public Archive(byte[] data) throws IOException
+		{
+			if (data.length < HEADER_SIZE || getInt(data, 0) != MAGIC)
+				throw new IOException("Not an iteration archive");
+			if ((getInt(data, 4) >>> 16) != VERSION)
+				throw new IOException("Unsupported iteration archive version");
+			
+			this.data = data;
+			this.width = getInt(data, 8);
+			this.height = getInt(data, 12);
+			this.tileSize = getInt(data, 16);
+			if (width <= 0 || height <= 0 || tileSize <= 0)
+				throw new IOException("Invalid iteration archive dimensions");
+			
+			// Corrupt dimensions mustn't overflow, so sizes are checked in longs
+			if ((long)width * height > MAX_PIXELS)
+				throw new IOException("Iteration archive is too large");
+			this.cols = (int)(((long)width + tileSize - 1) / tileSize);
+			this.rows = (int)(((long)height + tileSize - 1) / tileSize);
+			long tableEnd = HEADER_SIZE + 4L * cols * rows;
+			if (tableEnd > data.length)
+				throw new IOException("Truncated iteration archive");
+			this.dataStart = (int)tableEnd;
+			if (dataStart + (long)getTileEnd(cols * rows - 1) != data.length)
+				throw new IOException("Truncated iteration archive");
+		}
+		
+		/**
+		 * Decodes a single tile into an iteration buffer the size of the whole archive
+		 * @param tile the index of the tile, in rows of tiles from the top left
+		 * @param iters the iteration values to decode into
+		 * @throws IOException if the tile is corrupt
+		 */
+		public void decodeTile(int tile, int[] iters) throws IOException
+		{
+			if (tile < 0 || tile >= getTileCount())
+				throw new IOException("Invalid tile index");
+			int start = (tile == 0) ? 0 : getTileEnd(tile - 1);
+			int end = getTileEnd(tile);
+			if (start < 0 || end < start || dataStart + (long)end > data.length)
+				throw new IOException("Invalid tile index");
+			
+			int x = (tile % cols) * tileSize, y = (tile / cols) * tileSize;
+			Inflater inflater = new Inflater();
+			try {
+				readTile(data, dataStart + start, end - start, inflater, iters, width, x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+			}
+			finally {
+				inflater.end();
+			}
+		}
+		
+		private int getTileEnd(int tile)
+		{
+			return getInt(data, HEADER_SIZE + 4 * tile);
+		}
+		
+		private static int getInt(byte[] data, int offset)
+		{
+			return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+		}
+		
+		public int getWidth()
+		{
+			return width;
+		}
+		
+		public int getHeight()
+		{
+			return height;
+		}
+		
+		public int getTileSize()
+		{
+			return tileSize;
+		}
+		
+		/**
+		 * Gets the number of tiles, which are numbered in rows from the top left
+		 */
+		public int getTileCount()
+		{
+			return cols * rows;
+		}
+	}
+	
+	/**
+	 * A growable byte array, which unlike ByteArrayOutputStream isn't synchronized and
+	 * can be written into directly
+	 */
+	private static final class ByteSink
+	{
+		private byte[] buffer;
+		private int size = 0;
+		
+		public ByteSink(int capacity)
+		{
+			buffer = new byte[Math.max(16, capacity)];
+		}
+		
+		public void ensure(int extra)
+		{
+			if (size + extra > buffer.length) {
+				byte[] larger = new byte[Math.max(buffer.length * 2, size + extra)];
+				System.arraycopy(buffer, 0, larger, 0, size);
+				buffer = larger;
+			}
+		}
+		
+		public void write(byte b)
+		{
+			ensure(1);
+			buffer[size++] = b;
+		}
+		
+		public void write(byte[] bytes, int offset, int length)
+		{
+			ensure(length);
+			System.arraycopy(bytes, offset, buffer, size, length);
+			size += length;
+		}
+		
+		public void writeInt(int value)
+		{
+			ensure(4);
+			putInt(size, value);
+			size += 4;
+		}
+		
+		public void putInt(int offset, int value)
+		{
+			buffer[offset] = (byte)(value >>> 24);
+			buffer[offset + 1] = (byte)(value >>> 16);
+			buffer[offset + 2] = (byte)(value >>> 8);
+			buffer[offset + 3] = (byte)value;
+		}
+		
+		public void writeVarint(long value)
+		{
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[size++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte)value;
+		}
+		
+		public void skip(int length)
+		{
+			ensure(length);
+			size += length;
+		}
+		
+		public void advance(int length)
+		{
+			size += length;
+		}
+		
+		public void truncate(int size)
+		{
+			this.size = size;
+		}
+		
+		public void reset()
+		{
+			size = 0;
+		}
+		
+		public byte[] buffer()
+		{
+			return buffer;
+		}
+		
+		public int size()
+		{
+			return size;
+		}
+		
+		public int capacity()
+		{
+			return buffer.length;
+		}
+		
+		public byte[] toByteArray()
+		{
+			byte[] bytes = new byte[size];
+			System.arraycopy(buffer, 0, bytes, 0, size);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+/**
+ * Adapts the per-frame iteration increment so that refinement passes take roughly
+ * a target amount of time, and decides when refinement has stopped paying off
+ */
+public class IterationController
+{
+	/**
+	 * Controller defaults
+	 */
+	private static final int DEF_TARGETMILLIS = 40;	// The default target time for a refinement pass
+	private static final int DEF_PATIENCE = 8;			// Passes without new escapes before we give up
+	private static final int MIN_INCITERS = 1;			// The smallest increment we will ever use
+	private static final int MAX_INCITERS = 1 << 20;	// The largest increment we will ever use
+	private static final double MAX_GROWTH = 2.0;		// Max factor the increment can change by per pass
+
+	private int initialInc;								// The increment used at the start of each refinement
+	private int increment;								// The increment for the next pass
+	private volatile long targetNanos = DEF_TARGETMILLIS * 1000000L;
+	private int patience = DEF_PATIENCE;
+	private int idlePasses = 0;							// Consecutive passes which resolved no pixels
+
+	/**
+	 * Constructor
+	 * @param initialInc the increment to start each refinement with
+	 */
+	public IterationController(int initialInc)
+	{
+		setInitialIncrement(initialInc);
+	}
+
+	/**
+	 * Resets the controller for a new view
+	 */
+	public void reset()
+	{
+		increment = initialInc;
+		idlePasses = 0;
+	}
+
+	/**
+	 * Gets the iteration increment to use for the next refinement pass
+	 */
+	public int getIncrement()
+	{
+		return increment;
+	}
+
+	/**
+	 * Called when a refinement pass has completed
+	 * @param escaped the number of pixels which escaped during the pass
+	 * @param nanos the time taken by the pass in nanoseconds
+	 */
+	public void passCompleted(int escaped, long nanos)
+	{
+		idlePasses = (escaped > 0) ? 0 : idlePasses + 1;
+
+		// Scale the increment by how far we are from the target time, but limit the change
+		// so that one noisy measurement can't send it wildly off
+		double factor = (nanos > 0) ? (double)targetNanos / nanos : MAX_GROWTH;
+		factor = Math.max(1 / MAX_GROWTH, Math.min(MAX_GROWTH, factor));
+
+		long next = Math.round(increment * factor);
+		increment = (int)Math.max(MIN_INCITERS, Math.min(MAX_INCITERS, next));
+	}
+
+	/**
+	 * Gets the number of consecutive passes which resolved no pixels
+	 */
+	public int getIdlePasses()
+	{
+		return idlePasses;
+	}
+
+	/**
+	 * Restores the state of a controller, e.g. from a checkpoint
+	 * @param increment the increment for the next pass
+	 * @param idlePasses the number of consecutive passes which resolved no pixels
+	 */
+	public void restore(int increment, int idlePasses)
+	{
+		this.increment = Math.max(MIN_INCITERS, Math.min(MAX_INCITERS, increment));
+		this.idlePasses = idlePasses;
+	}
+
+	/**
+	 * Gets whether refinement has converged, i.e. recent passes have stopped resolving pixels
+	 */
+	public boolean isConverged()
+	{
+		return idlePasses >= patience;
+	}
+
+	/**
+	 * Sets the increment used at the start of each refinement
+	 */
+	public void setInitialIncrement(int initialInc)
+	{
+		this.initialInc = Math.max(MIN_INCITERS, initialInc);
+		reset();
+	}
+
+	/**
+	 * Sets the time a refinement pass should take
+	 */
+	public void setTargetMillis(int millis)
+	{
+		targetNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Sets the number of consecutive passes without new escapes before refinement stops
+	 */
+	public void setPatience(int patience)
+	{
+		this.patience = patience;
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.KernelBuffers;
+import com.ijuru.refract.kernel.KernelCounters;
+import com.ijuru.refract.kernel.KernelPass;
+
+/**
+ * Renders a grid of small Julia sets, one for each point c of a region of the
+ * Mandelbrot set, into a single atlas image. All thumbnails share one set of buffers
+ * the size of the atlas, which is allocated once and reused by every render. Each
+ * thumbnail is rendered by a kernel pass whose offsets put the thumbnail's origin at
+ * its center, so kernels write straight into the shared buffers.
+ */
+public class JuliaAtlas
+{
+	private static final double THUMB_SPAN = 4;	// Width of each thumbnail in complex space
+	
+	private final Kernel kernel;
+	private final int cols, rows; // Number of thumbnails
+	private final int thumbSize; // Width and height of each thumbnail
+	private final int width, height; // Dimensions of the atlas
+	private final int[] iters; // Iteration values of the atlas
+	private final int[] rgb; // Colors of the atlas
+	private final KernelBuffers buffers;
+	private double re, im, step; // Julia coords of the top left thumbnail and the distance between thumbnails
+	
+	/**
+	 * Constructor
+	 * @param kernel the kernel used to iterate the Julia sets
+	 * @param cols the number of columns of thumbnails
+	 * @param rows the number of rows of thumbnails
+	 * @param thumbSize the width and height of each thumbnail
+	 */
+	public JuliaAtlas(Kernel kernel, int cols, int rows, int thumbSize)
+	{
+		this.kernel = kernel;
+		this.cols = cols;
+		this.rows = rows;
+		this.thumbSize = thumbSize;
+		this.width = cols * thumbSize;
+		this.height = rows * thumbSize;
+		this.iters = new int[width * height];
+		this.rgb = new int[width * height];
+		this.buffers = new KernelBuffers(width, height, new double[width * height], new double[width * height], iters);
+	}
+	
+	/**
+	 * Renders the atlas. The Julia coords of each thumbnail are those which the Julia
+	 * view would have if the Mandelbrot view was centered on the thumbnail's point, so
+	 * that rows go from the top of the region to the bottom.
+	 * @param x the X / Real(C) coord of the center of the region
+	 * @param y the Y / Imag(C) coord of the center of the region
+	 * @param span the width of the region
+	 * @param maxIters the max number of iterations to perform
+	 * @param colorizer the colorizer
+	 * @return the RGB values, which are overwritten by the next render
+	 */
+	public int[] render(double x, double y, double span, final int maxIters, final Colorizer colorizer)
+	{
+		step = span / cols;
+		re = x - (cols - 1) * step / 2;
+		im = y + (rows - 1) * step / 2;
+		
+		int nthreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+		try {
+			// One task per thumbnail, as Julia sets vary so much in cost that larger tasks
+			// would leave threads idle at the end
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int row = 0; row < rows; ++row) {
+				for (int col = 0; col < cols; ++col) {
+					final int tcol = col, trow = row;
+					results.add(executor.submit(new Callable<Object>() {
+						public Object call()
+						{
+							renderThumbnail(tcol, trow, maxIters, colorizer);
+							return null;
+						}
+					}));
+				}
+			}
+			for (Future<Object> result : results)
+				result.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			executor.shutdown();
+		}
+		return rgb;
+	}
+	
+	/**
+	 * Renders a single thumbnail into the shared buffers
+	 */
+	private void renderThumbnail(int col, int row, int maxIters, Colorizer colorizer)
+	{
+		int x0 = col * thumbSize, y0 = row * thumbSize;
+		double zoom = thumbSize / THUMB_SPAN;
+		
+		// Kernels map pixels relative to the center of the whole atlas, so offset the pass by
+		// the distance from there to the center of this thumbnail
+		double offsetRe = -(x0 + thumbSize / 2 - width / 2) / zoom;
+		double offsetIm = (y0 + thumbSize / 2 - height / 2) / zoom;
+		KernelPass pass = new KernelPass(width, height, zoom, offsetRe, offsetIm, true, re + col * step, im - row * step, maxIters, 0);
+		KernelCounters counters = new KernelCounters();
+		
+		for (int y = y0; y < y0 + thumbSize; ++y) {
+			kernel.iterate(pass, buffers, y, x0, x0 + thumbSize, false, counters);
+			colorizer.colorize(iters, rgb, y * width + x0, thumbSize, maxIters);
+		}
+	}
+	
+	/**
+	 * Gets the Julia coords of the thumbnail at a pixel of the last render
+	 * @param x the X coord in pixels
+	 * @param y the Y coord in pixels
+	 * @return the X and Y coords
+	 */
+	public double[] getJuliaCoords(int x, int y)
+	{
+		return new double[] { re + (x / thumbSize) * step, im - (y / thumbSize) * step };
+	}
+	
+	/**
+	 * Gets the width of the atlas
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	/**
+	 * Gets the height of the atlas
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+}
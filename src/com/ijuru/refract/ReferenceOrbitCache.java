@@ -0,0 +1,246 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.ijuru.refract.kernel.ReferenceOrbit;
+
+/**
+ * A bounded cache of high precision reference orbits for rendering by perturbation, so
+ * that an orbit is calculated once per region rather than once per view. Orbits are keyed
+ * by their reference point and precision, and each is extended in place when a view needs
+ * more iterations of it, e.g. as refinement increases the max iters value. Renderers snap
+ * reference points to a grid about the size of the image, so panning or zooming a little
+ * finds the same orbit. Orbits which haven't been used for longest are evicted once the
+ * cache exceeds its budget. The cache may be shared by several renderers, e.g. a view and
+ * the frames of an animation of it.
+ */
+public class ReferenceOrbitCache
+{
+	private static final BigDecimal ESCAPE = new BigDecimal(4); // Orbits end once |Z|^2 exceeds this
+	private static final int MIN_CAPACITY = 1024; // Initial number of values allocated for an orbit
+	private static final int ORBIT_BYTES = 256; // Approx size of an orbit excluding its values
+	
+	private final long budget; // Max bytes of orbits to keep
+	private final LinkedHashMap<Key, Orbit> orbits = new LinkedHashMap<Key, Orbit>(16, 0.75f, true);
+	private long hits = 0, misses = 0;
+	
+	/**
+	 * Constructor
+	 * @param budget the max number of bytes of orbits to keep
+	 */
+	public ReferenceOrbitCache(long budget)
+	{
+		this.budget = budget;
+	}
+	
+	/**
+	 * Gets the orbit of a reference point, calculating as much of it as isn't cached. This
+	 * can take a long time for deep zooms, but only blocks other renderers which want the
+	 * same orbit.
+	 * @param re the Real(C) value of the reference point
+	 * @param im the Imag(C) value of the reference point
+	 * @param precision the number of decimal digits to calculate with
+	 * @param length the number of values needed, which the orbit has unless it escaped
+	 * @return the orbit
+	 */
+	public ReferenceOrbit get(double re, double im, int precision, int length)
+	{
+		Key key = new Key(re, im, precision);
+		Orbit orbit;
+		synchronized (this) {
+			orbit = orbits.get(key);
+			if (orbit != null)
+				++hits;
+			else {
+				++misses;
+				orbit = new Orbit(re, im, precision);
+				orbits.put(key, orbit);
+			}
+		}
+		
+		ReferenceOrbit snapshot = orbit.extend(length);
+		evict();
+		return snapshot;
+	}
+	
+	/**
+	 * Evicts the least recently used orbits while the cache is over budget, though never
+	 * the most recently used one
+	 */
+	private synchronized void evict()
+	{
+		long bytes = getBytes();
+		Iterator<Map.Entry<Key, Orbit>> iter = orbits.entrySet().iterator();
+		while (bytes > budget && orbits.size() > 1) {
+			bytes -= iter.next().getValue().getBytes();
+			iter.remove();
+		}
+	}
+	
+	/**
+	 * Removes all orbits
+	 */
+	public synchronized void clear()
+	{
+		orbits.clear();
+	}
+	
+	/**
+	 * Gets the number of cached orbits
+	 */
+	public synchronized int getOrbitCount()
+	{
+		return orbits.size();
+	}
+	
+	/**
+	 * Gets the approx number of bytes of cached orbits
+	 */
+	public synchronized long getBytes()
+	{
+		long bytes = 0;
+		for (Orbit orbit : orbits.values())
+			bytes += orbit.getBytes();
+		return bytes;
+	}
+	
+	/**
+	 * Gets the number of lookups which found an orbit
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	/**
+	 * Gets the number of lookups which didn't find an orbit
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * Identifies an orbit
+	 */
+	private static final class Key
+	{
+		private final long re, im; // Bits of the reference point
+		private final int precision;
+		
+		public Key(double re, double im, int precision)
+		{
+			// Adding zero makes -0 the same point as 0
+			this.re = Double.doubleToLongBits(re + 0.0);
+			this.im = Double.doubleToLongBits(im + 0.0);
+			this.precision = precision;
+		}
+		
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			
+			Key other = (Key)obj;
+			return re == other.re && im == other.im && precision == other.precision;
+		}
+		
+		public int hashCode()
+		{
+			long hash = (re * 31 + im) * 31 + precision;
+			return (int)(hash ^ (hash >>> 32));
+		}
+	}
+	
+	/**
+	 * An orbit which is calculated as far as has been needed, along with the high precision
+	 * value it continues from
+	 */
+	private static final class Orbit
+	{
+		private final double re, im;
+		private final MathContext context;
+		private final BigDecimal cr, ci; // The reference point
+		private BigDecimal zr, zi; // The last value of the orbit
+		private BigDecimal zr2, zi2; // Its squares
+		private double[] orbitRe, orbitIm; // The values rounded to doubles, of which snapshots share the start
+		private volatile int capacity; // Length of the arrays, which can be read without waiting for a calculation
+		private int length; // Number of values
+		private boolean escaped = false; // True once the last value is outside the escape radius
+		
+		public Orbit(double re, double im, int precision)
+		{
+			this.re = re;
+			this.im = im;
+			this.context = new MathContext(precision);
+			this.cr = new BigDecimal(re);
+			this.ci = new BigDecimal(im);
+			this.zr = BigDecimal.ZERO;
+			this.zi = BigDecimal.ZERO;
+			this.zr2 = BigDecimal.ZERO;
+			this.zi2 = BigDecimal.ZERO;
+			this.orbitRe = new double[MIN_CAPACITY];
+			this.orbitIm = new double[MIN_CAPACITY];
+			this.capacity = MIN_CAPACITY;
+			this.length = 1;
+		}
+		
+		/**
+		 * Extends the orbit to a number of values, unless it escapes first
+		 * @return a snapshot of the orbit
+		 */
+		public synchronized ReferenceOrbit extend(int needed)
+		{
+			if (needed > orbitRe.length) {
+				int capacity = Math.max(needed, orbitRe.length * 2);
+				orbitRe = Arrays.copyOf(orbitRe, capacity);
+				orbitIm = Arrays.copyOf(orbitIm, capacity);
+				this.capacity = capacity;
+			}
+			
+			// Z = Z^2 + C, where the initial Z is zero
+			while (length < needed && !escaped) {
+				BigDecimal zri = zr.multiply(zi, context);
+				zr = zr2.subtract(zi2, context).add(cr, context);
+				zi = zri.add(zri, context).add(ci, context);
+				zr2 = zr.multiply(zr, context);
+				zi2 = zi.multiply(zi, context);
+				
+				orbitRe[length] = zr.doubleValue();
+				orbitIm[length] = zi.doubleValue();
+				++length;
+				escaped = (zr2.add(zi2, context).compareTo(ESCAPE) > 0);
+			}
+			return new ReferenceOrbit(re, im, orbitRe, orbitIm, length, escaped);
+		}
+		
+		public long getBytes()
+		{
+			return ORBIT_BYTES + capacity * 16L;
+		}
+	}
+}
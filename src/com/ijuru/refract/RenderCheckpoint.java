@@ -0,0 +1,569 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.Kernels;
+
+/**
+ * A snapshot of the complete refinement state of a renderer, from which rendering can
+ * be resumed exactly, and its binary file format. A file is a header followed by
+ * sections, each of which is a single buffer compressed with deflate. Iteration values
+ * are first encoded by IterCodec, which makes them far smaller than deflate alone.
+ * 
+ *   int     magic "RFCK"
+ *   short   version
+ *   short   flags (1 = julia, 2 = refinement pass, 4 = distance pass, 8 = orbit statistics,
+ *           16 = perturbation pass)
+ *   int     width, height
+ *   string  kernel id, as a short length then UTF-8 bytes
+ *   byte    render mode
+ *   double  zoom, xpos, ypos, juliaX, juliaY
+ *   double  bailout radius (from version 3)
+ *   int     maxIters, prevMaxIters, passRow, passEscaped
+ *   long    passNanos
+ *   int     controller increment, controller idle passes
+ *   byte    number of sections
+ *   section tag, raw length, compressed length, CRC32 of raw data, compressed data
+ * 
+ * All values are big-endian. Checkpoints are written to a temporary file which then
+ * replaces the checkpoint, so a crash while writing never leaves a broken checkpoint.
+ */
+public final class RenderCheckpoint
+{
+	private static final int MAGIC = 0x5246434B; // "RFCK"
+	private static final short VERSION = 5;
+	private static final short MIN_VERSION = 1; // Oldest version which can still be read
+	private static final int FLAG_JULIA = 1;
+	private static final int FLAG_REFINEMENT = 2;
+	private static final int FLAG_DISTANCE = 4;
+	private static final int FLAG_ORBIT = 8;
+	private static final int FLAG_PERTURBED = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Section tags
+	 */
+	private static final byte SECTION_ITERS = 1; // Raw iteration values, as written by version 1
+	private static final byte SECTION_ROWMAXITERS = 2;
+	private static final byte SECTION_ZX = 3;
+	private static final byte SECTION_ZY = 4;
+	private static final byte SECTION_DX = 5;
+	private static final byte SECTION_DY = 6;
+	private static final byte SECTION_DISTANCE = 7;
+	private static final byte SECTION_ITERS_CODED = 8; // Iteration values encoded by IterCodec
+	private static final byte SECTION_ORBIT = 9; // Orbit statistics, from version 4
+	private static final byte SECTION_REFITERS = 10; // Positions in the reference orbit, from version 5
+	
+	private final int width, height;
+	private final ViewParams view;
+	private final int maxIters, prevMaxIters;
+	private final int passRow, passEscaped;
+	private final long passNanos;
+	private final boolean refinement; // True if the pass was a refinement
+	private final int increment, idlePasses; // Controller state
+	private final int[] iters, rowMaxIters;
+	private final double[] zx, zy;
+	private final double[] dx, dy; // Null unless the pass was estimating distances
+	private final float[] distance;
+	private final double[] orbit; // Null unless the pass was accumulating orbit statistics
+	private final int[] refIters; // Null unless the pass was iterating by perturbation
+	
+	/**
+	 * Constructor. The buffers are not copied so must not be shared with a renderer.
+	 */
+	RenderCheckpoint(int width, int height, ViewParams view, int maxIters, int prevMaxIters, int passRow, int passEscaped, long passNanos, boolean refinement,
+			int increment, int idlePasses, int[] iters, int[] rowMaxIters, double[] zx, double[] zy, double[] dx, double[] dy, float[] distance, double[] orbit,
+			int[] refIters)
+	{
+		this.width = width;
+		this.height = height;
+		this.view = view;
+		this.maxIters = maxIters;
+		this.prevMaxIters = prevMaxIters;
+		this.passRow = passRow;
+		this.passEscaped = passEscaped;
+		this.passNanos = passNanos;
+		this.refinement = refinement;
+		this.increment = increment;
+		this.idlePasses = idlePasses;
+		this.iters = iters;
+		this.rowMaxIters = rowMaxIters;
+		this.zx = zx;
+		this.zy = zy;
+		this.dx = dx;
+		this.dy = dy;
+		this.distance = distance;
+		this.orbit = orbit;
+		this.refIters = refIters;
+	}
+	
+	/**
+	 * Writes this checkpoint to a file, replacing any existing file
+	 * @param file the file
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File file) throws IOException
+	{
+		Path path = file.toPath();
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			byte[] kernelId = view.getKernel().getId().getBytes(UTF8);
+			int flags = (view.isJulia() ? FLAG_JULIA : 0) | (refinement ? FLAG_REFINEMENT : 0) | (dx != null ? FLAG_DISTANCE : 0) | (orbit != null ? FLAG_ORBIT : 0)
+					| (refIters != null ? FLAG_PERTURBED : 0);
+			
+			ByteBuffer header = ByteBuffer.allocate(128 + kernelId.length);
+			header.putInt(MAGIC);
+			header.putShort(VERSION);
+			header.putShort((short)flags);
+			header.putInt(width);
+			header.putInt(height);
+			header.putShort((short)kernelId.length);
+			header.put(kernelId);
+			header.put((byte)view.getMode().ordinal());
+			header.putDouble(view.getZoom());
+			header.putDouble(view.getXPos());
+			header.putDouble(view.getYPos());
+			header.putDouble(view.getJuliaX());
+			header.putDouble(view.getJuliaY());
+			header.putDouble(view.getBailout());
+			header.putInt(maxIters);
+			header.putInt(prevMaxIters);
+			header.putInt(passRow);
+			header.putInt(passEscaped);
+			header.putLong(passNanos);
+			header.putInt(increment);
+			header.putInt(idlePasses);
+			header.put((byte)(4 + ((dx != null) ? 3 : 0) + ((orbit != null) ? 1 : 0) + ((refIters != null) ? 1 : 0)));
+			header.flip();
+			writeFully(channel, header);
+			
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				writeSection(channel, deflater, SECTION_ITERS_CODED, new IterCodec(IterCodec.DEF_TILESIZE, false).encode(iters, width, height));
+				writeSection(channel, deflater, SECTION_ROWMAXITERS, toBytes(rowMaxIters));
+				writeSection(channel, deflater, SECTION_ZX, toBytes(zx));
+				writeSection(channel, deflater, SECTION_ZY, toBytes(zy));
+				if (dx != null) {
+					writeSection(channel, deflater, SECTION_DX, toBytes(dx));
+					writeSection(channel, deflater, SECTION_DY, toBytes(dy));
+					writeSection(channel, deflater, SECTION_DISTANCE, toBytes(distance));
+				}
+				if (orbit != null)
+					writeSection(channel, deflater, SECTION_ORBIT, toBytes(orbit));
+				if (refIters != null)
+					writeSection(channel, deflater, SECTION_REFITERS, toBytes(refIters));
+			}
+			finally {
+				deflater.end();
+			}
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+		
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Reads a checkpoint from a file
+	 * @param file the file
+	 * @return the checkpoint
+	 * @throws IOException if the file can't be read or isn't a valid checkpoint
+	 */
+	public static RenderCheckpoint read(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if (in.getInt() != MAGIC)
+				throw new IOException("Not a checkpoint file");
+			short version = in.getShort();
+			if (version < MIN_VERSION || version > VERSION)
+				throw new IOException("Unsupported checkpoint version");
+			
+			int flags = in.getShort();
+			int width = in.getInt();
+			int height = in.getInt();
+			byte[] kernelId = new byte[in.getShort()];
+			in.get(kernelId);
+			int mode = in.get();
+			double zoom = in.getDouble();
+			double xpos = in.getDouble();
+			double ypos = in.getDouble();
+			double juliaX = in.getDouble();
+			double juliaY = in.getDouble();
+			double bailout = (version >= 3) ? in.getDouble() : Kernel.DEF_BAILOUT;
+			int maxIters = in.getInt();
+			int prevMaxIters = in.getInt();
+			int passRow = in.getInt();
+			int passEscaped = in.getInt();
+			long passNanos = in.getLong();
+			int increment = in.getInt();
+			int idlePasses = in.getInt();
+			int nsections = in.get();
+			
+			if (width <= 0 || height <= 0 || mode < 0 || mode >= RenderMode.values().length || passRow < 0 || passRow > height
+					|| !(bailout >= Kernel.DEF_BAILOUT))
+				throw new IOException("Invalid checkpoint header");
+			
+			ViewParams view;
+			try {
+				view = new ViewParams(Kernels.forId(new String(kernelId, UTF8)), (flags & FLAG_JULIA) != 0, zoom, xpos, ypos, juliaX, juliaY);
+			}
+			catch (IllegalArgumentException ex) {
+				throw new IOException("Unknown kernel in checkpoint: " + new String(kernelId, UTF8));
+			}
+			view = view.withMode(RenderMode.values()[mode]).withBailout(bailout);
+			
+			int npixels = width * height;
+			int[] iters = null, rowMaxIters = null, refIters = null;
+			double[] zx = null, zy = null, dx = null, dy = null, orbit = null;
+			float[] distance = null;
+			
+			Inflater inflater = new Inflater();
+			try {
+				for (int s = 0; s < nsections; ++s) {
+					byte tag = in.get();
+					ByteBuffer raw = readSection(in, inflater);
+					switch (tag) {
+						case SECTION_ITERS:
+							iters = toInts(raw, npixels);
+							break;
+						case SECTION_ITERS_CODED:
+							iters = IterCodec.decode(raw.array());
+							if (iters.length != npixels)
+								throw new IOException("Checkpoint section has the wrong size");
+							break;
+						case SECTION_ROWMAXITERS:
+							rowMaxIters = toInts(raw, height);
+							break;
+						case SECTION_ZX:
+							zx = toDoubles(raw, npixels);
+							break;
+						case SECTION_ZY:
+							zy = toDoubles(raw, npixels);
+							break;
+						case SECTION_DX:
+							dx = toDoubles(raw, npixels);
+							break;
+						case SECTION_DY:
+							dy = toDoubles(raw, npixels);
+							break;
+						case SECTION_DISTANCE:
+							distance = toFloats(raw, npixels);
+							break;
+						case SECTION_ORBIT:
+							orbit = toDoubles(raw, npixels);
+							break;
+						case SECTION_REFITERS:
+							refIters = toInts(raw, npixels);
+							break;
+						default:
+							// Sections from later versions which this one doesn't need
+					}
+				}
+			}
+			finally {
+				inflater.end();
+			}
+			
+			if (iters == null || rowMaxIters == null || zx == null || zy == null)
+				throw new IOException("Checkpoint is missing buffers");
+			if ((flags & FLAG_DISTANCE) != 0 && (dx == null || dy == null || distance == null))
+				throw new IOException("Checkpoint is missing derivative buffers");
+			if ((flags & FLAG_ORBIT) != 0 && orbit == null)
+				throw new IOException("Checkpoint is missing the orbit buffer");
+			if ((flags & FLAG_PERTURBED) != 0 && refIters == null)
+				throw new IOException("Checkpoint is missing the reference iterations buffer");
+			
+			return new RenderCheckpoint(width, height, view, maxIters, prevMaxIters, passRow, passEscaped, passNanos, (flags & FLAG_REFINEMENT) != 0,
+					increment, idlePasses, iters, rowMaxIters, zx, zy, dx, dy, distance, orbit, refIters);
+		}
+		catch (RuntimeException ex) {
+			// Buffer underflows etc. from truncated files
+			throw new IOException("Corrupt checkpoint file", ex);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	
+	/**
+	 * Compresses and writes a single section
+	 */
+	private static void writeSection(FileChannel channel, Deflater deflater, byte tag, byte[] raw) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] compressed = new byte[raw.length / 2 + 64];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				byte[] larger = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, larger, 0, length);
+				compressed = larger;
+			}
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(13);
+		header.put(tag);
+		header.putInt(raw.length);
+		header.putInt(length);
+		header.putInt((int)crc.getValue());
+		header.flip();
+		writeFully(channel, header);
+		writeFully(channel, ByteBuffer.wrap(compressed, 0, length));
+	}
+	
+	/**
+	 * Reads and decompresses a single section, after its tag
+	 */
+	private static ByteBuffer readSection(ByteBuffer in, Inflater inflater) throws IOException
+	{
+		int rawLength = in.getInt();
+		int length = in.getInt();
+		int checksum = in.getInt();
+		
+		byte[] compressed = new byte[length];
+		in.get(compressed);
+		byte[] raw = new byte[rawLength];
+		
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				int inflated = inflater.inflate(raw, n, rawLength - n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += inflated;
+			}
+			if (n != rawLength)
+				throw new IOException("Truncated checkpoint section");
+		}
+		catch (DataFormatException ex) {
+			throw new IOException("Corrupt checkpoint section", ex);
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		if ((int)crc.getValue() != checksum)
+			throw new IOException("Checkpoint section failed its checksum");
+		
+		return ByteBuffer.wrap(raw);
+	}
+	
+	private static byte[] toBytes(int[] values)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+		buffer.asIntBuffer().put(values);
+		return buffer.array();
+	}
+	
+	private static byte[] toBytes(double[] values)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+		buffer.asDoubleBuffer().put(values);
+		return buffer.array();
+	}
+	
+	private static byte[] toBytes(float[] values)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+		buffer.asFloatBuffer().put(values);
+		return buffer.array();
+	}
+	
+	private static int[] toInts(ByteBuffer raw, int count) throws IOException
+	{
+		if (raw.remaining() != count * 4)
+			throw new IOException("Checkpoint section has the wrong size");
+		int[] values = new int[count];
+		raw.asIntBuffer().get(values);
+		return values;
+	}
+	
+	private static double[] toDoubles(ByteBuffer raw, int count) throws IOException
+	{
+		if (raw.remaining() != count * 8)
+			throw new IOException("Checkpoint section has the wrong size");
+		double[] values = new double[count];
+		raw.asDoubleBuffer().get(values);
+		return values;
+	}
+	
+	private static float[] toFloats(ByteBuffer raw, int count) throws IOException
+	{
+		if (raw.remaining() != count * 4)
+			throw new IOException("Checkpoint section has the wrong size");
+		float[] values = new float[count];
+		raw.asFloatBuffer().get(values);
+		return values;
+	}
+	
+	/**
+	 * Gets the width of the checkpointed buffers
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	/**
+	 * Gets the height of the checkpointed buffers
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	/**
+	 * Gets the view which was being rendered
+	 */
+	public ViewParams getView()
+	{
+		return view;
+	}
+	
+	/**
+	 * Gets the max iteration value of the checkpointed pass
+	 */
+	public int getMaxIters()
+	{
+		return maxIters;
+	}
+	
+	int getPrevMaxIters()
+	{
+		return prevMaxIters;
+	}
+	
+	int getPassRow()
+	{
+		return passRow;
+	}
+	
+	int getPassEscaped()
+	{
+		return passEscaped;
+	}
+	
+	long getPassNanos()
+	{
+		return passNanos;
+	}
+	
+	boolean isRefinement()
+	{
+		return refinement;
+	}
+	
+	int getIncrement()
+	{
+		return increment;
+	}
+	
+	int getIdlePasses()
+	{
+		return idlePasses;
+	}
+	
+	int[] getIters()
+	{
+		return iters;
+	}
+	
+	int[] getRowMaxIters()
+	{
+		return rowMaxIters;
+	}
+	
+	double[] getZX()
+	{
+		return zx;
+	}
+	
+	double[] getZY()
+	{
+		return zy;
+	}
+	
+	double[] getDX()
+	{
+		return dx;
+	}
+	
+	double[] getDY()
+	{
+		return dy;
+	}
+	
+	float[] getDistance()
+	{
+		return distance;
+	}
+	
+	double[] getOrbit()
+	{
+		return orbit;
+	}
+	
+	int[] getRefIters()
+	{
+		return refIters;
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+/**
+ * Enumeration of what is calculated for each pixel and so how pixels are colored
+ */
+public enum RenderMode
+{
+	ITERATIONS,	// Pixels are colored by their iteration values
+	DISTANCE,	// Pixels are colored by their estimated distance to the set
+	STRIPES,	// Escaped pixels are colored by the average of a stripe function over their orbits
+	ORBIT_TRAP	// Escaped pixels are colored by how close their orbits come to the origin
+}
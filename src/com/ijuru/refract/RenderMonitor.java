@@ -0,0 +1,143 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Accumulates render measurements so they can be watched over JMX
+ */
+public class RenderMonitor implements RenderMonitorMBean, RenderStatsListener
+{
+	private long frames;
+	private long kernelNanos;
+	private long colorizeNanos;
+	private long pixelsComputed;
+	private long iterations;
+	private long pixelsResolved;
+	private RenderStats last = null;
+	
+	/**
+	 * Registers this monitor with the platform MBean server
+	 * @param name the name of the monitored view
+	 * @return true if registration succeeded, which it may not in a restricted environment
+	 */
+	public boolean register(String name)
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.ijuru.refract:type=RenderMonitor,name=" + name));
+			return true;
+		}
+		catch (JMException e) {
+			return false;
+		}
+		catch (SecurityException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @see RenderStatsListener#frameMeasured(RenderStats)
+	 */
+	public synchronized void frameMeasured(RenderStats stats)
+	{
+		++frames;
+		kernelNanos += stats.getKernelNanos();
+		colorizeNanos += stats.getColorizeNanos();
+		pixelsComputed += stats.getPixelsComputed();
+		iterations += stats.getIterations();
+		pixelsResolved += stats.getPixelsResolved();
+		last = stats;
+	}
+	
+	public synchronized long getFrames()
+	{
+		return frames;
+	}
+	
+	public synchronized long getTotalKernelMillis()
+	{
+		return kernelNanos / 1000000;
+	}
+	
+	public synchronized long getTotalColorizeMillis()
+	{
+		return colorizeNanos / 1000000;
+	}
+	
+	public synchronized long getTotalPixelsComputed()
+	{
+		return pixelsComputed;
+	}
+	
+	public synchronized long getTotalIterations()
+	{
+		return iterations;
+	}
+	
+	public synchronized long getTotalPixelsResolved()
+	{
+		return pixelsResolved;
+	}
+	
+	public synchronized long getAllocations()
+	{
+		return (last != null) ? last.getAllocations() : 0;
+	}
+	
+	public synchronized long getAllocatedBytes()
+	{
+		return (last != null) ? last.getAllocatedBytes() : 0;
+	}
+	
+	public synchronized long getLastRenderMillis()
+	{
+		return (last != null) ? last.getRenderMillis() : 0;
+	}
+	
+	public synchronized int getLastMaxIters()
+	{
+		return (last != null) ? last.getMaxIters() : 0;
+	}
+	
+	/**
+	 * Gets the kernel throughput, which is the number to watch for regressions
+	 */
+	public synchronized double getIterationsPerSecond()
+	{
+		return (kernelNanos > 0) ? iterations * 1e9 / kernelNanos : 0;
+	}
+	
+	/**
+	 * Resets all totals
+	 */
+	public synchronized void reset()
+	{
+		frames = 0;
+		kernelNanos = 0;
+		colorizeNanos = 0;
+		pixelsComputed = 0;
+		iterations = 0;
+		pixelsResolved = 0;
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+/**
+ * JMX management interface for render measurements
+ */
+public interface RenderMonitorMBean
+{
+	public long getFrames();
+	public long getTotalKernelMillis();
+	public long getTotalColorizeMillis();
+	public long getTotalPixelsComputed();
+	public long getTotalIterations();
+	public long getTotalPixelsResolved();
+	public long getAllocations();
+	public long getAllocatedBytes();
+	public long getLastRenderMillis();
+	public int getLastMaxIters();
+	public double getIterationsPerSecond();
+	public void reset();
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+/**
+ * Immutable measurements of a single rendered frame
+ */
+public final class RenderStats
+{
+	private final long kernelNanos; // Time spent iterating
+	private final long colorizeNanos; // Time spent converting iteration values to colors
+	private final long pixelsComputed; // Number of pixels the kernels visited
+	private final long iterations; // Total number of iterations executed
+	private final int pixelsResolved; // Number of pixels which escaped
+	private final int maxIters; // The max iterations value at the end of the frame
+	private final long allocations; // Buffer allocations made since the renderer was created
+	private final long allocatedBytes; // Bytes of buffers allocated since the renderer was created
+	
+	/**
+	 * Constructor
+	 */
+	public RenderStats(long kernelNanos, long colorizeNanos, long pixelsComputed, long iterations, int pixelsResolved, int maxIters, long allocations, long allocatedBytes)
+	{
+		this.kernelNanos = kernelNanos;
+		this.colorizeNanos = colorizeNanos;
+		this.pixelsComputed = pixelsComputed;
+		this.iterations = iterations;
+		this.pixelsResolved = pixelsResolved;
+		this.maxIters = maxIters;
+		this.allocations = allocations;
+		this.allocatedBytes = allocatedBytes;
+	}
+	
+	/**
+	 * Creates a copy of these stats with the colorization time and any extra allocations
+	 * made by whatever colorized the frame
+	 */
+	public RenderStats withColorization(long colorizeNanos, long allocations, long allocatedBytes)
+	{
+		return new RenderStats(kernelNanos, colorizeNanos, pixelsComputed, iterations, pixelsResolved, maxIters, this.allocations + allocations, this.allocatedBytes + allocatedBytes);
+	}
+	
+	/**
+	 * Gets the time spent iterating in nanoseconds
+	 */
+	public long getKernelNanos()
+	{
+		return kernelNanos;
+	}
+	
+	/**
+	 * Gets the time spent converting iteration values to colors in nanoseconds
+	 */
+	public long getColorizeNanos()
+	{
+		return colorizeNanos;
+	}
+	
+	/**
+	 * Gets the total render time in milliseconds
+	 */
+	public long getRenderMillis()
+	{
+		return (kernelNanos + colorizeNanos) / 1000000;
+	}
+	
+	/**
+	 * Gets the number of pixels the kernels visited
+	 */
+	public long getPixelsComputed()
+	{
+		return pixelsComputed;
+	}
+	
+	/**
+	 * Gets the total number of iterations executed
+	 */
+	public long getIterations()
+	{
+		return iterations;
+	}
+	
+	/**
+	 * Gets the number of pixels which escaped
+	 */
+	public int getPixelsResolved()
+	{
+		return pixelsResolved;
+	}
+	
+	/**
+	 * Gets the max iterations value at the end of the frame
+	 */
+	public int getMaxIters()
+	{
+		return maxIters;
+	}
+	
+	/**
+	 * Gets the number of buffer allocations made so far
+	 */
+	public long getAllocations()
+	{
+		return allocations;
+	}
+	
+	/**
+	 * Gets the number of bytes of buffers allocated so far
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+}
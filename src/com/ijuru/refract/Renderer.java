@@ -19,6 +19,18 @@
 
 package com.ijuru.refract;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.KernelBuffers;
+import com.ijuru.refract.kernel.KernelCounters;
+import com.ijuru.refract.kernel.KernelPass;
+import com.ijuru.refract.kernel.Kernels;
+import com.ijuru.refract.kernel.OrbitStatistic;
+import com.ijuru.refract.kernel.ReferenceOrbit;
+
 /**
  * Class for generating Mandelbrot or Julia sets
  */
@@ -29,22 +41,31 @@ public class Renderer
 	 */
 	private static final int DEF_MINITERS = 25;	// The default min/initial iterations value
 	private static final int DEF_INCITERS = 10;	// The default iterations increment value	
+	private static final int DEF_FRAMEBUDGET = 0;	// The default time limit for each update (none)
+	
+	/**
+	 * Perturbation parameters
+	 */
+	private static final double PERTURBATION_ZOOM = 1e13;	// Zoom from which Mandelbrot views are iterated by perturbation
+	private static final int PRECISION_MARGIN = 20;		// Digits of reference orbits beyond those needed to tell pixels apart
+	private static final int PRECISION_STEP = 16;			// Precisions are rounded up to a multiple of this so nearby zooms share orbits
+	private static final long DEF_ORBITCACHE_BYTES = 64L << 20;	// The default budget of the reference orbit cache
 	
 	/**
 	 * Iteration parameters
 	 */	
-	private int minIters = DEF_MINITERS; // Initial number of iterations to perform	
+	private volatile int minIters = DEF_MINITERS; // Initial number of iterations to perform	
+	private volatile int incIters = DEF_INCITERS; // Number of iterations the controller starts refinement with
 	private int maxIters = minIters; // Max number of iterations to perform
-	private int incIters = DEF_INCITERS; // Number of iterations performd per frame
+	private IterationController controller = new IterationController(DEF_INCITERS); // Decides iterations performed per frame
+	private int escaped = 0; // Number of pixels which escaped during the last update
+	private volatile int frameBudget = DEF_FRAMEBUDGET; // Max millis an update may take, or zero for no limit
 	
 	/**
-	 * Fractal parameters
+	 * Fractal parameters, which are replaced rather than modified so that the render
+	 * thread always sees a consistent set
 	 */	
-	private Function func = Function.MANDELBROT;	
-	private double juliaX, juliaY;	
-	private double zoom = 200; // Zoom factor for pixel space -> complex space mapping
-	private double xpos = 0; // X(j) offset in complex space
-	private double ypos = 0; // Y(i) offset in complex space	
+	private final AtomicReference<ViewParams> view = new AtomicReference<ViewParams>(new ViewParams(Kernels.Z2, false, 200, 0, 0, 0, 0));
 	
 	/**
 	 * Cache stuff
@@ -52,8 +73,50 @@ public class Renderer
 	private double[] cacheX = null; // Cache of Real(Z) values
 	private double[] cacheY = null; // Cache of Imag(Z) values
 	private boolean cacheValid = false; // True if cached values can be used
+	private double[] cacheDX = null; // Cache of Real(dZ) values, only allocated for distance estimation
+	private double[] cacheDY = null; // Cache of Imag(dZ) values
+	private float[] distance = null; // Estimated distances to the set
+	private double[] orbit = null; // Orbit statistics, only allocated for modes which color by them
+	private int[] refIters = null; // Positions in the reference orbit, only allocated for perturbation
+	private KernelBuffers buffers = null; // The cache and iteration values as passed to kernels
+	private volatile TileCache tileCache = null; // Tiles of previous views, if any
+	private volatile ReferenceOrbitCache orbitCache = new ReferenceOrbitCache(DEF_ORBITCACHE_BYTES); // Reference orbits of deep views
+	
+	/**
+	 * Pass state, as a pass can be spread across several updates
+	 */
+	private ViewParams passView = null; // The view that the current pass is rendering
+	private KernelPass pass = null; // The parameters of the current pass as passed to kernels
+	private int passRow = 0; // The next row to be calculated in the current pass
+	private int passPrevMaxIters = 0; // The max iters value of the previous pass
+	private boolean passUseCache = false; // True if the current pass is a refinement
+	private boolean passDistance = false; // True if the current pass is estimating distances
+	private OrbitStatistic passStatistic = OrbitStatistic.NONE; // What the current pass accumulates over orbits
+	private boolean passPerturbed = false; // True if the current pass is iterating by perturbation
+	private int passEscaped = 0; // Number of pixels which have escaped so far during the current pass
+	private long passNanos = 0; // Time spent so far on the current pass
+	private TileCache.Lattice passLattice = null; // The tile lattice of the current pass, if using the tile cache
+	private boolean[] passTileHits = null; // Which tiles were restored from the tile cache, or null if none
+	
+	/**
+	 * Update state, as the rows of an update can be shared between threads
+	 */
+	private volatile ViewParams updateView = null; // The view of the current update, or null if none
+	private final AtomicInteger nextRow = new AtomicInteger(); // The next row to be claimed by a thread
+	private int updateStartRow = 0; // The pass row when the current update began
+	private long updateStart = 0; // When the current update began, in nanos
+	private volatile long updateDeadline = 0; // When the current update should stop claiming rows
+	
+	/**
+	 * Measurements
+	 */
+	private RenderStats stats = new RenderStats(0, 0, 0, 0, 0, 0, 0, 0); // Measurements of the last update
+	private final KernelCounters counters = new KernelCounters(); // Counts of the current update
+	private final BufferPool pool = new BufferPool(); // Allocates buffers, reusing them when resized
 	
 	private int[] iters = null; // Iteration values
+	private int[] rowMaxIters = null; // The max iters value that each row was last calculated to
+	private boolean[] rowDirty = null; // True for rows which have changed since last cleared
 	private int width, height; // Dimensions
 	
 	/**
@@ -65,229 +128,486 @@ public class Renderer
 	{
 		this.width = width;
 		this.height = height;
+		int npixels = width * height;
 		
-		cacheX = null;
-		cacheY = null;		
-		iters = null;
-	
-		System.gc(); // Since we potentially released a lot of memory
-			
-		// Allocate buffers
-		cacheX = new double[width * height];
-		cacheY = new double[width * height];		
-		iters = new int[width * height];
+		// Reuse the buffers if they are big enough, which they usually are when resizing
+		cacheX = pool.doubles(cacheX, npixels);
+		cacheY = pool.doubles(cacheY, npixels);
+		iters = pool.ints(iters, npixels);
+		rowMaxIters = pool.ints(rowMaxIters, height);
+		rowDirty = pool.booleans(rowDirty, height);
+		
+		// Reused buffers hold values for the old dimensions, so clear anything that could be displayed
+		// before the first pass has reached it
+		Arrays.fill(iters, 0, npixels, 0);
+		Arrays.fill(rowMaxIters, 0, height, 0);
+		Arrays.fill(rowDirty, 0, height, false);
+		
+		// Optional buffers stay allocated once they have been needed
+		if (cacheDX != null)
+			allocateDerivatives();
+		if (orbit != null)
+			allocateOrbit();
+		if (refIters != null)
+			allocateRefIters();
+		createBuffers();
 		cacheValid = false;
+		passLattice = null;
+		passTileHits = null;
 	}
 	
 	/**
-	 * Updates iteration values by refinement
+	 * Allocates the buffers which are only needed for distance estimation
+	 */
+	private void allocateDerivatives()
+	{
+		cacheDX = pool.doubles(cacheDX, width * height);
+		cacheDY = pool.doubles(cacheDY, width * height);
+		distance = pool.floats(distance, width * height);
+		createBuffers();
+	}
+	
+	/**
+	 * Allocates the buffer which is only needed for accumulating orbit statistics
+	 */
+	private void allocateOrbit()
+	{
+		orbit = pool.doubles(orbit, width * height);
+		createBuffers();
+	}
+	
+	/**
+	 * Allocates the buffer which is only needed for iterating by perturbation
+	 */
+	private void allocateRefIters()
+	{
+		refIters = pool.ints(refIters, width * height);
+		createBuffers();
+	}
+	
+	/**
+	 * Creates the buffers passed to kernels from whichever buffers are allocated
+	 */
+	private void createBuffers()
+	{
+		buffers = new KernelBuffers(width, height, cacheX, cacheY, iters, cacheDX, cacheDY, distance, orbit, refIters);
+	}
+	
+	/**
+	 * Gets the orbit statistic which a view's pass accumulates, if its mode colors by one
+	 * and its kernel supports it
+	 */
+	private static OrbitStatistic getStatistic(ViewParams view)
+	{
+		if (!view.getKernel().supportsStatistics())
+			return OrbitStatistic.NONE;
+		else if (view.getMode() == RenderMode.STRIPES)
+			return OrbitStatistic.STRIPES;
+		else if (view.getMode() == RenderMode.ORBIT_TRAP)
+			return OrbitStatistic.TRAP;
+		else
+			return OrbitStatistic.NONE;
+	}
+	
+	/**
+	 * Gets whether the pass of a view iterates by perturbation, once its distance and
+	 * statistic have been decided. This is only done once a view is too deep for its
+	 * pixels to be told apart with doubles.
+	 */
+	private boolean isPerturbed(ViewParams view)
+	{
+		return view.getZoom() >= PERTURBATION_ZOOM && !view.isJulia() && view.getKernel().supportsPerturbation()
+				&& !passDistance && passStatistic == OrbitStatistic.NONE;
+	}
+	
+	/**
+	 * Gets the reference orbit for a pass of a view by perturbation from the cache. The
+	 * reference point is snapped to a grid about the size of the image, so that it stays the
+	 * same as the view is panned or zoomed a little, and is always near enough to it.
+	 */
+	private ReferenceOrbit getReference(ViewParams view, int maxIters)
+	{
+		double grid = Math.scalb(1.0, Math.getExponent(Math.max(width, height) / view.getZoom()));
+		double re = Math.rint(view.getXPos() / grid) * grid;
+		double im = Math.rint(-view.getYPos() / grid) * grid;
+		int precision = PRECISION_STEP * (int)Math.ceil((Math.log10(view.getZoom()) + PRECISION_MARGIN) / PRECISION_STEP);
+		
+		// Pixels are a value ahead of their iteration value before they're rebased, and one
+		// more means that the end of the orbit is only reached if it escaped, so that
+		// rebasing doesn't depend on how far the orbit has been calculated
+		return orbitCache.get(re, im, precision, maxIters + 2);
+	}
+	
+	/**
+	 * Updates iteration values by refinement. Work is done a row at a time so that an
+	 * update is abandoned as soon as a newer view is published, and stops early if the
+	 * frame budget runs out, in which case the next update continues the same pass.
 	 */
 	public void update()
+	{
+		if (beginUpdate())
+			updateRows();
+		endUpdate();
+	}
+	
+	/**
+	 * Begins an update, which must be followed by endUpdate once any calls to updateRows
+	 * have returned. Only updateRows may run on several threads at once.
+	 * @return true if there are rows to update, false if the view has converged
+	 */
+	public boolean beginUpdate()
 	{	
-		// Store the parameters as they may be changed in a separate thread during this render	
-		double thisZoom = zoom;	
-		double thisRe = xpos;
-		double thisIm = ypos;
-		double thisJulRe = juliaX;
-		double thisJulIm = juliaY;
-		boolean useCache = cacheValid;
+		updateStart = System.nanoTime();
+		updateDeadline = (frameBudget > 0) ? updateStart + frameBudget * 1000000L : Long.MAX_VALUE;
 		
-		if (useCache) {	
-			// We haven't moved, so increase the max iters value for more detail
-			maxIters += incIters;					
-		}
-		else {
-			// We have moved, so drop the max iters value to speed up rendering
-			maxIters = minIters;
+		// Take a snapshot of the parameters as they may be changed in a separate thread during this render	
+		ViewParams thisView = view.get();
+		
+		escaped = 0;
+		counters.reset();
+		
+		if (!cacheValid || thisView != passView) {
+			// Keep what we have of the view we're leaving in case it's revisited
+			TileCache cache = tileCache;
+			if (cacheValid && passLattice != null && cache != null)
+				storeTiles(cache);
+			
+			// Derivatives are only tracked if asked for and if the function supports it
+			passDistance = (thisView.getMode() == RenderMode.DISTANCE && thisView.getKernel().supportsDistance());
+			if (passDistance && !buffers.hasDerivatives())
+				allocateDerivatives();
+			passStatistic = getStatistic(thisView);
+			if (passStatistic != OrbitStatistic.NONE && !buffers.hasOrbit())
+				allocateOrbit();
+			passPerturbed = isPerturbed(thisView);
+			if (passPerturbed && !buffers.hasRefIters())
+				allocateRefIters();
+			
+			// We have moved, so drop the max iters value to speed up rendering, unless some of the
+			// new view can be restored from the tile cache in which case the pass starts from there
+			int startIters = minIters;
+			passLattice = (cache != null && !passDistance && passStatistic == OrbitStatistic.NONE && !passPerturbed) ? new TileCache.Lattice(thisView, width, height) : null;
+			passTileHits = null;
+			if (passLattice != null)
+				startIters = Math.max(minIters, restoreTiles(cache));
+			
+			startPass(thisView, false, 0, startIters);
 			cacheValid = true;
+			controller.setInitialIncrement(incIters);
 		}
+		else if (passRow >= height) {
+			// Nothing is left to find at this level of detail so don't waste any more time on it
+			if (controller.isConverged()) {
+				stats = new RenderStats(0, 0, 0, 0, 0, maxIters, pool.getAllocations(), pool.getAllocatedBytes());
+				updateView = null;
+				return false;
+			}
 			
-		switch (func) {
-			case MANDELBROT:
-				iterateZ2(useCache, false, thisZoom, thisRe, thisIm, 0, 0);
-				break;	
-			case MANDELBROT_3:
-				iterateZ3(useCache, false, thisZoom, thisRe, thisIm, 0, 0);
+			// We haven't moved, so increase the max iters value for more detail
+			startPass(thisView, true, maxIters, maxIters + controller.getIncrement());
+		}
+		
+		updateView = thisView;
+		updateStartRow = passRow;
+		nextRow.set(passRow);
+		return true;
+	}
+	
+	/**
+	 * Updates rows of the current update until none are left, the view changes or the
+	 * frame budget runs out. Any number of threads may call this at once during an update,
+	 * and each row is claimed by only one of them.
+	 */
+	public void updateRows()
+	{
+		ViewParams thisView = updateView;
+		if (thisView == null)
+			return;
+		
+		Kernel kernel = thisView.getKernel();
+		KernelCounters rowCounters = new KernelCounters();
+		
+		while (true) {
+			// Abandon this pass if it's already out of date
+			if (view.get() != thisView)
 				break;
-			case MANDELBROT_4:
-				iterateZ4(useCache, false, thisZoom, thisRe, thisIm, 0, 0);
-				break;				
-			case JULIA:
-				iterateZ2(useCache, true, thisZoom, thisRe, thisIm, thisJulRe, thisJulIm);
+			
+			// Always do at least one row so that a pass makes progress however tight the budget
+			if (System.nanoTime() >= updateDeadline && nextRow.get() > updateStartRow)
 				break;
-			case JULIA_3:
-				iterateZ3(useCache, true, thisZoom, thisRe, thisIm, thisJulRe, thisJulIm);
+			
+			int y = nextRow.getAndIncrement();
+			if (y >= height)
 				break;
-			case JULIA_4:
-				iterateZ4(useCache, true, thisZoom, thisRe, thisIm, thisJulRe, thisJulIm);
-				break;																				
-		}						
+			
+			int prevEscaped = rowCounters.getEscaped();
+			if (passTileHits != null && !passUseCache)
+				iterateRestoredRow(kernel, y, rowCounters);
+			else
+				kernel.iterate(pass, buffers, y, 0, width, passUseCache, rowCounters);
+			
+			// A refinement only changes how a row looks if some of its pixels escaped, as pixels
+			// still in the set look the same whatever their iteration value
+			if (!passUseCache || rowCounters.getEscaped() > prevEscaped)
+				rowDirty[y] = true;
+			
+			rowMaxIters[y] = maxIters;
+		}
+		
+		synchronized (counters) {
+			counters.add(rowCounters.getEscaped(), rowCounters.getIterations());
+		}
 	}
 	
 	/**
-	 * Calculates the standard z = z^2 + c mandelbrot/julia sets
+	 * Ends an update once all calls to updateRows have returned
 	 */
-	private void iterateZ2(boolean useCache, boolean julia, double zoom, double re, double im, double jr, double ji)
+	public void endUpdate()
 	{
-		int halfCX = width / 2;
-		int halfCY = height / 2;
-				
-		for (int y = 0, index = 0; y < height; ++y) {
-			for (int x = 0; x < width; ++x, ++index) {
-				double zr, zi, cr, ci;
-				int niters;
-				
-				// Convert from pixel space to complex space
-				cr = (x - halfCX) / zoom + re;
-				ci = (y - halfCY) / zoom - im;				
-				
-				if (useCache) {
-					// Load X, Y and ITERS from cache if refinement
-					zr = cacheX[index];
-					zi = cacheY[index];		
-					niters = iters[index];
-				}
-				else {
-					zr = cr;
-					zi = ci;
-					niters = 0;
-				}
-				if (julia) {
-					cr = jr;
-					ci = ji;
-				}	
-				
-				// Precalculate squares
-				double zr2 = zr * zr;
-				double zi2 = zi * zi;
-				
-				// Iterate z = z^2 + c
-				while ((zr2 + zi2 < 4) && niters < maxIters) {
-					zi = 2 * zr * zi + ci;
-					zr = zr2 - zi2 + cr;
-					zr2 = zr * zr;
-					zi2 = zi * zi;
-					++niters;
-				}
-				
-				// Store X, Y and ITERS in cache for next frame which maybe a refinement
-				cacheX[index] = zr;
-				cacheY[index] = zi;		
-				iters[index] = niters;
-			}
+		if (updateView == null)
+			return;
+		updateView = null;
+		
+		// Rows are claimed in order and every claimed row is finished, so the pass has reached
+		// the next unclaimed row
+		passRow = Math.min(height, nextRow.get());
+		
+		int sliceEscaped = counters.getEscaped();
+		long sliceNanos = System.nanoTime() - updateStart;
+		
+		escaped = sliceEscaped;
+		passEscaped += sliceEscaped;
+		passNanos += sliceNanos;
+		stats = new RenderStats(sliceNanos, 0, (long)(passRow - updateStartRow) * width, counters.getIterations(), sliceEscaped, maxIters, pool.getAllocations(), pool.getAllocatedBytes());
+		
+		// Only refinement passes tell the controller anything about the increment
+		if (passRow >= height && passUseCache)
+			controller.passCompleted(passEscaped, passNanos);
+	}
+	
+	/**
+	 * Iterates a row of the first pass of a view which was partly restored from the tile
+	 * cache, resuming the restored pixels and starting the others from scratch
+	 */
+	private void iterateRestoredRow(Kernel kernel, int y, KernelCounters counters)
+	{
+		int row = passLattice.getRow(y);
+		int x0 = 0;
+		while (x0 < width) {
+			int col = passLattice.getCol(x0);
+			boolean restored = passTileHits[row * passLattice.getCols() + col];
+			
+			// Extend the span over following tiles which were restored or not in the same way
+			int x1 = Math.min(width, passLattice.getTileLeft(col) + TileCache.TILE_SIZE);
+			while (x1 < width && passTileHits[row * passLattice.getCols() + passLattice.getCol(x1)] == restored)
+				x1 = Math.min(width, x1 + TileCache.TILE_SIZE);
+			
+			kernel.iterate(pass, buffers, y, x0, x1, restored, counters);
+			x0 = x1;
 		}
 	}
 	
 	/**
-	 * Calculates the z = z^3 + c mandelbrot/julia sets
+	 * Restores the tiles of the new view which are in the tile cache
+	 * @return the largest max iteration value of the restored tiles, or zero if none
 	 */
-	private void iterateZ3(boolean useCache, boolean julia, double zoom, double re, double im, double jr, double ji)
+	private int restoreTiles(TileCache cache)
 	{
-		int halfCX = width / 2;
-		int halfCY = height / 2;
-				
-		for (int y = 0, index = 0; y < height; ++y) {
-			for (int x = 0; x < width; ++x, ++index) {
-				double zr, zi, cr, ci;
-				int niters;
-				
-				// Convert from pixel space to complex space
-				cr = (x - halfCX) / zoom + re;
-				ci = (y - halfCY) / zoom - im;				
-				
-				if (useCache) {
-					// Load X, Y and ITERS from cache if refinement
-					zr = cacheX[index];
-					zi = cacheY[index];		
-					niters = iters[index];
-				}
-				else {
-					zr = cr;
-					zi = ci;
-					niters = 0;
-				}
-				if (julia) {
-					cr = jr;
-					ci = ji;
-				}	
-				
-				// Precalculate squares
-				double zr2 = zr * zr;
-				double zi2 = zi * zi;
+		int cols = passLattice.getCols(), rows = passLattice.getRows();
+		boolean[] hits = new boolean[cols * rows];
+		int restoredMaxIters = 0;
+		
+		for (int row = 0; row < rows; ++row) {
+			for (int col = 0; col < cols; ++col) {
+				TileCache.Tile tile = cache.get(passLattice.getKey(col, row));
+				if (tile == null)
+					continue;
 				
-				// Iterate z = z^3 + c
-				while ((zr2 + zi2 < 4) && niters < maxIters) {
-					zi = zi * (3 * zr2 - zi2) + ci;
-					zr = zr * (zr2 - 3 * zi2) + cr;
-					
-					zr2 = zr * zr;
-					zi2 = zi * zi;
-					++niters;
+				// Copy the part of the tile which is inside the image
+				int left = passLattice.getTileLeft(col), top = passLattice.getTileTop(row);
+				int x0 = Math.max(0, left), x1 = Math.min(width, left + TileCache.TILE_SIZE);
+				int y0 = Math.max(0, top), y1 = Math.min(height, top + TileCache.TILE_SIZE);
+				for (int y = y0; y < y1; ++y) {
+					int src = (y - top) * TileCache.TILE_SIZE + (x0 - left);
+					int dst = y * width + x0;
+					System.arraycopy(tile.getIters(), src, iters, dst, x1 - x0);
+					System.arraycopy(tile.getZX(), src, cacheX, dst, x1 - x0);
+					System.arraycopy(tile.getZY(), src, cacheY, dst, x1 - x0);
 				}
-				
-				// Store X, Y and ITERS in cache for next frame which maybe a refinement
-				cacheX[index] = zr;
-				cacheY[index] = zi;		
-				iters[index] = niters;
+				hits[row * cols + col] = true;
+				restoredMaxIters = Math.max(restoredMaxIters, tile.getMaxIters());
 			}
 		}
+		
+		passTileHits = (restoredMaxIters > 0) ? hits : null;
+		return restoredMaxIters;
 	}
 	
 	/**
-	 * Calculates the z = z^4 + c mandelbrot/julia sets
+	 * Stores the complete tiles of the current pass in the tile cache. Rows the pass hasn't
+	 * reached yet are still at the previous pass's max iters value, unless this is the first
+	 * pass in which case they belong to another view. Tiles are only stored if all of their
+	 * rows are at the same max iters value, and if that is more than a cached copy's.
 	 */
-	private void iterateZ4(boolean useCache, boolean julia, double zoom, double re, double im, double jr, double ji)
+	private void storeTiles(TileCache cache)
 	{
-		int halfCX = width / 2;
-		int halfCY = height / 2;
-				
-		for (int y = 0, index = 0; y < height; ++y) {
-			for (int x = 0; x < width; ++x, ++index) {
-				double zr, zi, cr, ci;
-				int niters;
-				
-				// Convert from pixel space to complex space
-				cr = (x - halfCX) / zoom + re;
-				ci = (y - halfCY) / zoom - im;				
-				
-				if (useCache) {
-					// Load X, Y and ITERS from cache if refinement
-					zr = cacheX[index];
-					zi = cacheY[index];		
-					niters = iters[index];
-				}
-				else {
-					zr = cr;
-					zi = ci;
-					niters = 0;
-				}
-				if (julia) {
-					cr = jr;
-					ci = ji;
-				}	
+		int cols = passLattice.getCols(), rows = passLattice.getRows();
+		int size = TileCache.TILE_SIZE;
+		
+		for (int row = 0; row < rows; ++row) {
+			int top = passLattice.getTileTop(row);
+			if (top < 0 || top + size > height)
+				continue;
+			
+			int tileMaxIters;
+			if (top + size <= passRow)
+				tileMaxIters = maxIters;
+			else if (top >= passRow && passUseCache)
+				tileMaxIters = passPrevMaxIters;
+			else
+				continue;
+			
+			for (int col = 0; col < cols; ++col) {
+				int left = passLattice.getTileLeft(col);
+				if (left < 0 || left + size > width)
+					continue;
 				
-				// Precalculate squares
-				double zr2 = zr * zr;
-				double zi2 = zi * zi;
+				TileCache.Key key = passLattice.getKey(col, row);
+				if (cache.getMaxIters(key) >= tileMaxIters)
+					continue;
 				
-				// Iterate z = z^4 + c
-				while ((zr2 + zi2 < 4) && niters < maxIters) {
-					zi = 4 * zr * zi * (zr2 - zi2) + ci;
-					zr = zr2 * zr2 - 6 * zr2 * zi2 + zi2 * zi2 + cr;
-					
-					zr2 = zr * zr;
-					zi2 = zi * zi;
-					++niters;
+				int[] tileIters = new int[size * size];
+				double[] tileZX = new double[size * size], tileZY = new double[size * size];
+				for (int y = 0; y < size; ++y) {
+					int src = (top + y) * width + left;
+					System.arraycopy(iters, src, tileIters, y * size, size);
+					System.arraycopy(cacheX, src, tileZX, y * size, size);
+					System.arraycopy(cacheY, src, tileZY, y * size, size);
 				}
-				
-				// Store X, Y and ITERS in cache for next frame which maybe a refinement
-				cacheX[index] = zr;
-				cacheY[index] = zi;		
-				iters[index] = niters;
+				cache.put(key, new TileCache.Tile(tileMaxIters, tileIters, tileZX, tileZY));
 			}
 		}
 	}
 	
+	/**
+	 * Starts a new pass over all rows
+	 */
+	private void startPass(ViewParams view, boolean useCache, int prevMaxIters, int maxIters)
+	{
+		this.passView = view;
+		this.passUseCache = useCache;
+		this.passPrevMaxIters = prevMaxIters;
+		this.maxIters = maxIters;
+		ReferenceOrbit reference = passPerturbed ? getReference(view, maxIters) : null;
+		this.pass = new KernelPass(width, height, view.getZoom(), view.getXPos(), view.getYPos(), view.isJulia(), view.getJuliaX(), view.getJuliaY(), maxIters, prevMaxIters, passDistance, view.getBailout(),
+				passStatistic, reference);
+		passRow = 0;
+		passEscaped = 0;
+		passNanos = 0;
+	}
+	
+	/**
+	 * Takes a snapshot of the refinement state, from which rendering can be resumed
+	 * exactly. This copies the buffers so must be called between updates, i.e. on the
+	 * thread which calls update.
+	 * @return the checkpoint
+	 * @throws IllegalStateException if nothing has been rendered yet
+	 */
+	public RenderCheckpoint createCheckpoint()
+	{
+		if (!cacheValid || passView == null)
+			throw new IllegalStateException("Nothing has been rendered");
+		
+		// Buffers can be longer than the image so only its part is copied
+		int npixels = width * height;
+		double[] dx = passDistance ? Arrays.copyOf(cacheDX, npixels) : null;
+		double[] dy = passDistance ? Arrays.copyOf(cacheDY, npixels) : null;
+		float[] dist = passDistance ? Arrays.copyOf(distance, npixels) : null;
+		double[] orb = (passStatistic != OrbitStatistic.NONE) ? Arrays.copyOf(orbit, npixels) : null;
+		int[] ref = passPerturbed ? Arrays.copyOf(refIters, npixels) : null;
+		
+		return new RenderCheckpoint(width, height, passView, maxIters, passPrevMaxIters, passRow, passEscaped, passNanos, passUseCache,
+				controller.getIncrement(), controller.getIdlePasses(), Arrays.copyOf(iters, npixels), Arrays.copyOf(rowMaxIters, height),
+				Arrays.copyOf(cacheX, npixels), Arrays.copyOf(cacheY, npixels), dx, dy, dist, orb, ref);
+	}
+	
+	/**
+	 * Restores the refinement state from a checkpoint, replacing the current view, so
+	 * that the next update continues exactly where the checkpointed renderer left off.
+	 * Like update, this must be called on the thread which calls update.
+	 * @param checkpoint the checkpoint
+	 */
+	public void restore(RenderCheckpoint checkpoint)
+	{
+		if (checkpoint.getWidth() != width || checkpoint.getHeight() != height)
+			initialize(checkpoint.getWidth(), checkpoint.getHeight());
+		
+		ViewParams restored = checkpoint.getView();
+		view.set(restored);
+		
+		passDistance = (checkpoint.getDX() != null);
+		if (passDistance && !buffers.hasDerivatives())
+			allocateDerivatives();
+		passStatistic = (checkpoint.getOrbit() != null) ? getStatistic(restored) : OrbitStatistic.NONE;
+		if (passStatistic != OrbitStatistic.NONE && !buffers.hasOrbit())
+			allocateOrbit();
+		passPerturbed = (checkpoint.getRefIters() != null);
+		if (passPerturbed && !buffers.hasRefIters())
+			allocateRefIters();
+		
+		startPass(restored, checkpoint.isRefinement(), checkpoint.getPrevMaxIters(), checkpoint.getMaxIters());
+		passLattice = (tileCache != null && !passDistance && passStatistic == OrbitStatistic.NONE && !passPerturbed) ? new TileCache.Lattice(restored, width, height) : null;
+		passTileHits = null;
+		passRow = checkpoint.getPassRow();
+		passEscaped = checkpoint.getPassEscaped();
+		passNanos = checkpoint.getPassNanos();
+		
+		int npixels = width * height;
+		System.arraycopy(checkpoint.getIters(), 0, iters, 0, npixels);
+		System.arraycopy(checkpoint.getRowMaxIters(), 0, rowMaxIters, 0, height);
+		System.arraycopy(checkpoint.getZX(), 0, cacheX, 0, npixels);
+		System.arraycopy(checkpoint.getZY(), 0, cacheY, 0, npixels);
+		if (passDistance) {
+			System.arraycopy(checkpoint.getDX(), 0, cacheDX, 0, npixels);
+			System.arraycopy(checkpoint.getDY(), 0, cacheDY, 0, npixels);
+			System.arraycopy(checkpoint.getDistance(), 0, distance, 0, npixels);
+		}
+		if (passStatistic != OrbitStatistic.NONE)
+			System.arraycopy(checkpoint.getOrbit(), 0, orbit, 0, npixels);
+		if (passPerturbed)
+			System.arraycopy(checkpoint.getRefIters(), 0, refIters, 0, npixels);
+		
+		controller.setInitialIncrement(incIters);
+		controller.restore(checkpoint.getIncrement(), checkpoint.getIdlePasses());
+		
+		for (int row = 0; row < height; ++row)
+			rowDirty[row] = true;
+		cacheValid = true;
+		escaped = 0;
+	}
+	
+	/**
+	 * Calculates the iteration value of any point in pixel space without touching the cache,
+	 * e.g. for supersampling. This iterates in doubles so doesn't match passes by perturbation.
+	 * @param x the X coord in pixels
+	 * @param y the Y coord in pixels
+	 * @param maxIters the max number of iterations to perform
+	 * @return the iteration value
+	 */
+	public int sample(double x, double y, int maxIters)
+	{
+		// Use the view which the cache was calculated for so that samples match it
+		ViewParams thisView = (passView != null) ? passView : view.get();
+		double zoom = thisView.getZoom();
+		double zr = (x - width / 2) / zoom + thisView.getXPos();
+		double zi = (y - height / 2) / zoom - thisView.getYPos();
+		
+		if (thisView.isJulia())
+			return thisView.getKernel().iteratePoint(zr, zi, thisView.getJuliaX(), thisView.getJuliaY(), maxIters, thisView.getBailout());
+		else
+			return thisView.getKernel().iteratePoint(zr, zi, zr, zi, maxIters, thisView.getBailout());
+	}
+	
 	/**
 	 * Calculates a histogram of iteration values that can be used for 
 	 * auto-scaling the palette
@@ -322,7 +642,7 @@ public class Renderer
 	}		
 	
 	/**
-	 * Gets the iteration value buffer
+	 * Gets the iteration value buffer, which can be longer than width * height
 	 */	
 	public int[] getIterBuffer()
 	{
@@ -337,12 +657,118 @@ public class Renderer
 		return maxIters;
 	}	
 	
+	/**
+	 * Gets the number of pixels which escaped during the last update
+	 */
+	public int getEscapedCount()
+	{
+		return escaped;
+	}
+	
+	/**
+	 * Gets the measurements of the last update
+	 */
+	public RenderStats getStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * Gets whether refinement has stopped finding new escaping pixels, in which case
+	 * updates do nothing until the view changes
+	 */
+	public boolean isConverged()
+	{
+		return cacheValid && view.get() == passView && passRow >= height && controller.isConverged();
+	}
+	
+	/**
+	 * Gets whether the current pass is estimating distances, in which case the distance
+	 * buffer holds the distance of each escaped pixel to the set
+	 */
+	public boolean isDistancePass()
+	{
+		return passDistance;
+	}
+	
+	/**
+	 * Gets whether the current pass iterates by perturbation, in which case pixels can't be
+	 * sampled in between as sample only iterates in doubles
+	 */
+	public boolean isPerturbedPass()
+	{
+		return passPerturbed;
+	}
+	
+	/**
+	 * Gets the estimated distance of each escaped pixel to the set in complex space, or
+	 * null if distances have never been estimated
+	 */
+	public float[] getDistanceBuffer()
+	{
+		return distance;
+	}
+	
+	/**
+	 * Gets the orbit statistic which the current pass is accumulating, in which case the
+	 * orbit buffer holds it for each pixel
+	 */
+	public OrbitStatistic getStatistic()
+	{
+		return passStatistic;
+	}
+	
+	/**
+	 * Gets the orbit statistic of each pixel, as described by OrbitStatistic, or null if
+	 * statistics have never been accumulated
+	 */
+	public double[] getOrbitBuffer()
+	{
+		return orbit;
+	}
+	
+	/**
+	 * Gets the max iteration value that each row was last calculated to. This can differ
+	 * from the max iteration value if a pass is still in progress.
+	 */
+	public int[] getRowMaxIters()
+	{
+		return rowMaxIters;
+	}
+	
+	/**
+	 * Gets the flags of which rows have changed since they were last cleared. Whoever
+	 * displays the iteration values should clear the flags of the rows it has redrawn.
+	 */
+	public boolean[] getDirtyRows()
+	{
+		return rowDirty;
+	}
+	
+	/**
+	 * Gets whether the last update completed a pass over the whole image
+	 */
+	public boolean isPassComplete()
+	{
+		return passRow >= height;
+	}
+	
+	/**
+	 * Gets the current view parameters
+	 */
+	public ViewParams getView()
+	{
+		return view.get();
+	}
+	
 	/**
 	 * Gets the iteration function
+	 * @return the function, or null if the kernel isn't one of the preset functions
 	 */		
 	public Function getFunction()
 	{
-		return func;
+		ViewParams current = view.get();
+		return Function.forKernel(current.getKernel(), current.isJulia());
 	}
 	
 	/**
@@ -350,8 +776,72 @@ public class Renderer
 	 */	
 	public void setFunction(Function func)
 	{
-		cacheValid = false;
-		this.func = func;
+		setKernel(func.getKernel(), func.isJulia());
+	}
+	
+	/**
+	 * Gets the kernel which iterates the function
+	 */
+	public Kernel getKernel()
+	{
+		return view.get().getKernel();
+	}
+	
+	/**
+	 * Sets the kernel which iterates the function
+	 * @param kernel the kernel
+	 * @param julia true to generate a Julia set, false for a Mandelbrot set
+	 */
+	public void setKernel(Kernel kernel, boolean julia)
+	{
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withKernel(kernel, julia)));
+	}
+	
+	/**
+	 * Gets the render mode
+	 */
+	public RenderMode getMode()
+	{
+		return view.get().getMode();
+	}
+	
+	/**
+	 * Sets the render mode. Distances are only estimated if the kernel supports it,
+	 * otherwise iteration values are calculated as normal.
+	 */
+	public void setMode(RenderMode mode)
+	{
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withMode(mode)));
+	}
+	
+	/**
+	 * Gets the bailout radius
+	 */
+	public double getBailout()
+	{
+		return view.get().getBailout();
+	}
+	
+	/**
+	 * Sets the bailout radius, beyond which a point is considered to have escaped. Larger
+	 * radii give smoother continuous coloring.
+	 * @param bailout the radius, which must be at least 2
+	 */
+	public void setBailout(double bailout)
+	{
+		if (!(bailout >= Kernel.DEF_BAILOUT))
+			throw new IllegalArgumentException("Bailout radius must be at least " + Kernel.DEF_BAILOUT);
+		
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withBailout(bailout)));
 	}
 	
 	/**
@@ -359,7 +849,7 @@ public class Renderer
 	 */
 	public double getZoom()
 	{
-		return zoom;		
+		return view.get().getZoom();		
 	}
 		
 	/**
@@ -367,8 +857,10 @@ public class Renderer
 	 */
 	public void setZoom(double zoom)
 	{
-		cacheValid = false;
-		this.zoom = zoom;			
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withZoom(zoom)));
 	}	
 	
 	/**
@@ -376,7 +868,7 @@ public class Renderer
 	 */	
 	public double getXPos()
 	{
-		return xpos;		
+		return view.get().getXPos();		
 	}
 	
 	/**
@@ -384,7 +876,7 @@ public class Renderer
 	 */	
 	public double getYPos()
 	{
-		return ypos;		
+		return view.get().getYPos();		
 	}
 		
 	/**
@@ -392,9 +884,21 @@ public class Renderer
 	 */
 	public void setCoords(double x, double y)
 	{
-		cacheValid = false;
-		this.xpos = x;
-		this.ypos = y;		
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withCoords(x, y)));
+	}
+	
+	/**
+	 * Sets the zoom value and coords for fractal generation as a single change
+	 */
+	public void setCoords(double zoom, double x, double y)
+	{
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withCoords(zoom, x, y)));
 	}
 		
 	/**
@@ -403,16 +907,60 @@ public class Renderer
 	public void setIterParams(int minIters, int incIters)
 	{
 		this.minIters = minIters;
-		this.incIters = incIters;							
-	}	
+		this.incIters = incIters;
+	}
+	
+	/**
+	 * Sets the cache of tiles of previous views, which may be shared with other renderers,
+	 * or null for none. This takes effect from the next change of view.
+	 */
+	public void setTileCache(TileCache cache)
+	{
+		tileCache = cache;
+	}
+	
+	/**
+	 * Gets the cache of reference orbits for deep views
+	 */
+	public ReferenceOrbitCache getOrbitCache()
+	{
+		return orbitCache;
+	}
+	
+	/**
+	 * Sets the cache of reference orbits for deep views, which may be shared with other
+	 * renderers. This takes effect from the next change of view.
+	 */
+	public void setOrbitCache(ReferenceOrbitCache cache)
+	{
+		orbitCache = cache;
+	}
+	
+	/**
+	 * Sets the time that a refinement pass should take, which the iterations
+	 * increment is adapted to
+	 */
+	public void setTargetFrameMillis(int millis)
+	{
+		controller.setTargetMillis(millis);
+	}
+	
+	/**
+	 * Sets the max time that an update may take, or zero for no limit
+	 */
+	public void setFrameBudget(int millis)
+	{
+		frameBudget = millis;
+	}
 
 	/**
 	 * Sets the coords for Julia set generation
 	 */
 	public void setJuliaCoords(double x, double y)
 	{
-		cacheValid = false;
-		juliaX = x;
-		juliaY = y;	
+		ViewParams current;
+		do {
+			current = view.get();
+		} while (!view.compareAndSet(current, current.withJuliaCoords(x, y)));
 	}	
 }
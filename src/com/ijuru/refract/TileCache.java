@@ -0,0 +1,310 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of tiles of previously rendered views, from which a renderer can
+ * restore the parts of a new view that it has already seen, e.g. when zooming back out
+ * or panning back. Every zoom level has its own lattice of pixels in complex space, and
+ * tiles are squares of that lattice, so a tile is found again whenever a view at the
+ * same zoom level puts its pixels on the same lattice points. This is the case after
+ * panning by whole pixels, which is what dragging and the arrow keys do, and after
+ * zooming in and back out again by the same factor. Tiles which haven't been used for
+ * longest are evicted once the cache exceeds its budget. The cache may be shared by
+ * several renderers.
+ */
+public class TileCache
+{
+	public static final int TILE_SIZE = 64;
+	
+	private static final int PHASE_STEPS = 1000;	// Lattices are the same if offset by less than 1/PHASE_STEPS of a pixel
+	private static final double LEVEL_STEPS = 1e9;	// Zoom levels are the same if they differ by less than a factor of 1 + 1/LEVEL_STEPS
+	private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 20 + 128; // Approx size of a tile including overheads
+	
+	private final long budget; // Max bytes of tiles to keep
+	private final LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<Key, Tile>(64, 0.75f, true);
+	private long hits = 0, misses = 0;
+	
+	/**
+	 * Constructor
+	 * @param budget the max number of bytes of tiles to keep
+	 */
+	public TileCache(long budget)
+	{
+		this.budget = budget;
+	}
+	
+	/**
+	 * Gets a tile
+	 * @return the tile, or null if it isn't cached
+	 */
+	synchronized Tile get(Key key)
+	{
+		Tile tile = tiles.get(key);
+		if (tile != null)
+			++hits;
+		else
+			++misses;
+		return tile;
+	}
+	
+	/**
+	 * Gets the max iteration value that a tile is cached with, without counting as a hit or miss
+	 * @return the max iteration value, or zero if it isn't cached
+	 */
+	synchronized int getMaxIters(Key key)
+	{
+		Tile tile = tiles.get(key);
+		return (tile != null) ? tile.getMaxIters() : 0;
+	}
+	
+	/**
+	 * Puts a tile, replacing any with the same key, and evicts the least recently used
+	 * tiles if the cache is over budget
+	 */
+	synchronized void put(Key key, Tile tile)
+	{
+		tiles.put(key, tile);
+		
+		Iterator<Map.Entry<Key, Tile>> iter = tiles.entrySet().iterator();
+		while ((long)tiles.size() * TILE_BYTES > budget && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	/**
+	 * Removes all tiles
+	 */
+	public synchronized void clear()
+	{
+		tiles.clear();
+	}
+	
+	/**
+	 * Gets the number of cached tiles
+	 */
+	public synchronized int getTileCount()
+	{
+		return tiles.size();
+	}
+	
+	/**
+	 * Gets the approx number of bytes of cached tiles
+	 */
+	public synchronized long getBytes()
+	{
+		return (long)tiles.size() * TILE_BYTES;
+	}
+	
+	/**
+	 * Gets the number of lookups which found a tile
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	/**
+	 * Gets the number of lookups which didn't find a tile
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * The lattice of tiles that a view's pixels lie on, and which of its tiles cover an
+	 * image of the view
+	 */
+	static final class Lattice
+	{
+		private final String kernelId;
+		private final boolean julia;
+		private final long juliaX, juliaY; // Bits of the Julia coords, if a Julia set
+		private final long bailout; // Bits of the bailout radius
+		private final long level; // Quantized log of the zoom
+		private final int phaseX, phaseY; // Quantized sub-pixel offsets of the lattice
+		private final long offsetX, offsetY; // Lattice coords of the top left pixel
+		private final long tileX, tileY; // Tile coords of the top left tile
+		private final int cols, rows; // Number of tiles which cover the image
+		
+		/**
+		 * Constructor
+		 * @param view the view
+		 * @param width the width of the image
+		 * @param height the height of the image
+		 */
+		public Lattice(ViewParams view, int width, int height)
+		{
+			this.kernelId = view.getKernel().getId();
+			this.julia = view.isJulia();
+			this.juliaX = julia ? Double.doubleToLongBits(view.getJuliaX()) : 0;
+			this.juliaY = julia ? Double.doubleToLongBits(view.getJuliaY()) : 0;
+			this.bailout = Double.doubleToLongBits(view.getBailout());
+			this.level = Math.round(Math.log(view.getZoom()) * LEVEL_STEPS);
+			
+			// Kernels map pixel x to Real(c) = (x - width / 2) / zoom + xpos, so x is lattice point
+			// x - width / 2 + xpos * zoom, and likewise for y
+			double fx = view.getXPos() * view.getZoom();
+			double fy = -view.getYPos() * view.getZoom();
+			long px = Math.round(fx * PHASE_STEPS), py = Math.round(fy * PHASE_STEPS);
+			this.phaseX = (int)Math.floorMod(px, (long)PHASE_STEPS);
+			this.phaseY = (int)Math.floorMod(py, (long)PHASE_STEPS);
+			this.offsetX = Math.floorDiv(px, (long)PHASE_STEPS) - width / 2;
+			this.offsetY = Math.floorDiv(py, (long)PHASE_STEPS) - height / 2;
+			
+			this.tileX = Math.floorDiv(offsetX, (long)TILE_SIZE);
+			this.tileY = Math.floorDiv(offsetY, (long)TILE_SIZE);
+			this.cols = (int)(Math.floorDiv(offsetX + width - 1, (long)TILE_SIZE) - tileX + 1);
+			this.rows = (int)(Math.floorDiv(offsetY + height - 1, (long)TILE_SIZE) - tileY + 1);
+		}
+		
+		/**
+		 * Gets the key of one of the tiles which cover the image
+		 * @param col the column of the tile
+		 * @param row the row of the tile
+		 */
+		public Key getKey(int col, int row)
+		{
+			return new Key(this, tileX + col, tileY + row);
+		}
+		
+		/**
+		 * Gets the image X coord of the left edge of a column of tiles, which can be negative
+		 */
+		public int getTileLeft(int col)
+		{
+			return (int)((tileX + col) * TILE_SIZE - offsetX);
+		}
+		
+		/**
+		 * Gets the image Y coord of the top edge of a row of tiles, which can be negative
+		 */
+		public int getTileTop(int row)
+		{
+			return (int)((tileY + row) * TILE_SIZE - offsetY);
+		}
+		
+		/**
+		 * Gets the column of the tile which covers an image X coord
+		 */
+		public int getCol(int x)
+		{
+			return (int)(Math.floorDiv(offsetX + x, (long)TILE_SIZE) - tileX);
+		}
+		
+		/**
+		 * Gets the row of the tile which covers an image Y coord
+		 */
+		public int getRow(int y)
+		{
+			return (int)(Math.floorDiv(offsetY + y, (long)TILE_SIZE) - tileY);
+		}
+		
+		public int getCols()
+		{
+			return cols;
+		}
+		
+		public int getRows()
+		{
+			return rows;
+		}
+	}
+	
+	/**
+	 * Identifies a tile of a lattice
+	 */
+	static final class Key
+	{
+		private final Lattice lattice;
+		private final long x, y; // Tile coords
+		
+		public Key(Lattice lattice, long x, long y)
+		{
+			this.lattice = lattice;
+			this.x = x;
+			this.y = y;
+		}
+		
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			
+			Key other = (Key)obj;
+			Lattice a = lattice, b = other.lattice;
+			return x == other.x && y == other.y && a.level == b.level && a.phaseX == b.phaseX && a.phaseY == b.phaseY
+					&& a.julia == b.julia && a.juliaX == b.juliaX && a.juliaY == b.juliaY && a.bailout == b.bailout && a.kernelId.equals(b.kernelId);
+		}
+		
+		public int hashCode()
+		{
+			long hash = x * 31 + y;
+			hash = hash * 31 + lattice.level;
+			hash = hash * 31 + lattice.phaseX * 1009 + lattice.phaseY;
+			hash = hash * 31 + lattice.juliaX + lattice.juliaY + lattice.bailout;
+			return (int)(hash ^ (hash >>> 32)) * 31 + lattice.kernelId.hashCode();
+		}
+	}
+	
+	/**
+	 * The iteration and Z values of a complete tile
+	 */
+	static final class Tile
+	{
+		private final int maxIters; // The max iteration value the tile was calculated to
+		private final int[] iters;
+		private final double[] zx, zy;
+		
+		public Tile(int maxIters, int[] iters, double[] zx, double[] zy)
+		{
+			this.maxIters = maxIters;
+			this.iters = iters;
+			this.zx = zx;
+			this.zy = zy;
+		}
+		
+		public int getMaxIters()
+		{
+			return maxIters;
+		}
+		
+		public int[] getIters()
+		{
+			return iters;
+		}
+		
+		public double[] getZX()
+		{
+			return zx;
+		}
+		
+		public double[] getZY()
+		{
+			return zy;
+		}
+	}
+}
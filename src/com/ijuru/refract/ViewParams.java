@@ -0,0 +1,191 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract;
+
+import com.ijuru.refract.kernel.Kernel;
+
+/**
+ * Immutable snapshot of the parameters which define a fractal view. Every change
+ * creates a new snapshot, so a renderer can tell if the view it is rendering is out of
+ * date by comparing it with the current snapshot by identity.
+ */
+public final class ViewParams
+{
+	private final Kernel kernel; // Kernel which iterates the function
+	private final boolean julia; // True for a Julia set, false for a Mandelbrot set
+	private final RenderMode mode; // What is calculated for each pixel
+	private final double zoom; // Zoom factor for pixel space -> complex space mapping
+	private final double xpos; // X(j) offset in complex space
+	private final double ypos; // Y(i) offset in complex space
+	private final double juliaX, juliaY; // Coords for Julia set generation
+	private final double bailout; // Radius beyond which a point has escaped
+
+	/**
+	 * Constructor
+	 */
+	public ViewParams(Kernel kernel, boolean julia, double zoom, double xpos, double ypos, double juliaX, double juliaY)
+	{
+		this(kernel, julia, RenderMode.ITERATIONS, zoom, xpos, ypos, juliaX, juliaY, Kernel.DEF_BAILOUT);
+	}
+
+	/**
+	 * Constructor
+	 */
+	private ViewParams(Kernel kernel, boolean julia, RenderMode mode, double zoom, double xpos, double ypos, double juliaX, double juliaY, double bailout)
+	{
+		this.kernel = kernel;
+		this.julia = julia;
+		this.mode = mode;
+		this.zoom = zoom;
+		this.xpos = xpos;
+		this.ypos = ypos;
+		this.juliaX = juliaX;
+		this.juliaY = juliaY;
+		this.bailout = bailout;
+	}
+
+	/**
+	 * Creates a copy of this view with a different function
+	 */
+	public ViewParams withKernel(Kernel kernel, boolean julia)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Creates a copy of this view with a different render mode
+	 */
+	public ViewParams withMode(RenderMode mode)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Creates a copy of this view with a different zoom value
+	 */
+	public ViewParams withZoom(double zoom)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Creates a copy of this view with different coords
+	 */
+	public ViewParams withCoords(double xpos, double ypos)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Creates a copy of this view with a different zoom value and coords
+	 */
+	public ViewParams withCoords(double zoom, double xpos, double ypos)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Creates a copy of this view with different Julia set coords
+	 */
+	public ViewParams withJuliaCoords(double juliaX, double juliaY)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Creates a copy of this view with a different bailout radius
+	 */
+	public ViewParams withBailout(double bailout)
+	{
+		return new ViewParams(kernel, julia, mode, zoom, xpos, ypos, juliaX, juliaY, bailout);
+	}
+
+	/**
+	 * Gets the kernel which iterates the function
+	 */
+	public Kernel getKernel()
+	{
+		return kernel;
+	}
+
+	/**
+	 * Gets whether this is a view of a Julia set
+	 */
+	public boolean isJulia()
+	{
+		return julia;
+	}
+
+	/**
+	 * Gets the render mode
+	 */
+	public RenderMode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Gets the zoom value
+	 */
+	public double getZoom()
+	{
+		return zoom;
+	}
+
+	/**
+	 * Gets the X / Real(Z) position value
+	 */
+	public double getXPos()
+	{
+		return xpos;
+	}
+
+	/**
+	 * Gets the Y / Imag(Z) position value
+	 */
+	public double getYPos()
+	{
+		return ypos;
+	}
+
+	/**
+	 * Gets the X / Real(C) coord for Julia set generation
+	 */
+	public double getJuliaX()
+	{
+		return juliaX;
+	}
+
+	/**
+	 * Gets the Y / Imag(C) coord for Julia set generation
+	 */
+	public double getJuliaY()
+	{
+		return juliaY;
+	}
+
+	/**
+	 * Gets the bailout radius
+	 */
+	public double getBailout()
+	{
+		return bailout;
+	}
+}
@@ -26,17 +26,30 @@ import java.awt.datatransfer.*;
 import javax.swing.*;
 import java.security.*;
 import java.io.*;
+import java.text.ParseException;
+import java.util.concurrent.ExecutionException;
 import javax.imageio.*;
 
+import com.ijuru.refract.CheckpointWriter;
 import com.ijuru.refract.Renderer;
 import com.ijuru.refract.Function;
 import com.ijuru.refract.Palette;
+import com.ijuru.refract.RenderCheckpoint;
+import com.ijuru.refract.RenderMode;
+import com.ijuru.refract.RenderMonitor;
+import com.ijuru.refract.RenderStats;
+import com.ijuru.refract.TileCache;
 import com.ijuru.refract.Utils;
+import com.ijuru.refract.kernel.FormulaCompiler;
+import com.ijuru.refract.kernel.IntPowerKernel;
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.Kernels;
+import com.ijuru.refract.kernel.RealPowerKernel;
 
 /**
  * Main applet class
  */
-public class Applet extends JApplet implements Runnable, ActionListener, FractalPanelListener
+public class Applet extends JApplet implements ActionListener, FractalPanelListener
 {
 	private static final long serialVersionUID = 1L;
 	
@@ -46,6 +59,11 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 	private final String appTitle = "Refract";									// Application title
 	private final String appVersion = "1.03 BETA";								// Application version		
 	private final int DEF_ZOOM = 100;											// The default zoom value
+	private final int MAN_FRAMEBUDGET = 50;										// Max millis for each Mandelbrot frame's render
+	private final int JUL_FRAMEBUDGET = 20;										// Max millis for each Julia frame's render
+	private final int AA_GRID = 4;												// Anti-aliasing takes AA_GRID^2 samples per edge pixel
+	private final int CHECKPOINT_MILLIS = 60000;								// Time between checkpoints of the Mandelbrot view
+	private final long TILECACHE_BYTES = 64L << 20;								// Memory for tiles of previous views, shared by both views
 	
 	/**
 	 * Components
@@ -58,8 +76,7 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 	private final JLabel lblDock = new JLabel("Close detached window to reattach", JLabel.CENTER);
 	private JFrame frame = null;														// Frame used when applet is detached from web page
 		
-	private Thread renderThread = null;											// Thread used to render in background
-	private boolean threadSuspended = false;								// True if render thread is suspended	
+	private RenderScheduler scheduler = null;									// Schedules rendering of the views in background
 	private boolean isDetached;															// True if applet has been detached
 	private boolean hasFileAccess = true;										// True if applet has file write permissions
 	
@@ -67,8 +84,13 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 	 * Menu items
 	 */	
 	private JMenuItem itemSaveM, itemSaveJ, itemDetach, itemPause;
-	private JMenuItem itemCopyCoords, itemResetCoords;
-	private JRadioButtonMenuItem itemFuncZ2, itemFuncZ3, itemFuncZ4;
+	private boolean antiAliasing = false;		// True while an anti-aliased image is being created
+	private JCheckBoxMenuItem itemAntiAlias, itemCheckpoint;
+	private JMenuItem itemResume;
+	private JMenuItem itemBuddhabrot, itemAtlas;
+	private JMenuItem itemCopyCoords, itemResetCoords, itemBailout;
+	private JRadioButtonMenuItem itemModeIters, itemModeDistance, itemModeStripes, itemModeTrap;
+	private JRadioButtonMenuItem itemFuncZ2, itemFuncZ3, itemFuncZ4, itemFuncShip, itemFuncTricorn, itemFuncPower, itemFuncFormula;
 	private JMenuItem itemPalReverse, itemPalAutoScale, itemPalInvert, itemPalSetColor;		
 	private JMenuItem[] palItems = new JMenuItem[6];
 	private String[] palNames = { "Sunset", "Hubble", "Rainbow", "Chrome", "Evening", "Electric" };	
@@ -89,10 +111,31 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		manView.addFractalPanelListener(this);
 		julView = new FractalPanel(Function.JULIA, new Palette(Palette.HUBBLE));	
 		julView.setCoords(DEF_ZOOM, 0, 0);
+		julView.addFractalPanelListener(this);
+		
+		// Let both views restore what they've already rendered when zooming back out or panning back
+		TileCache tileCache = new TileCache(TILECACHE_BYTES);
+		manView.getRenderer().setTileCache(tileCache);
+		julView.getRenderer().setTileCache(tileCache);
 		
 		// Start with the mandelbrot view selected
 		selView = manView;
 		
+		// Both views are rendered in the same frames by every core, so neither waits on the other
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		scheduler = new RenderScheduler(threads);
+		scheduler.addPanel(manView, MAN_FRAMEBUDGET);
+		scheduler.addPanel(julView, JUL_FRAMEBUDGET);
+		scheduler.setActivePanel(selView);
+		
+		// Make render measurements available over JMX, if we're allowed to
+		RenderMonitor manMonitor = new RenderMonitor();
+		manMonitor.register("mandelbrot");
+		manView.addRenderStatsListener(manMonitor);
+		RenderMonitor julMonitor = new RenderMonitor();
+		julMonitor.register("julia");
+		julView.addRenderStatsListener(julMonitor);
+		
 		// Create a horz split pane with 2 evenly size panes for each fractal view
 		splitter = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, false);
 		splitter.setOneTouchExpandable(true);
@@ -109,6 +152,7 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 				if (!hasPixels) {
 					selView = julView;
 					selView.requestFocus();
+					scheduler.setActivePanel(selView);
 				}
 				itemSaveM.setEnabled(hasFileAccess && hasPixels);
 			}
@@ -120,6 +164,7 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 				if (!hasPixels) {
 					selView = manView;
 					selView.requestFocus();
+					scheduler.setActivePanel(selView);
 				}				
 				itemSaveJ.setEnabled(hasFileAccess && hasPixels);				
 			}
@@ -130,6 +175,7 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 			public void focusGained(FocusEvent e)
 			{
 				selView = manView;
+				scheduler.setActivePanel(selView);
 				status.setSelMode(true);				
 			}
 		});
@@ -137,6 +183,7 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 			public void focusGained(FocusEvent e)
 			{
 				selView = julView;
+				scheduler.setActivePanel(selView);
 				status.setSelMode(false);								
 			}
 		});
@@ -155,6 +202,11 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		itemSaveM.addActionListener(this);
 		itemSaveJ = new JMenuItem("Save J Image");
 		itemSaveJ.addActionListener(this);		
+		itemAntiAlias = new JCheckBoxMenuItem("Anti-alias saved images");
+		itemCheckpoint = new JCheckBoxMenuItem("Checkpoint M to file...");
+		itemCheckpoint.addActionListener(this);
+		itemResume = new JMenuItem("Resume M from checkpoint...");
+		itemResume.addActionListener(this);
 		itemDetach = new JMenuItem("Detach");
 		itemDetach.addActionListener(this);
 		//itemPerformance = new JMenuItem("Performance...");
@@ -173,17 +225,61 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		itemFuncZ4 = new JRadioButtonMenuItem("z^4 + c");
 		itemFuncZ4.addActionListener(this);
 		funcGroup.add(itemFuncZ4);
+		itemFuncShip = new JRadioButtonMenuItem("Burning ship");
+		itemFuncShip.addActionListener(this);
+		funcGroup.add(itemFuncShip);
+		itemFuncTricorn = new JRadioButtonMenuItem("Tricorn");
+		itemFuncTricorn.addActionListener(this);
+		funcGroup.add(itemFuncTricorn);
+		itemFuncPower = new JRadioButtonMenuItem("z^n + c...");
+		itemFuncPower.addActionListener(this);
+		funcGroup.add(itemFuncPower);
+		itemFuncFormula = new JRadioButtonMenuItem("Custom formula...");
+		itemFuncFormula.addActionListener(this);
+		funcGroup.add(itemFuncFormula);
 				
 		JMenu menuFunction = new JMenu("Function");
 		menuFunction.add(itemFuncZ2);
 		menuFunction.add(itemFuncZ3);
-		menuFunction.add(itemFuncZ4);													
+		menuFunction.add(itemFuncZ4);
+		menuFunction.add(itemFuncShip);
+		menuFunction.add(itemFuncTricorn);
+		menuFunction.addSeparator();
+		menuFunction.add(itemFuncPower);
+		menuFunction.add(itemFuncFormula);													
 			
 		itemResetCoords = new JMenuItem("Reset coords");
 		itemResetCoords.addActionListener(this);				
 		itemCopyCoords = new JMenuItem("Copy coords");
 		itemCopyCoords.addActionListener(this);
 		
+		ButtonGroup modeGroup = new ButtonGroup();
+		itemModeIters = new JRadioButtonMenuItem("Iterations", true);
+		itemModeIters.addActionListener(this);
+		modeGroup.add(itemModeIters);
+		itemModeDistance = new JRadioButtonMenuItem("Distance estimation");
+		itemModeDistance.addActionListener(this);
+		modeGroup.add(itemModeDistance);
+		itemModeStripes = new JRadioButtonMenuItem("Stripe average");
+		itemModeStripes.addActionListener(this);
+		modeGroup.add(itemModeStripes);
+		itemModeTrap = new JRadioButtonMenuItem("Orbit trap");
+		itemModeTrap.addActionListener(this);
+		modeGroup.add(itemModeTrap);
+		
+		JMenu menuMode = new JMenu("Coloring");
+		menuMode.add(itemModeIters);
+		menuMode.add(itemModeDistance);
+		menuMode.add(itemModeStripes);
+		menuMode.add(itemModeTrap);
+		
+		itemBailout = new JMenuItem("Bailout radius...");
+		itemBailout.addActionListener(this);
+		itemBuddhabrot = new JMenuItem("Buddhabrot...");
+		itemBuddhabrot.addActionListener(this);
+		itemAtlas = new JMenuItem("Julia atlas...");
+		itemAtlas.addActionListener(this);
+		
 		JMenu menuPalPresets = new JMenu("Presets");		
 		for (int i = 0; i < 6; ++i) {
 			palItems[i] = new JMenuItem(palNames[i]);
@@ -215,6 +311,10 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		JMenu menuFile = new JMenu("File");		
 		menuFile.add(itemSaveM);
 		menuFile.add(itemSaveJ);		
+		menuFile.add(itemAntiAlias);
+		menuFile.add(new JSeparator());
+		menuFile.add(itemCheckpoint);
+		menuFile.add(itemResume);
 		menuFile.add(new JSeparator());		
 		//menuFile.add(itemPerformance);
 		menuFile.add(itemDetach);		
@@ -222,7 +322,12 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		JMenu menuFractal = new JMenu("Fractal");
 		menuFractal.add(menuFunction);		
 		menuFractal.add(itemResetCoords);	
-		menuFractal.add(itemCopyCoords);						
+		menuFractal.add(itemCopyCoords);
+		menuFractal.add(new JSeparator());
+		menuFractal.add(menuMode);
+		menuFractal.add(itemBailout);
+		menuFractal.add(itemBuddhabrot);
+		menuFractal.add(itemAtlas);						
 		JMenu menuPalette = new JMenu("Palette");		
 		menuPalette.add(menuPalPresets);
 		menuPalette.add(itemPalSetColor);
@@ -264,6 +369,8 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 			hasFileAccess = false;
 			itemSaveM.setEnabled(false);
 			itemSaveJ.setEnabled(false);			
+			itemCheckpoint.setEnabled(false);
+			itemResume.setEnabled(false);
 		}
 	}
 	
@@ -332,60 +439,26 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 	 */	
 	public void start()
 	{		
-		if (renderThread == null) {
-			renderThread = new Thread(this);
-			threadSuspended = false;
-			renderThread.start();
-		}
-		else {
-			if (threadSuspended) {
-				threadSuspended = false;
-				synchronized(this) {
-					notify();
-				}
-			}
-		}
+		scheduler.start();
 		itemPause.setText("Pause");
 	}
 	
 	/**
-	 * Executed within the thread that this applet created.
+	 * Called whenever the user leaves the page containing the applet.
 	 */
-	public void run()
+	public void stop()
 	{
-		try {
-			while (true) {
-				// If a view has been resized, the buffers need reallocated
-				if (manView.hasResized())
-					manView.initialize();
-				if (julView.hasResized())
-					julView.initialize();								
-				
-				manView.render();
-				julView.render();
-				
-				status.setInfo(selView.getRenderer().getMaxIters() + " iters in " + selView.getFrameMillis() + "ms");				
-				
-				// Now the thread checks to see if it should suspend itself
-				if (threadSuspended) {
-					synchronized(this) {
-						while (threadSuspended) {
-							wait();
-						}
-					}
-				}
-			}
-		}
-		catch (InterruptedException e) { }
+		scheduler.pause();
+		itemPause.setText("Resume");
 	}
 	
 	/**
-	 * Called whenever the user leaves the page containing the applet.
+	 * Called when the applet is being unloaded
 	 */
-	public void stop()
+	public void destroy()
 	{
-		threadSuspended = true;
-		itemPause.setText("Resume");
+		scheduler.shutdown();
+		manView.setCheckpointWriter(null);
 	}
 	
 	/**
@@ -399,14 +472,62 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		if (retVal != JFileChooser.APPROVE_OPTION)
 			return;
 		
-		File file = chooser.getSelectedFile();
-		String ext = Utils.getExtension(file);
+		final File file = chooser.getSelectedFile();
 		if (file.exists()) {
 			if (JOptionPane.showConfirmDialog(this, "Overwite existing file?", appTitle, JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
 				return;	
 		}
+		
+		final FractalPanel view = julia ? julView : manView;
+		if (!itemAntiAlias.isSelected()) {
+			writeImage(view.createImage(), file);
+			return;
+		}
+		if (antiAliasing) {
+			JOptionPane.showMessageDialog(this, "An anti-aliased image is still being created", appTitle, JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		
+		// Anti-aliasing recalculates pixels from the renderer, so rendering is paused until
+		// the frame in progress is done and resumed after. It can take a while so it's done
+		// off the event thread.
+		final boolean wasPaused = scheduler.isPaused();
+		antiAliasing = true;
+		itemPause.setEnabled(false);
+		new SwingWorker<RenderedImage, Object>() {
+			protected RenderedImage doInBackground() throws InterruptedException
+			{
+				scheduler.pauseAndWait();
+				return view.createAntiAliasedImage(AA_GRID);
+			}
+			
+			protected void done()
+			{
+				antiAliasing = false;
+				itemPause.setEnabled(true);
+				if (!wasPaused)
+					start();
+				
+				try {
+					writeImage(get(), file);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				catch (ExecutionException ex) {
+					JOptionPane.showMessageDialog(Applet.this, "Unable to anti-alias image: " + ex.getCause(), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		}.execute();
+	}
+	
+	/**
+	 * Writes an image to a file, in the format given by its extension
+	 */
+	private void writeImage(RenderedImage image, File file)
+	{
+		String ext = Utils.getExtension(file);
 		try {
-			RenderedImage image = julia ? julView.createImage() : manView.createImage();
 			if (ext.equals("jpg"))
 				ImageIO.write(image, "JPEG", file);
 			else if (ext.equals("png"))
@@ -419,6 +540,66 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 		}
 	}
 	
+	/**
+	 * Gets the power of the current kernel to suggest when choosing a power, or 2 if the
+	 * kernel isn't a power of z
+	 */
+	private String getCurrentPower()
+	{
+		Kernel kernel = manView.getRenderer().getKernel();
+		if (kernel == Kernels.Z2)
+			return "2";
+		else if (kernel == Kernels.Z3)
+			return "3";
+		else if (kernel == Kernels.Z4)
+			return "4";
+		else if (kernel instanceof IntPowerKernel)
+			return String.valueOf(((IntPowerKernel)kernel).getPower());
+		else if (kernel instanceof RealPowerKernel)
+			return String.valueOf(((RealPowerKernel)kernel).getPower());
+		return "2";
+	}
+	
+	/**
+	 * Starts or stops periodic checkpoints of the Mandelbrot view, so that a long render
+	 * can be resumed after the application is closed
+	 */
+	private void setCheckpointing(boolean checkpoint)
+	{
+		if (!checkpoint) {
+			manView.setCheckpointWriter(null);
+			return;
+		}
+		
+		JFileChooser chooser = new JFileChooser();
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			itemCheckpoint.setSelected(false);
+			return;
+		}
+		
+		manView.setCheckpointWriter(new CheckpointWriter(chooser.getSelectedFile(), CHECKPOINT_MILLIS));
+	}
+	
+	/**
+	 * Resumes rendering of the Mandelbrot view from a checkpoint file
+	 */
+	private void resumeCheckpoint()
+	{
+		JFileChooser chooser = new JFileChooser();
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		try {
+			manView.restoreCheckpoint(RenderCheckpoint.read(chooser.getSelectedFile()));
+		}
+		catch (IOException e) {
+			JOptionPane.showMessageDialog(this, "Unable to read checkpoint: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		}
+		catch (IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
 	/**
 	 * Invoked when an action occurs
 	 * @param		e	The action event object
@@ -427,16 +608,17 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 	{
 		Object src = e.getSource();
 		
-		if (src == itemSaveM) {
-			stop();
+		// Saving pauses rendering itself if it needs to, while an anti-aliased image is created
+		if (src == itemSaveM)
 			saveImage(false);
-			start();
-		}
-		else if (src == itemSaveJ) {
-			stop();			
+		else if (src == itemSaveJ)
 			saveImage(true);
-			start();						
-		}		
+		else if (src == itemCheckpoint) {
+			setCheckpointing(itemCheckpoint.isSelected());
+		}
+		else if (src == itemResume) {
+			resumeCheckpoint();
+		}
 		else if (src == itemDetach) {
 			setDetached(!isDetached);
 		}
@@ -451,29 +633,106 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 			dlg.setVisible(true);
 		}*/	
 		else if (src == itemPause) {
-			if (threadSuspended)
+			if (scheduler.isPaused())
 				start();
 			else
 				stop();
 		}
 		else if (src == itemFuncZ2) {
-			manView.getRenderer().setFunction(Function.MANDELBROT);
-			julView.getRenderer().setFunction(Function.JULIA);
+			manView.setFunction(Function.MANDELBROT);
+			julView.setFunction(Function.JULIA);
 			setCoords(DEF_ZOOM, 0, 0);					
 		}
 		else if (src == itemFuncZ3) {
-			manView.getRenderer().setFunction(Function.MANDELBROT_3);
-			julView.getRenderer().setFunction(Function.JULIA_3);
+			manView.setFunction(Function.MANDELBROT_3);
+			julView.setFunction(Function.JULIA_3);
 			setCoords(DEF_ZOOM, 0, 0);					
 		}
 		else if (src == itemFuncZ4) {
-			manView.getRenderer().setFunction(Function.MANDELBROT_4);
-			julView.getRenderer().setFunction(Function.JULIA_4);
+			manView.setFunction(Function.MANDELBROT_4);
+			julView.setFunction(Function.JULIA_4);
 			setCoords(DEF_ZOOM, 0, 0);			
+		}
+		else if (src == itemFuncShip) {
+			manView.setFunction(Function.BURNING_SHIP);
+			julView.setFunction(Function.BURNING_SHIP_JULIA);
+			setCoords(DEF_ZOOM, 0, 0);
+		}
+		else if (src == itemFuncTricorn) {
+			manView.setFunction(Function.TRICORN);
+			julView.setFunction(Function.TRICORN_JULIA);
+			setCoords(DEF_ZOOM, 0, 0);
+		}
+		else if (src == itemFuncPower) {
+			String power = JOptionPane.showInputDialog(this, "Power (n):", getCurrentPower());
+			if (power != null) {
+				try {
+					Kernel kernel = Kernels.forPower(Double.parseDouble(power.trim()));
+					manView.setKernel(kernel, false);
+					julView.setKernel(kernel, true);
+					setCoords(DEF_ZOOM, 0, 0);
+				}
+				catch (IllegalArgumentException ex) {
+					JOptionPane.showMessageDialog(this, "Power must be a number greater than 1", "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		}
+		else if (src == itemFuncFormula) {
+			String formula = JOptionPane.showInputDialog(this, "Formula in terms of z and c:", "z^5 - z^2 + c");
+			if (formula != null) {
+				try {
+					setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+					Kernel kernel = FormulaCompiler.forFormula(formula);
+					manView.setKernel(kernel, false);
+					julView.setKernel(kernel, true);
+					setCoords(DEF_ZOOM, 0, 0);
+				}
+				catch (ParseException ex) {
+					JOptionPane.showMessageDialog(this, "Invalid formula: " + ex.getMessage() + " at position " + (ex.getErrorOffset() + 1), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+				finally {
+					setCursor(Cursor.getDefaultCursor());
+				}
+			}
 		}					
 		else if (src == itemResetCoords) {
 			setCoords(DEF_ZOOM, 0, 0);				
 		}		
+		else if (src == itemModeIters || src == itemModeDistance || src == itemModeStripes || src == itemModeTrap) {
+			RenderMode mode = RenderMode.ITERATIONS;
+			if (src == itemModeDistance)
+				mode = RenderMode.DISTANCE;
+			else if (src == itemModeStripes)
+				mode = RenderMode.STRIPES;
+			else if (src == itemModeTrap)
+				mode = RenderMode.ORBIT_TRAP;
+			manView.setMode(mode);
+			julView.setMode(mode);
+		}
+		else if (src == itemBailout) {
+			String bailout = JOptionPane.showInputDialog(this, "Bailout radius:", manView.getRenderer().getBailout());
+			if (bailout != null) {
+				try {
+					double radius = Double.parseDouble(bailout.trim());
+					manView.setBailout(radius);
+					julView.setBailout(radius);
+				}
+				catch (IllegalArgumentException ex) {
+					JOptionPane.showMessageDialog(this, "Bailout radius must be a number of at least " + Kernel.DEF_BAILOUT, "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		}
+		else if (src == itemBuddhabrot) {
+			// Render the orbits over the same region as the Mandelbrot view
+			Renderer fg = manView.getRenderer();
+			new BuddhabrotFrame(fg.getKernel(), manView.getWidth(), manView.getHeight(), fg.getZoom(), fg.getXPos(), fg.getYPos()).setVisible(true);
+		}
+		else if (src == itemAtlas) {
+			// One Julia set for each point across the visible region of the Mandelbrot view
+			Renderer fg = manView.getRenderer();
+			double span = manView.getWidth() / fg.getZoom();
+			new JuliaAtlasFrame(fg.getKernel(), fg.getXPos(), fg.getYPos(), span, julView.createColorizer(), julView).setVisible(true);
+		}
 		else if (src == itemCopyCoords) {
 			try {
 				// Copy coords from the mandelbrot view
@@ -520,28 +779,28 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 			start();		
 		}								
 		else if (src == exampleItems[0]) {
-			manView.getRenderer().setFunction(Function.MANDELBROT);
-			julView.getRenderer().setFunction(Function.JULIA);
+			manView.setFunction(Function.MANDELBROT);
+			julView.setFunction(Function.JULIA);
 			setCoords(409680.0429170958, -0.7711496426797392, 0.11529120855296526);
 		}
 		else if (src == exampleItems[1]) {
-			manView.getRenderer().setFunction(Function.MANDELBROT);
-			julView.getRenderer().setFunction(Function.JULIA);
+			manView.setFunction(Function.MANDELBROT);
+			julView.setFunction(Function.JULIA);
 			setCoords(1.3312128175744123E10, -0.5644303291616849, -0.6436946946061423);
 		}
 		else if (src == exampleItems[2]) {
-			manView.getRenderer().setFunction(Function.MANDELBROT);
-			julView.getRenderer().setFunction(Function.JULIA);
+			manView.setFunction(Function.MANDELBROT);
+			julView.setFunction(Function.JULIA);
 			setCoords(169289.27393268436, -0.1906007280355749, 0.6698834550467907);
 		}
 		else if (src == exampleItems[3]) {
-			manView.getRenderer().setFunction(Function.MANDELBROT);
-			julView.getRenderer().setFunction(Function.JULIA);
+			manView.setFunction(Function.MANDELBROT);
+			julView.setFunction(Function.JULIA);
 			setCoords(2.4789605647075914E13, 0.33602211703385265, 0.05478487479148234);
 		}
 		else if (src == exampleItems[4]) {
-			manView.getRenderer().setFunction(Function.MANDELBROT);
-			julView.getRenderer().setFunction(Function.JULIA);
+			manView.setFunction(Function.MANDELBROT);
+			julView.setFunction(Function.JULIA);
 			setCoords(6498792.609450064, -1.1200968970340854, 0.219436264812675);
 		}
 		else if (src == itemControls) {
@@ -572,8 +831,33 @@ public class Applet extends JApplet implements Runnable, ActionListener, Fractal
 	 */
 	public void coordsChanged(FractalPanel panel)
 	{
+		// Only the mandelbrot view's coords are shown and define the julia set
+		if (panel != manView)
+			return;
+		
 		Renderer fg = panel.getRenderer();
 		status.setCoords(fg.getZoom(), fg.getXPos(), fg.getYPos());
-		julView.getRenderer().setJuliaCoords(fg.getXPos(), fg.getYPos());
+		julView.setJuliaCoords(fg.getXPos(), fg.getYPos());
+	}
+	
+	/**
+	 * Called from a render thread when a FractalPanel has rendered a frame
+	 */
+	public void frameRendered(FractalPanel panel)
+	{
+		if (panel == selView) {
+			RenderStats stats = panel.getStats();
+			status.setInfo(stats.getMaxIters() + " iters in " + stats.getRenderMillis() + "ms");
+		}
+	}
+	
+	/**
+	 * Called when a checkpoint of a FractalPanel couldn't be written
+	 */
+	public void checkpointFailed(FractalPanel panel, CheckpointWriter writer)
+	{
+		itemCheckpoint.setSelected(false);
+		JOptionPane.showMessageDialog(this, "Unable to write checkpoint to " + writer.getFile() + ": " + writer.getLastError().getMessage()
+				+ "\nCheckpoints have been stopped.", "Error", JOptionPane.ERROR_MESSAGE);
 	}	
 }
\ No newline at end of file
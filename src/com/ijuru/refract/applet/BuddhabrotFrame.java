@@ -0,0 +1,110 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.applet;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import javax.swing.*;
+
+import com.ijuru.refract.BuddhabrotListener;
+import com.ijuru.refract.BuddhabrotRenderer;
+import com.ijuru.refract.Palette;
+import com.ijuru.refract.kernel.Kernel;
+
+/**
+ * Frame which shows a Buddhabrot as it is rendered. Rendering stops when the frame is closed.
+ */
+public class BuddhabrotFrame extends JFrame implements BuddhabrotListener
+{
+	private static final long serialVersionUID = 1L;
+	
+	private final int MIN_ITERS = 20;		// Shorter orbits are not counted
+	private final int MAX_ITERS = 2000;		// Points which don't escape by this are in the set
+	private final int PAL_SIZE = 256;		// Number of interpolated palette colors
+	
+	private final BuddhabrotRenderer renderer;
+	private final BufferedImage image;
+	private final int[] buffer;
+	private final int[] colors;
+	
+	/**
+	 * Constructor
+	 * @param kernel the kernel used to iterate points
+	 * @param width the width
+	 * @param height the height
+	 * @param zoom the zoom value
+	 * @param re the X / Real(Z) position value
+	 * @param im the Y / Imag(Z) position value
+	 */
+	public BuddhabrotFrame(Kernel kernel, int width, int height, double zoom, double re, double im)
+	{
+		super("Buddhabrot");
+		
+		renderer = new BuddhabrotRenderer(kernel, width, height, zoom, re, im, MIN_ITERS, MAX_ITERS);
+		renderer.addListener(this);
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		buffer = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		colors = new Palette(Palette.ELECTRIC).createInterpolation(PAL_SIZE);
+		
+		JComponent view = new JComponent() {
+			private static final long serialVersionUID = 1L;
+			
+			public void paintComponent(Graphics g)
+			{
+				g.drawImage(image, 0, 0, null);
+			}
+		};
+		view.setPreferredSize(new Dimension(width, height));
+		getContentPane().add(view);
+		pack();
+		setResizable(false);
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		
+		addWindowListener(new WindowAdapter() {
+			public void windowOpened(WindowEvent e)
+			{
+				renderer.start();
+			}
+			
+			public void windowClosed(WindowEvent e)
+			{
+				renderer.stop();
+			}
+		});
+	}
+	
+	/**
+	 * Called from a thread of the renderer when the density has changed
+	 */
+	public void densityUpdated(BuddhabrotRenderer renderer)
+	{
+		renderer.colorize(colors, buffer);
+		final String title = "Buddhabrot - " + renderer.getSampleCount() + " samples";
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run()
+			{
+				setTitle(title);
+				repaint();
+			}
+		});
+	}
+}
@@ -24,12 +24,22 @@ import java.awt.event.*;
 import java.awt.image.*;
 import javax.swing.*;
 
+import com.ijuru.refract.AntiAliaser;
+import com.ijuru.refract.BufferPool;
+import com.ijuru.refract.CheckpointWriter;
+import com.ijuru.refract.Colorizer;
 import com.ijuru.refract.Renderer;
 import com.ijuru.refract.Function;
 import com.ijuru.refract.Palette;
+import com.ijuru.refract.RenderCheckpoint;
+import com.ijuru.refract.RenderMode;
+import com.ijuru.refract.RenderStats;
+import com.ijuru.refract.RenderStatsListener;
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.OrbitStatistic;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Listener class for changes to a FractalPanel
@@ -40,6 +50,17 @@ interface FractalPanelListener
 	 * Called when the zoom/xpos/ypos coords of a FractalPanel are changed
 	 */
 	public void coordsChanged(FractalPanel panel);
+	
+	/**
+	 * Called from the render thread when a FractalPanel has rendered a frame
+	 */
+	public void frameRendered(FractalPanel panel);
+	
+	/**
+	 * Called on the event thread when a checkpoint of a FractalPanel couldn't be written,
+	 * after its checkpoint writer has been removed
+	 */
+	public void checkpointFailed(FractalPanel panel, CheckpointWriter writer);
 }
 
 /**
@@ -49,23 +70,38 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 {		
 	private static final long serialVersionUID = 1L;
 	
-	private int[] buffer = null;								// Buffer of RGB pixels which holds image		
-	private MemoryImageSource memImage = null;	// 
-	private Image image = null;
+	private static final int[] RGB_MASKS = { 0xFF0000, 0x00FF00, 0x0000FF };
+	private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]); // Same as TYPE_INT_RGB
+	
+	private int[] buffer = null;								// Buffer of RGB pixels which holds image, can be longer than needed		
+	private BufferedImage image = null;					// Image which is backed by the pixel buffer
 	private int width, height;									// The width and height of the fractal image in pixels
 	private int setColor = 0x000000;						// Color of pixels within the set (default black)
 	
 	private Renderer renderer = new Renderer();
+	private RenderScheduler scheduler = null;			// The scheduler which renders this panel
+	private volatile CheckpointWriter checkpointWriter = null;	// Writes checkpoints of the renderer, if any
+	private volatile RenderCheckpoint pendingRestore = null;		// Checkpoint to restore on the next frame
 	
 	private long startTime = 0;
 	private long frameMillis = 0;								// Time taken to render last frame in millis
+	private RenderStats stats = null;						// Measurements of the last frame
+	private final BufferPool pool = new BufferPool();		// Allocates the pixel buffer, reusing it when resized
 	
-	private boolean sizeChanged = true;					// True if the size of this component has changed	
-	private boolean palChanged = true;					// True if palette has changed
-	private boolean palAutoScale = false;	
+	private volatile boolean sizeChanged = true;					// True if the size of this component has changed	
+	private volatile boolean palChanged = true;					// True if palette has changed
+	private volatile boolean palAutoScale = false;	
+	private volatile boolean recolor = true;				// True if pixels need recolored even if nothing was rendered
+	
+	private Colorizer colorizer = null;						// Colors the pixels of the current frame
+	private boolean recolorAll = false;						// True if every row of the current frame is colorized
+	private long colorizeStart = 0;							// When colorization of the current frame began, in nanos
+	private int dirtyMin, dirtyMax;							// The band of rows which the current frame has changed
+	private final Object dirtyLock = new Object();			// Guards the changed band while rows are colorized
 	
 	private final int DEF_PALSIZE = 64;					// The default number of colors in the palette
 	private final int MIN_PALSIZE = 8;					// The minimum palette size allowed
+	private final int DEF_FRAMEBUDGET = 50;				// The default max time in millis for each frame's render
 	private Palette palette = null;
 	private int[] colors = null;
 	private int palSize = DEF_PALSIZE;					// The number of colors in the palette
@@ -75,7 +111,8 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	private double oldMouseX, oldMouseY;				// "
 	private boolean isBeingDragged = false;			// True when image is being dragged with the mouse
 	
-	private List<FractalPanelListener> listeners = new ArrayList<FractalPanelListener>();
+	private List<FractalPanelListener> listeners = new CopyOnWriteArrayList<FractalPanelListener>();
+	private List<RenderStatsListener> statsListeners = new CopyOnWriteArrayList<RenderStatsListener>();
 	
 	/**
 	 * Constructor
@@ -85,12 +122,14 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 		this.palette = palette;
 		
 		renderer.setFunction(func);		
+		renderer.setFrameBudget(DEF_FRAMEBUDGET);
 	
 		// Set flag for buffer reallocation on resize event
 		addComponentListener(new ComponentAdapter() {
 			public void componentResized(ComponentEvent e)
 			{
 				sizeChanged = true;
+				requestRender();
 			}
 		});
 		
@@ -105,11 +144,15 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 				oldYPos = renderer.getYPos();
 				
 				requestFocus();		
+				recolor = true;
+				requestRender(); // To draw the cross hair
 			}
 			
 			public void mouseReleased(MouseEvent e)
 			{
 				isBeingDragged = false;	
+				recolor = true;
+				requestRender(); // To remove the cross hair
 			}			
 		});
 		
@@ -134,26 +177,59 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 		return sizeChanged;
 	}
 	
+	/**
+	 * Gets whether rendering this panel would change anything
+	 */
+	public boolean needsRender()
+	{
+		return sizeChanged || palChanged || palAutoScale || recolor || isBeingDragged || pendingRestore != null || !renderer.isConverged();
+	}
+	
+	/**
+	 * Sets the scheduler which renders this panel
+	 */
+	void setScheduler(RenderScheduler scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+	
+	/**
+	 * Wakes the scheduler after a change which needs rendering
+	 */
+	private void requestRender()
+	{
+		if (scheduler != null)
+			scheduler.wake(this);
+	}
+	
 	public void initialize()
 	{
 		width = getWidth();
 		height = getHeight();
-		buffer = null;
 		
 		renderer.initialize(width, height);
-					
-		buffer = new int[width * height];
-		memImage = new MemoryImageSource(width, height, Palette.MODEL, buffer, 0, width);
-		memImage.setAnimated(true);
-		image = createImage(memImage);
+		
+		// Render straight into the image's own pixel data, so there's nothing to convert or copy
+		// when it's drawn. The pixel data is reused while it's big enough, so usually only the
+		// image itself is new. An image can't be empty so there isn't one if we have no pixels.
+		buffer = pool.ints(buffer, width * height);
+		if (width > 0 && height > 0) {
+			DataBufferInt data = new DataBufferInt(buffer, width * height);
+			WritableRaster raster = Raster.createPackedRaster(data, width, height, width, RGB_MASKS, null);
+			image = new BufferedImage(RGB_MODEL, raster, false, null);
+		}
+		else
+			image = null;
 	
+		recolor = true;			// New buffer needs all its pixels colored
 		sizeChanged = false;	// Clear flag to buffers aren't reallocated until next resize
 	}	
 
 	public void paint(Graphics g)
 	{
-		// Copy the memory image to the screen
-		g.drawImage(image, 0, 0, this);								
+		// Copy the image to the screen
+		if (image != null)
+			g.drawImage(image, 0, 0, this);								
 	}
 	
 	/**
@@ -165,38 +241,146 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	}	
 	
 	/**
-	 * Executed within the thread that this applet created.
+	 * Renders a whole frame on the calling thread
 	 */
 	public void render()
+	{
+		if (beginFrame())
+			renderRows();
+		beginColorize();
+		colorizeRows(0, height);
+		endFrame();
+	}
+	
+	/**
+	 * Begins a frame. This and the other frame methods except renderRows and colorizeRows
+	 * must only be called by one thread, which the scheduler calls them on in order.
+	 * @return true if there are rows to render
+	 */
+	public boolean beginFrame()
 	{	
 		if (startTime == 0)
 			startTime = System.currentTimeMillis();
-					
-		renderer.update();
 		
+		// If the panel has been resized, the buffers need reallocated
+		if (hasResized())
+			initialize();
+		
+		// Restores happen here as the renderer's buffers may only be touched by this thread
+		RenderCheckpoint checkpoint = pendingRestore;
+		if (checkpoint != null) {
+			pendingRestore = null;
+			renderer.restore(checkpoint);
+			recolor = true;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run()
+				{
+					for (FractalPanelListener listener : listeners)
+						listener.coordsChanged(FractalPanel.this);
+				}
+			});
+		}
+		
+		return renderer.beginUpdate();
+	}
+	
+	/**
+	 * Renders rows of the frame until none are left or the frame budget runs out. Any
+	 * number of threads may call this at once, between beginFrame and beginColorize.
+	 */
+	public void renderRows()
+	{
+		renderer.updateRows();
+	}
+	
+	/**
+	 * Ends the rendering of the frame and prepares to colorize the rows it changed
+	 */
+	public void beginColorize()
+	{
+		renderer.endUpdate();
+		
+		CheckpointWriter writer = checkpointWriter;
+		if (writer != null) {
+			if (writer.getLastError() != null)
+				checkpointFailed(writer);
+			else
+				writer.renderUpdated(renderer);
+		}
+		
+		colorizeStart = System.nanoTime();
+		
+		// Anything which changes the colors of all pixels means every row is recolored, rather
+		// than just those which the renderer has changed. Flags are cleared before acting on
+		// them so that changes made meanwhile aren't lost.
+		recolorAll = recolor;
+		recolor = false;
 		if (palAutoScale) {
+			palAutoScale = false;
 			calcAutoScalePalette();
 			colors = palette.createInterpolation(palSize);	
-			palAutoScale = false;
+			recolorAll = true;
 		}
 		else if (palChanged) {
-			colors = palette.createInterpolation(palSize);
 			palChanged = false;
+			colors = palette.createInterpolation(palSize);
+			recolorAll = true;
 		}
 		
-		// Make a positive version of the offset, using the actual size of palette which
-		// may have already changed as this function is being called from the render thread
-		int curPalSize = colors.length;
-		int paloff_safe = palOffset % curPalSize + curPalSize;
-		
-		// Write pixel colors to buffer
+		colorizer = new Colorizer(colors, palOffset, setColor);
+		dirtyMin = height;
+		dirtyMax = -1;
+	}
+	
+	/**
+	 * Colorizes the changed rows in a band of the frame. Any number of threads may call
+	 * this at once for different bands, between beginColorize and endFrame.
+	 * @param y0 the first row of the band
+	 * @param y1 the row after the last
+	 */
+	public void colorizeRows(int y0, int y1)
+	{
+		// Write pixel colors of changed rows to buffer, using the max iters value of each row
+		// as a pass may have been left unfinished by the renderer
 		int[] itersbuf = renderer.getIterBuffer();
-		int maxIters = renderer.getMaxIters();			
-		for (int index = 0; index < (width * height); ++index) {
-			int iters = itersbuf[index];
-			buffer[index] = (iters == maxIters) ? setColor : colors[(iters + paloff_safe) % curPalSize];
+		int[] rowMaxIters = renderer.getRowMaxIters();
+		boolean[] rowDirty = renderer.getDirtyRows();
+		boolean distanceMode = renderer.isDistancePass();
+		float[] distancebuf = renderer.getDistanceBuffer();
+		OrbitStatistic statistic = renderer.getStatistic();
+		double[] orbitbuf = renderer.getOrbitBuffer();
+		double zoom = renderer.getZoom();
+		int bandMin = height, bandMax = -1;
+		for (int y = y0; y < y1; ++y) {
+			if (!recolorAll && !rowDirty[y])
+				continue;
+			
+			if (distanceMode)
+				colorizer.colorizeDistance(itersbuf, distancebuf, buffer, y * width, width, rowMaxIters[y], zoom);
+			else if (statistic == OrbitStatistic.STRIPES)
+				colorizer.colorizeStripes(itersbuf, orbitbuf, buffer, y * width, width, rowMaxIters[y]);
+			else if (statistic == OrbitStatistic.TRAP)
+				colorizer.colorizeTrap(itersbuf, orbitbuf, buffer, y * width, width, rowMaxIters[y]);
+			else
+				colorizer.colorize(itersbuf, buffer, y * width, width, rowMaxIters[y]);
+			rowDirty[y] = false;
+			bandMin = Math.min(bandMin, y);
+			bandMax = y;
 		}
 		
+		if (bandMax >= 0) {
+			synchronized (dirtyLock) {
+				dirtyMin = Math.min(dirtyMin, bandMin);
+				dirtyMax = Math.max(dirtyMax, bandMax);
+			}
+		}
+	}
+	
+	/**
+	 * Ends the frame, once all its rows have been colorized, and repaints what changed
+	 */
+	public void endFrame()
+	{
 		// Add central cross hair if mouse is being dragged
 		if (isBeingDragged) {
 			int crossHairSize = 40;
@@ -207,15 +391,26 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 				buffer[y * width + halfW] = 0xFFFFFFFF;
 			for (int x = halfW - halfC; x < halfW + halfC; x += 2)
 				buffer[halfH * width + x] = 0xFFFFFFFF;				
+			
+			dirtyMin = Math.min(dirtyMin, halfH - halfC);
+			dirtyMax = Math.max(dirtyMax, halfH + halfC);
 		}
 		
-		memImage.newPixels();		
-		repaint();
+		stats = renderer.getStats().withColorization(System.nanoTime() - colorizeStart, pool.getAllocations(), pool.getAllocatedBytes());
+		
+		// Only repaint the band of rows which has changed
+		if (dirtyMax >= dirtyMin)
+			repaint(0, dirtyMin, width, dirtyMax - dirtyMin + 1);
 		
 		// Calculate time taken to render this frame
 		long endTime = System.currentTimeMillis();
 		frameMillis = endTime - startTime;
 		startTime = endTime;
+		
+		for (RenderStatsListener listener : statsListeners)
+			listener.frameMeasured(stats);
+		for (FractalPanelListener listener : listeners)
+			listener.frameRendered(this);
 	}
 	
 	/**
@@ -224,6 +419,8 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	public void setSetColor(Color color)
 	{
 		setColor = color.getRGB();	
+		recolor = true;
+		requestRender();
 	}	
 	
 	/**
@@ -239,34 +436,176 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	 */	
 	public void setCoords(double zoom, double x, double y)
 	{
-		renderer.setZoom(zoom);		
-		renderer.setCoords(x, y);
+		renderer.setCoords(zoom, x, y);
+		requestRender();
 		
 		// Notify listeners that coords have changed
 		for (FractalPanelListener listener : listeners)
 			listener.coordsChanged(this);							
 	}		
 	
+	/**
+	 * Sets the iteration function
+	 */
+	public void setFunction(Function func)
+	{
+		renderer.setFunction(func);
+		requestRender();
+	}
+	
+	/**
+	 * Sets the kernel which iterates the function
+	 * @param kernel the kernel
+	 * @param julia true to generate a Julia set, false for a Mandelbrot set
+	 */
+	public void setKernel(Kernel kernel, boolean julia)
+	{
+		renderer.setKernel(kernel, julia);
+		requestRender();
+	}
+	
+	/**
+	 * Sets the render mode
+	 */
+	public void setMode(RenderMode mode)
+	{
+		renderer.setMode(mode);
+		requestRender();
+	}
+	
+	/**
+	 * Sets the bailout radius
+	 */
+	public void setBailout(double bailout)
+	{
+		renderer.setBailout(bailout);
+		requestRender();
+	}
+	
+	/**
+	 * Sets the writer which periodically checkpoints the renderer, or null for none
+	 */
+	public void setCheckpointWriter(CheckpointWriter writer)
+	{
+		CheckpointWriter previous = checkpointWriter;
+		checkpointWriter = writer;
+		if (previous != null && previous != writer)
+			previous.shutdown();
+		requestRender();
+	}
+	
+	/**
+	 * Removes a checkpoint writer which has failed and notifies listeners, on the event
+	 * thread so that it can't undo a writer being set meanwhile
+	 */
+	private void checkpointFailed(final CheckpointWriter writer)
+	{
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run()
+			{
+				// Later frames may have found the same failure
+				if (checkpointWriter != writer)
+					return;
+				
+				setCheckpointWriter(null);
+				for (FractalPanelListener listener : listeners)
+					listener.checkpointFailed(FractalPanel.this, writer);
+			}
+		});
+	}
+	
+	/**
+	 * Gets the writer which periodically checkpoints the renderer
+	 */
+	public CheckpointWriter getCheckpointWriter()
+	{
+		return checkpointWriter;
+	}
+	
+	/**
+	 * Resumes rendering from a checkpoint, which replaces the current view
+	 * @param checkpoint the checkpoint
+	 * @throws IllegalArgumentException if the checkpoint was taken at a different size
+	 */
+	public void restoreCheckpoint(RenderCheckpoint checkpoint)
+	{
+		if (checkpoint.getWidth() != getWidth() || checkpoint.getHeight() != getHeight())
+			throw new IllegalArgumentException("Checkpoint is " + checkpoint.getWidth() + "x" + checkpoint.getHeight() + " but the view is " + getWidth() + "x" + getHeight());
+		
+		pendingRestore = checkpoint;
+		requestRender();
+	}
+	
+	/**
+	 * Sets the coords for Julia set generation
+	 */
+	public void setJuliaCoords(double x, double y)
+	{
+		renderer.setJuliaCoords(x, y);
+		requestRender();
+	}
+	
 	public Renderer getRenderer()
 	{
 		return renderer;		
 	}
 	
+	/**
+	 * Gets the wall time between the last two frames
+	 */
 	public long getFrameMillis()
 	{
 		return frameMillis;		
 	}
 	
 	/**
-	 * Creates an image suitable for I/O from our memory buffer
+	 * Gets the measurements of the last frame, or null if nothing has been rendered
+	 */
+	public RenderStats getStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * Creates an image suitable for I/O from our memory buffer. This is a straight copy of
+	 * the pixel data so that rendering can carry on without changing the image.
 	 */
 	public RenderedImage createImage()
 	{		
-		BufferedImage b = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-		Graphics g = b.getGraphics();
-		g.drawImage(image, 0, 0, null);
+		if (image == null)
+			return new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		
+		return new BufferedImage(image.getColorModel(), image.copyData(null), false, null);
+	}
+	
+	/**
+	 * Creates a colorizer with the current palette settings
+	 */
+	public Colorizer createColorizer()
+	{
+		int[] pal = (colors != null) ? colors : palette.createInterpolation(palSize);
+		return new Colorizer(pal, palOffset, setColor);
+	}
+	
+	/**
+	 * Creates an anti-aliased image suitable for I/O, which is recalculated from the
+	 * renderer so rendering must be paused meanwhile, e.g. with RenderScheduler.pauseAndWait
+	 * @param grid the size of the grid of samples taken from each edge pixel
+	 */
+	public RenderedImage createAntiAliasedImage(int grid)
+	{
+		// Supersamples are iteration values so can't be mixed with distance or orbit colors,
+		// and are iterated in doubles so can't be mixed with pixels iterated by perturbation
+		if (image == null || colors == null || renderer.isDistancePass() || renderer.getStatistic() != OrbitStatistic.NONE
+				|| renderer.isPerturbedPass())
+			return createImage();
+		
+		int[] rgb = new AntiAliaser(grid).render(renderer, new Colorizer(colors, palOffset, setColor));
+		
+		BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		b.setRGB(0, 0, width, height, rgb, 0, width);
 		return b;
-	}				
+	}
 	
 	/**
 	 * Processes keyboard presses
@@ -298,9 +637,13 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 				break;
 			case KeyEvent.VK_Z:
 				palOffset -= 1;
+				recolor = true;
+				requestRender();
 				break;
 			case KeyEvent.VK_X:
 				palOffset += 1;
+				recolor = true;
+				requestRender();
 				break;
 			case KeyEvent.VK_C:
 				setPaletteSize(Math.max(palSize - 1, MIN_PALSIZE));
@@ -321,12 +664,14 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	{
 		palette = new Palette(pairs);
 		palChanged = true;
+		requestRender();
 	}
 	
 	public void setPaletteSize(int size)
 	{
 		palSize = size;
 		palChanged = true;
+		requestRender();
 	}		
 	
 	public int getPaletteSize()
@@ -338,6 +683,7 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	{
 		palette.invert();
 		palChanged = true;		
+		requestRender();
 	}	
 	
 	/**
@@ -347,6 +693,7 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	{
 		palette.reverse();
 		palChanged = true;		
+		requestRender();
 	}
 	
 	/**
@@ -355,6 +702,7 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	public void autoScalePalette()
 	{
 		palAutoScale = true;				
+		requestRender();
 	}
 	
 	/**
@@ -403,5 +751,10 @@ public class FractalPanel extends JPanel implements KeyListener, MouseWheelListe
 	{
 		listeners.add(listener);
 	}
+	
+	public synchronized void addRenderStatsListener(RenderStatsListener listener)
+	{
+		statsListeners.add(listener);
+	}
 }
 
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.applet;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import javax.swing.*;
+
+import com.ijuru.refract.Colorizer;
+import com.ijuru.refract.JuliaAtlas;
+import com.ijuru.refract.kernel.Kernel;
+
+/**
+ * Frame which shows a Julia atlas of a region of the Mandelbrot set. Clicking a
+ * thumbnail shows its Julia set in the Julia view.
+ */
+public class JuliaAtlasFrame extends JFrame
+{
+	private static final long serialVersionUID = 1L;
+	
+	private final int COLS = 16;			// Columns of thumbnails
+	private final int ROWS = 12;			// Rows of thumbnails
+	private final int THUMB_SIZE = 48;		// Width and height of each thumbnail
+	private final int MAX_ITERS = 256;		// Max iterations for each thumbnail
+	
+	private final JuliaAtlas atlas;
+	private final BufferedImage image;
+	
+	/**
+	 * Constructor
+	 * @param kernel the kernel used to iterate the Julia sets
+	 * @param x the X coord of the center of the region
+	 * @param y the Y coord of the center of the region
+	 * @param span the width of the region
+	 * @param colorizer the colorizer
+	 * @param julView the view which clicked thumbnails are shown in
+	 */
+	public JuliaAtlasFrame(Kernel kernel, final double x, final double y, final double span, final Colorizer colorizer, final FractalPanel julView)
+	{
+		super("Julia atlas");
+		
+		atlas = new JuliaAtlas(kernel, COLS, ROWS, THUMB_SIZE);
+		image = new BufferedImage(atlas.getWidth(), atlas.getHeight(), BufferedImage.TYPE_INT_RGB);
+		
+		final JComponent view = new JComponent() {
+			private static final long serialVersionUID = 1L;
+			
+			public void paintComponent(Graphics g)
+			{
+				g.drawImage(image, 0, 0, null);
+			}
+		};
+		view.setPreferredSize(new Dimension(atlas.getWidth(), atlas.getHeight()));
+		view.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+		view.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e)
+			{
+				double[] coords = atlas.getJuliaCoords(e.getX(), e.getY());
+				julView.setJuliaCoords(coords[0], coords[1]);
+			}
+		});
+		getContentPane().add(view);
+		pack();
+		setResizable(false);
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		
+		// Render away from the event thread as it can take a second or two
+		Thread thread = new Thread("Refract atlas") {
+			public void run()
+			{
+				int[] rgb = atlas.render(x, y, span, MAX_ITERS, colorizer);
+				image.setRGB(0, 0, atlas.getWidth(), atlas.getHeight(), rgb, 0, atlas.getWidth());
+				view.repaint();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
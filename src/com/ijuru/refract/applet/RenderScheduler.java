@@ -0,0 +1,344 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.applet;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders fractal panels on a shared pool of threads, driven by a single frame clock.
+ * Every panel which needs rendering is rendered in the same frame: the threads claim
+ * rows from all of the panels, starting with the panel that the user is interacting with,
+ * and then the changed rows of all of the panels are colorized by the same threads. Linked
+ * panels, like the Mandelbrot and Julia views, so reach steady state together and no core
+ * sits idle while one of them still has rows left. The clock goes to sleep when no panel
+ * has anything left to render, and is woken by a panel when something changes. Frames
+ * are never rendered faster than the display can show them.
+ */
+public class RenderScheduler
+{
+	private final int DEF_REFRESHRATE = 60;		// Refresh rate to assume if the display's is unknown
+	private final int COLORIZE_ROWS = 32;		// Rows colorized by each colorization task
+
+	private final ExecutorService executor;
+	private final Thread clock;						// Renders each frame and waits for the next
+	private final int threads;
+	private final long frameInterval;				// Min nanos between the starts of frames
+	private final List<ScheduledPanel> panels = new ArrayList<ScheduledPanel>();
+	private volatile FractalPanel activePanel = null;	// The panel the user is interacting with
+	private boolean paused = true;						// True if the clock shouldn't start new frames
+	private boolean inFrame = false;					// True while the clock is rendering a frame
+	private boolean stopped = false;					// True once the threads have been released
+
+	/**
+	 * Constructor
+	 * @param threads the number of threads to render with
+	 */
+	public RenderScheduler(int threads)
+	{
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Refract renderer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		
+		this.threads = threads;
+		executor = Executors.newFixedThreadPool(threads, factory);
+		frameInterval = 1000000000L / getRefreshRate();
+		
+		clock = new Thread(new Runnable() {
+			public void run()
+			{
+				runClock();
+			}
+		}, "Refract frame clock");
+		clock.setDaemon(true);
+		clock.start();
+	}
+	
+	/**
+	 * Gets the refresh rate of the default display
+	 */
+	private int getRefreshRate()
+	{
+		if (GraphicsEnvironment.isHeadless())
+			return DEF_REFRESHRATE;
+		
+		DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+		int rate = mode.getRefreshRate();
+		return (rate == DisplayMode.REFRESH_RATE_UNKNOWN) ? DEF_REFRESHRATE : rate;
+	}
+
+	/**
+	 * Adds a panel to be rendered by this scheduler
+	 * @param panel the panel
+	 * @param frameBudget the max time in millis for each frame's render
+	 */
+	public synchronized void addPanel(FractalPanel panel, int frameBudget)
+	{
+		panels.add(new ScheduledPanel(panel, frameBudget));
+		panel.setScheduler(this);
+		notifyAll();
+	}
+
+	/**
+	 * Sets the panel that the user is interacting with, which is given priority
+	 */
+	public void setActivePanel(FractalPanel panel)
+	{
+		activePanel = panel;
+	}
+
+	/**
+	 * Wakes the frame clock if it is sleeping. Panels call this after any change which
+	 * needs rendering.
+	 */
+	public synchronized void wake(FractalPanel panel)
+	{
+		notifyAll();
+	}
+
+	/**
+	 * Starts or resumes rendering
+	 */
+	public synchronized void start()
+	{
+		paused = false;
+		notifyAll();
+	}
+
+	/**
+	 * Pauses rendering once the frame in progress has completed
+	 */
+	public synchronized void pause()
+	{
+		paused = true;
+	}
+
+	/**
+	 * Pauses rendering and waits for the frame in progress, if any, to complete. Nothing
+	 * touches the panels' renderers after this returns until rendering is resumed.
+	 */
+	public synchronized void pauseAndWait() throws InterruptedException
+	{
+		paused = true;
+		while (inFrame && !stopped)
+			wait();
+	}
+
+	/**
+	 * Gets whether rendering is paused
+	 */
+	public synchronized boolean isPaused()
+	{
+		return paused;
+	}
+
+	/**
+	 * Stops rendering and releases the threads
+	 */
+	public synchronized void shutdown()
+	{
+		paused = true;
+		stopped = true;
+		clock.interrupt();
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Renders frames until shut down, sleeping while there is nothing to render
+	 */
+	private void runClock()
+	{
+		try {
+			while (true) {
+				List<ScheduledPanel> frame = awaitFrame();
+				long frameStart = System.nanoTime();
+				try {
+					renderFrame(frame);
+				}
+				catch (RuntimeException ex) {
+					report(ex);
+				}
+				finally {
+					frameEnded();
+				}
+				
+				// Hold the next frame back until the display is ready for it
+				long delay = frameStart + frameInterval - System.nanoTime();
+				if (delay > 0)
+					TimeUnit.NANOSECONDS.sleep(delay);
+			}
+		}
+		catch (InterruptedException ex) {
+			// Shut down
+		}
+	}
+	
+	/**
+	 * Waits until rendering isn't paused and some panels need rendering. Since this and
+	 * wake are both synchronized, a change made by a panel is either seen here or wakes
+	 * the clock after.
+	 * @return the panels to render, with the active panel first
+	 */
+	private synchronized List<ScheduledPanel> awaitFrame() throws InterruptedException
+	{
+		while (true) {
+			if (stopped)
+				throw new InterruptedException();
+			
+			List<ScheduledPanel> frame = new ArrayList<ScheduledPanel>();
+			if (!paused) {
+				for (ScheduledPanel scheduled : panels) {
+					if (scheduled.panel.needsRender()) {
+						if (scheduled.panel == activePanel)
+							frame.add(0, scheduled);
+						else
+							frame.add(scheduled);
+					}
+				}
+			}
+			if (!frame.isEmpty()) {
+				inFrame = true;
+				return frame;
+			}
+			
+			wait();
+		}
+	}
+	
+	/**
+	 * Called by the clock once a frame has been rendered, to wake anything waiting for it
+	 */
+	private synchronized void frameEnded()
+	{
+		inFrame = false;
+		notifyAll();
+	}
+	
+	/**
+	 * Renders a frame of some panels, using all of the threads for both rendering and
+	 * colorization. Everything else is done on the clock thread.
+	 * @param frame the panels, in order of priority
+	 */
+	private void renderFrame(List<ScheduledPanel> frame) throws InterruptedException
+	{
+		final List<FractalPanel> rendering = new ArrayList<FractalPanel>();
+		for (ScheduledPanel scheduled : frame) {
+			scheduled.panel.getRenderer().setFrameBudget(scheduled.frameBudget);
+			if (scheduled.panel.beginFrame())
+				rendering.add(scheduled.panel);
+		}
+		
+		// Each thread starts on a different panel, in order of priority, so that one panel
+		// can't starve the others of threads, and helps with the others once it runs out
+		// of rows there. With a single thread the panels are rendered in order of priority.
+		if (!rendering.isEmpty()) {
+			List<Callable<Object>> workers = new ArrayList<Callable<Object>>();
+			for (int t = 0; t < threads; ++t) {
+				final int first = t;
+				workers.add(new Callable<Object>() {
+					public Object call()
+					{
+						for (int p = 0; p < rendering.size(); ++p)
+							rendering.get((first + p) % rendering.size()).renderRows();
+						return null;
+					}
+				});
+			}
+			runAll(workers);
+		}
+		
+		// Bands of every panel are colorized together, in order of priority
+		List<Callable<Object>> bands = new ArrayList<Callable<Object>>();
+		for (ScheduledPanel scheduled : frame) {
+			final FractalPanel panel = scheduled.panel;
+			panel.beginColorize();
+			
+			int height = panel.getRenderer().getHeight();
+			for (int y = 0; y < height; y += COLORIZE_ROWS) {
+				final int y0 = y, y1 = Math.min(height, y + COLORIZE_ROWS);
+				bands.add(new Callable<Object>() {
+					public Object call()
+					{
+						panel.colorizeRows(y0, y1);
+						return null;
+					}
+				});
+			}
+		}
+		runAll(bands);
+		
+		for (ScheduledPanel scheduled : frame)
+			scheduled.panel.endFrame();
+	}
+	
+	/**
+	 * Runs tasks on the threads and waits for all of them to complete. A task which fails
+	 * is reported but doesn't stop the frame, and nor does a frame which fails stop the clock.
+	 */
+	private void runAll(List<Callable<Object>> tasks) throws InterruptedException
+	{
+		for (Future<Object> future : executor.invokeAll(tasks)) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException ex) {
+				report(ex.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Reports an exception thrown while rendering a frame, as an uncaught exception would be
+	 */
+	private void report(Throwable ex)
+	{
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+	}
+
+	/**
+	 * A panel rendered by the scheduler
+	 */
+	private static class ScheduledPanel
+	{
+		private final FractalPanel panel;
+		private final int frameBudget;		// Max time in millis for each frame's render
+
+		public ScheduledPanel(FractalPanel panel, int frameBudget)
+		{
+			this.panel = panel;
+			this.frameBudget = frameBudget;
+		}
+	}
+}
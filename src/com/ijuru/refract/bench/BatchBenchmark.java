@@ -0,0 +1,92 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.bench;
+
+import java.util.Arrays;
+
+import com.ijuru.refract.kernel.BatchBackend;
+import com.ijuru.refract.kernel.BatchTile;
+import com.ijuru.refract.kernel.KernelCounters;
+import com.ijuru.refract.kernel.KernelPass;
+import com.ijuru.refract.kernel.Kernels;
+
+/**
+ * Compares the speed and output of the native batch backend against the Java kernel,
+ * for whole tiles of a few typical views. Run with the width, height, max iterations
+ * and rounds as optional arguments, and with the native backend on the class and
+ * library paths (see native/build.sh).
+ */
+public class BatchBenchmark
+{
+	private static final String[] VIEW_NAMES = { "whole set", "seahorse valley", "julia" };
+	private static final double[][] VIEWS = {	// Zoom, re, im, julia re, julia im
+		{ 200, -0.5, 0, Double.NaN, 0 },
+		{ 20000, -0.745, -0.1, Double.NaN, 0 },
+		{ 200, 0, 0, -0.8, 0.156 }
+	};
+	
+	public static void main(String[] args)
+	{
+		int width = (args.length > 0) ? Integer.parseInt(args[0]) : 640;
+		int height = (args.length > 1) ? Integer.parseInt(args[1]) : 480;
+		int maxIters = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+		
+		BatchBackend nativeBackend = BatchBackend.getNative();
+		if (nativeBackend == null) {
+			System.out.println("Native backend is unavailable: " + BatchBackend.getNativeFailure());
+			return;
+		}
+		
+		for (int v = 0; v < VIEWS.length; ++v) {
+			double[] view = VIEWS[v];
+			boolean julia = !Double.isNaN(view[3]);
+			KernelPass pass = new KernelPass(width, height, view[0], view[1], view[2], julia, julia ? view[3] : 0, view[4], maxIters, 0);
+			BatchTile javaTile = BatchBackend.JAVA.createTile(width, height);
+			BatchTile nativeTile = nativeBackend.createTile(width, height);
+			KernelCounters javaCounters = new KernelCounters(), nativeCounters = new KernelCounters();
+			
+			// Alternate between the two so that neither is favoured by warm up or by clock changes
+			long javaNanos = Long.MAX_VALUE, nativeNanos = Long.MAX_VALUE;
+			for (int r = 0; r < rounds; ++r) {
+				long start = System.nanoTime();
+				javaCounters.reset();
+				BatchBackend.JAVA.iterate(Kernels.Z2, pass, javaTile, false, javaCounters);
+				javaNanos = Math.min(javaNanos, System.nanoTime() - start);
+				
+				start = System.nanoTime();
+				nativeCounters.reset();
+				nativeBackend.iterate(Kernels.Z2, pass, nativeTile, false, nativeCounters);
+				nativeNanos = Math.min(nativeNanos, System.nanoTime() - start);
+			}
+			
+			int[] javaIters = new int[width * height], nativeIters = new int[width * height];
+			javaTile.copyIters(javaIters, 0);
+			nativeTile.copyIters(nativeIters, 0);
+			javaTile.release();
+			nativeTile.release();
+			
+			boolean same = Arrays.equals(javaIters, nativeIters) && javaCounters.getIterations() == nativeCounters.getIterations()
+					&& javaCounters.getEscaped() == nativeCounters.getEscaped();
+			System.out.printf("%-16s java %8.2f ms  native %8.2f ms  speedup %.2fx  %s%n", VIEW_NAMES[v],
+					javaNanos / 1e6, nativeNanos / 1e6, (double)javaNanos / nativeNanos, same ? "identical" : "DIFFERENT");
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.ijuru.refract.IterCodec;
+import com.ijuru.refract.Renderer;
+
+/**
+ * Compares the size and speed of iteration buffers compressed by the iteration codec
+ * against the raw buffer compressed by gzip, for views ranging from mostly smooth to
+ * mostly noisy. Run with the width, height, max iterations and rounds as optional
+ * arguments.
+ */
+public class IterCodecBenchmark
+{
+	/**
+	 * Views as zoom, X and Y
+	 */
+	private static final double[][] VIEWS = {
+		{ 200, -0.5, 0 },
+		{ 4000, -0.7453, 0.1127 },
+		{ 2e6, -0.743643887, 0.131825904 }
+	};
+	
+	public static void main(String[] args) throws IOException
+	{
+		int width = (args.length > 0) ? Integer.parseInt(args[0]) : 640;
+		int height = (args.length > 1) ? Integer.parseInt(args[1]) : 480;
+		int maxIters = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+		
+		for (double[] view : VIEWS) {
+			Renderer renderer = new Renderer();
+			renderer.initialize(width, height);
+			renderer.setIterParams(maxIters, 10);
+			renderer.setCoords(view[0], view[1], view[2]);
+			renderer.update();
+			
+			// The renderer's buffer can be longer than the image, so only the image is measured
+			int[] iters = Arrays.copyOf(renderer.getIterBuffer(), width * height);
+			
+			System.out.printf("zoom %g: raw %d bytes%n", view[0], iters.length * 4);
+			measureGzip("gzip", iters, Deflater.DEFAULT_COMPRESSION, rounds);
+			measureGzip("gzip fast", iters, Deflater.BEST_SPEED, rounds);
+			measureCodec("codec", iters, width, height, new IterCodec(IterCodec.DEF_TILESIZE, false), rounds);
+			measureCodec("codec+lz", iters, width, height, new IterCodec(IterCodec.DEF_TILESIZE, true), rounds);
+		}
+	}
+	
+	private static void measureGzip(String name, int[] iters, final int level, int rounds) throws IOException
+	{
+		byte[] encoded = null;
+		int[] decoded = new int[iters.length];
+		long encodeNanos = Long.MAX_VALUE, decodeNanos = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; ++r) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ByteBuffer raw = ByteBuffer.allocate(iters.length * 4);
+			raw.asIntBuffer().put(iters);
+			GZIPOutputStream out = new GZIPOutputStream(bytes, 65536) {
+				{
+					def.setLevel(level);
+				}
+			};
+			out.write(raw.array());
+			out.close();
+			encoded = bytes.toByteArray();
+			encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+			
+			start = System.nanoTime();
+			DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(encoded), 65536));
+			byte[] inflated = new byte[decoded.length * 4];
+			in.readFully(inflated);
+			ByteBuffer.wrap(inflated).asIntBuffer().get(decoded);
+			decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+		}
+		report(name, iters, decoded, encoded.length, encodeNanos, decodeNanos);
+	}
+	
+	private static void measureCodec(String name, int[] iters, int width, int height, IterCodec codec, int rounds) throws IOException
+	{
+		byte[] encoded = null;
+		int[] decoded = null;
+		long encodeNanos = Long.MAX_VALUE, decodeNanos = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; ++r) {
+			long start = System.nanoTime();
+			encoded = codec.encode(iters, width, height);
+			encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+			
+			start = System.nanoTime();
+			decoded = IterCodec.decode(encoded);
+			decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+		}
+		report(name, iters, decoded, encoded.length, encodeNanos, decodeNanos);
+	}
+	
+	private static void report(String name, int[] iters, int[] decoded, int size, long encodeNanos, long decodeNanos)
+	{
+		System.out.printf("  %-10s %9d bytes  ratio %6.2f  encode %7.2f ms  decode %7.2f ms  %s%n", name, size, iters.length * 4.0 / size,
+				encodeNanos / 1e6, decodeNanos / 1e6, Arrays.equals(iters, decoded) ? "identical" : "DIFFERENT");
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.bench;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+import com.ijuru.refract.kernel.Formula;
+import com.ijuru.refract.kernel.FormulaCompiler;
+import com.ijuru.refract.kernel.InterpretedKernel;
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.KernelBuffers;
+import com.ijuru.refract.kernel.KernelCounters;
+import com.ijuru.refract.kernel.KernelPass;
+import com.ijuru.refract.kernel.Kernels;
+
+/**
+ * Compares the speed and output of the specialized kernels against the loops which
+ * the renderer used before kernels were introduced, and of compiled formulas against
+ * built-in and interpreted kernels. Run with the width, height, max iterations and
+ * rounds as optional arguments.
+ */
+public class KernelBenchmark
+{
+	private static final double ZOOM = 200;	// Same as a fresh view
+	private static final double RE = -0.5;
+	private static final double IM = 0;
+	
+	public static void main(String[] args) throws ParseException
+	{
+		int width = (args.length > 0) ? Integer.parseInt(args[0]) : 640;
+		int height = (args.length > 1) ? Integer.parseInt(args[1]) : 480;
+		int maxIters = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+		
+		Kernel[] kernels = { Kernels.Z2, Kernels.Z3, Kernels.Z4 };
+		
+		for (int power = 2; power <= 4; ++power) {
+			Kernel kernel = kernels[power - 2];
+			double[] zx = new double[width * height], zy = new double[width * height];
+			int[] legacyIters = new int[width * height], kernelIters = new int[width * height];
+			KernelBuffers buffers = new KernelBuffers(width, height, zx, zy, kernelIters);
+			KernelPass pass = new KernelPass(width, height, ZOOM, RE, IM, false, 0, 0, maxIters, 0);
+			KernelCounters counters = new KernelCounters();
+			
+			// Alternate between the two so that neither is favoured by warm up or by clock changes
+			long legacyNanos = Long.MAX_VALUE, kernelNanos = Long.MAX_VALUE;
+			long legacyIterations = 0;
+			for (int r = 0; r < rounds; ++r) {
+				long start = System.nanoTime();
+				legacyIterations = 0;
+				for (int y = 0; y < height; ++y) {
+					if (power == 2)
+						legacyIterations += legacyZ2(y, width, height, ZOOM, RE, IM, maxIters, zx, zy, legacyIters);
+					else if (power == 3)
+						legacyIterations += legacyZ3(y, width, height, ZOOM, RE, IM, maxIters, zx, zy, legacyIters);
+					else
+						legacyIterations += legacyZ4(y, width, height, ZOOM, RE, IM, maxIters, zx, zy, legacyIters);
+				}
+				legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+				
+				start = System.nanoTime();
+				counters.reset();
+				for (int y = 0; y < height; ++y)
+					kernel.iterate(pass, buffers, y, 0, width, false, counters);
+				kernelNanos = Math.min(kernelNanos, System.nanoTime() - start);
+			}
+			
+			boolean same = Arrays.equals(legacyIters, kernelIters) && legacyIterations == counters.getIterations();
+			System.out.printf("%-4s legacy %8.2f ms  kernel %8.2f ms  ratio %.3f  %s%n", kernel.getId(),
+					legacyNanos / 1e6, kernelNanos / 1e6, (double)kernelNanos / legacyNanos, same ? "identical" : "DIFFERENT");
+		}
+		
+		// Compiled formulas against the equivalent built-in kernel and against the interpreter
+		compareKernels(Kernels.Z2, FormulaCompiler.forFormula("z^2 + c"), width, height, maxIters, rounds);
+		compareKernels(new InterpretedKernel(Formula.parse("z^5 - z^2 + c")), FormulaCompiler.forFormula("z^5 - z^2 + c"), width, height, maxIters, rounds);
+	}
+	
+	/**
+	 * Compares the speed and output of two kernels which should be equivalent
+	 */
+	private static void compareKernels(Kernel kernel1, Kernel kernel2, int width, int height, int maxIters, int rounds)
+	{
+		KernelPass pass = new KernelPass(width, height, ZOOM, RE, IM, false, 0, 0, maxIters, 0);
+		KernelBuffers buffers1 = new KernelBuffers(width, height, new double[width * height], new double[width * height], new int[width * height]);
+		KernelBuffers buffers2 = new KernelBuffers(width, height, new double[width * height], new double[width * height], new int[width * height]);
+		KernelCounters counters = new KernelCounters();
+		
+		long nanos1 = Long.MAX_VALUE, nanos2 = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; ++r) {
+			long start = System.nanoTime();
+			for (int y = 0; y < height; ++y)
+				kernel1.iterate(pass, buffers1, y, 0, width, false, counters);
+			nanos1 = Math.min(nanos1, System.nanoTime() - start);
+			
+			start = System.nanoTime();
+			for (int y = 0; y < height; ++y)
+				kernel2.iterate(pass, buffers2, y, 0, width, false, counters);
+			nanos2 = Math.min(nanos2, System.nanoTime() - start);
+		}
+		
+		boolean same = Arrays.equals(buffers1.getIters(), buffers2.getIters());
+		System.out.printf("%-18s %-11s %8.2f ms  %-11s %8.2f ms  ratio %.3f  %s%n", kernel2.getId(),
+				kernel1.getClass().getSimpleName(), nanos1 / 1e6, kernel2.getClass().getSimpleName(), nanos2 / 1e6, (double)nanos2 / nanos1, same ? "identical" : "DIFFERENT");
+	}
+	
+	/**
+	 * The original z = z^2 + c loop, kept as it was before kernels for comparison
+	 */
+	private static long legacyZ2(int y, int width, int height, double zoom, double re, double im, int maxIters, double[] cacheX, double[] cacheY, int[] iters)
+	{
+		int halfCX = width / 2;
+		int halfCY = height / 2;
+		long niterations = 0;
+		
+		for (int x = 0, index = y * width; x < width; ++x, ++index) {
+			double zr, zi, cr, ci;
+			int niters;
+			
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			zr = cr;
+			zi = ci;
+			niters = 0;
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			while ((zr2 + zi2 < 4) && niters < maxIters) {
+				zi = 2 * zr * zi + ci;
+				zr = zr2 - zi2 + cr;
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			iters[index] = niters;
+			niterations += niters;
+		}
+		return niterations;
+	}
+	
+	/**
+	 * The original z = z^3 + c loop, kept as it was before kernels for comparison
+	 */
+	private static long legacyZ3(int y, int width, int height, double zoom, double re, double im, int maxIters, double[] cacheX, double[] cacheY, int[] iters)
+	{
+		int halfCX = width / 2;
+		int halfCY = height / 2;
+		long niterations = 0;
+		
+		for (int x = 0, index = y * width; x < width; ++x, ++index) {
+			double zr, zi, cr, ci;
+			int niters;
+			
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			zr = cr;
+			zi = ci;
+			niters = 0;
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			while ((zr2 + zi2 < 4) && niters < maxIters) {
+				zi = zi * (3 * zr2 - zi2) + ci;
+				zr = zr * (zr2 - 3 * zi2) + cr;
+				
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			iters[index] = niters;
+			niterations += niters;
+		}
+		return niterations;
+	}
+	
+	/**
+	 * The original z = z^4 + c loop, kept as it was before kernels for comparison
+	 */
+	private static long legacyZ4(int y, int width, int height, double zoom, double re, double im, int maxIters, double[] cacheX, double[] cacheY, int[] iters)
+	{
+		int halfCX = width / 2;
+		int halfCY = height / 2;
+		long niterations = 0;
+		
+		for (int x = 0, index = y * width; x < width; ++x, ++index) {
+			double zr, zi, cr, ci;
+			int niters;
+			
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			zr = cr;
+			zi = ci;
+			niters = 0;
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			while ((zr2 + zi2 < 4) && niters < maxIters) {
+				zi = 4 * zr * zi * (zr2 - zi2) + ci;
+				zr = zr2 * zr2 - 6 * zr2 * zi2 + zi2 * zi2 + cr;
+				
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			iters[index] = niters;
+			niterations += niters;
+		}
+		return niterations;
+	}
+}
@@ -0,0 +1,449 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.farm;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.ijuru.refract.Colorizer;
+import com.ijuru.refract.IterCodec;
+import com.ijuru.refract.Palette;
+import com.ijuru.refract.ViewParams;
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.Kernels;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Coordinates a render farm. Workers connect to the coordinator and each connection
+ * pulls tiles from the submitted jobs, oldest job first, whenever its worker has a
+ * free slot, so work flows to whichever workers are fastest. A connection which is
+ * lost hands its tiles back to be sent to other workers, and tiles which are taking
+ * too long are also sent to idle workers near the end of a job. Results are copied
+ * into their job's buffer as they arrive. Run with the port, image dimensions, max
+ * iterations, zoom, coords, a PNG file and optionally a kernel id to render a Mandelbrot
+ * view to the file.
+ */
+public class FarmCoordinator
+{
+	private static final int DEF_TILESIZE = 64;			// The default width and height of tiles
+	private static final int SLOTS_PER_THREAD = 2;		// Tiles in flight per worker thread, so workers never wait for the next
+	private static final int DEF_STEALMILLIS = 2000;	// The default time after which a tile may be sent to another worker
+	private static final int POLL_MILLIS = 100;			// How often idle connections look for tiles to steal
+	private static final int MAX_RESULT_BYTES = 1 << 26;	// Larger results can only be from a broken worker
+	private static final int HANDSHAKE_MILLIS = 10000;	// Time a worker has to complete its handshake
+	
+	private final ServerSocket server;
+	private final int tileSize;
+	private volatile long stealNanos = DEF_STEALMILLIS * 1000000L;
+	private final List<FarmJob> jobs = new ArrayList<FarmJob>(); // Unfinished jobs, oldest first
+	private final Map<Integer, FarmJob> jobsById = new HashMap<Integer, FarmJob>();
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private int nextJobId = 0;
+	private volatile boolean running = true;
+	
+	/**
+	 * Constructor
+	 * @param port the port to listen for workers on, or zero for any free port
+	 */
+	public FarmCoordinator(int port) throws IOException
+	{
+		this(port, DEF_TILESIZE);
+	}
+	
+	/**
+	 * Constructor
+	 * @param port the port to listen for workers on, or zero for any free port
+	 * @param tileSize the width and height of tiles
+	 */
+	public FarmCoordinator(int port, int tileSize) throws IOException
+	{
+		this.server = new ServerSocket(port);
+		this.tileSize = tileSize;
+		
+		Thread acceptor = new Thread(new Runnable() {
+			public void run()
+			{
+				acceptWorkers();
+			}
+		}, "Refract farm acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	/**
+	 * Accepts connections from workers until shut down
+	 */
+	private void acceptWorkers()
+	{
+		while (running) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				new Connection(socket).start();
+			}
+			catch (IOException ex) {
+				// Either shut down, or a connection which failed as it was accepted
+			}
+		}
+	}
+	
+	/**
+	 * Submits a view to be rendered
+	 * @param view the view
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param maxIters the max number of iterations to perform
+	 * @return the job, which is complete when all its tiles are
+	 */
+	public synchronized FarmJob submit(ViewParams view, int width, int height, int maxIters)
+	{
+		FarmJob job = new FarmJob(nextJobId++, view, width, height, maxIters, tileSize);
+		jobs.add(job);
+		jobsById.put(job.getId(), job);
+		notifyAll();
+		return job;
+	}
+	
+	/**
+	 * Takes the next tile for a worker, waiting until there is one
+	 * @return the task, or null if shut down
+	 */
+	private synchronized FarmTask takeTask() throws InterruptedException
+	{
+		while (running) {
+			for (int j = 0; j < jobs.size(); ++j) {
+				FarmJob job = jobs.get(j);
+				if (job.isFinished()) {
+					jobs.remove(j--);
+					jobsById.remove(job.getId());
+					continue;
+				}
+				
+				FarmTask task = job.nextTask(stealNanos);
+				if (task != null)
+					return task;
+			}
+			// Wake up now and then to look for slow tiles which can be stolen
+			wait(POLL_MILLIS);
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets an unfinished job by its id
+	 */
+	private synchronized FarmJob getJob(int jobId)
+	{
+		return jobsById.get(jobId);
+	}
+	
+	/**
+	 * Called when a connection is lost, to hand its tiles to the other workers
+	 */
+	private synchronized void connectionLost(Connection connection, List<FarmTask> tasks)
+	{
+		connections.remove(connection);
+		for (FarmTask task : tasks) {
+			FarmJob job = jobsById.get(task.getJobId());
+			if (job != null)
+				job.taskLost(task);
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Gets the number of connected workers
+	 */
+	public synchronized int getWorkerCount()
+	{
+		return connections.size();
+	}
+	
+	/**
+	 * Gets the port that workers connect to
+	 */
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Sets how long a tile must have been with a worker before it may be sent to another
+	 */
+	public void setStealMillis(int millis)
+	{
+		stealNanos = millis * 1000000L;
+	}
+	
+	/**
+	 * Stops accepting workers and tells connected workers to exit
+	 */
+	public void shutdown()
+	{
+		running = false;
+		try {
+			server.close();
+		}
+		catch (IOException ex) {
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * The connection to a single worker. One thread sends tiles whenever the worker has
+	 * a free slot, and another receives its results.
+	 */
+	private class Connection
+	{
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private Semaphore slots;
+		private final List<FarmTask> inFlight = new ArrayList<FarmTask>(); // Tiles sent but not returned
+		private boolean closed = false;
+		
+		public Connection(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		
+		/**
+		 * Starts the connection's receiver thread, which completes the handshake first so
+		 * that a worker which is slow to complete it doesn't hold up any others
+		 */
+		public void start()
+		{
+			Thread receiver = new Thread(new Runnable() {
+				public void run()
+				{
+					if (handshake())
+						receiveResults();
+				}
+			}, "Refract farm receiver");
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		
+		/**
+		 * Completes the handshake and starts the sender thread. A worker which doesn't complete
+		 * the handshake in time is disconnected.
+		 * @return true if the handshake succeeded
+		 */
+		private boolean handshake()
+		{
+			try {
+				socket.setSoTimeout(HANDSHAKE_MILLIS);
+				FarmProtocol.checkHeader(in);
+				int threads = in.readInt();
+				slots = new Semaphore(Math.max(1, threads) * SLOTS_PER_THREAD);
+				FarmProtocol.writeHeader(out);
+				out.flush();
+				socket.setSoTimeout(0);
+			}
+			catch (IOException ex) {
+				try {
+					socket.close();
+				}
+				catch (IOException ex2) {
+					// Nothing more we can do
+				}
+				return false;
+			}
+			
+			synchronized (FarmCoordinator.this) {
+				connections.add(this);
+			}
+			
+			Thread sender = new Thread(new Runnable() {
+				public void run()
+				{
+					sendTasks();
+				}
+			}, "Refract farm sender");
+			sender.setDaemon(true);
+			sender.start();
+			return true;
+		}
+		
+		private void sendTasks()
+		{
+			try {
+				while (true) {
+					slots.acquire();
+					FarmTask task = takeTask();
+					if (task == null)
+						break;
+					
+					synchronized (this) {
+						if (closed) {
+							// Lost while waiting for a task, so hand it straight back
+							List<FarmTask> lost = new ArrayList<FarmTask>();
+							lost.add(task);
+							connectionLost(this, lost);
+							return;
+						}
+						inFlight.add(task);
+					}
+					task.write(out);
+					out.flush();
+				}
+				out.writeByte(FarmProtocol.MSG_BYE);
+				out.flush();
+			}
+			catch (IOException ex) {
+				close();
+			}
+			catch (InterruptedException ex) {
+				close();
+			}
+		}
+		
+		private void receiveResults()
+		{
+			try {
+				while (true) {
+					byte type = in.readByte();
+					int jobId = in.readInt();
+					int tileId = in.readInt();
+					
+					FarmTask task = removeInFlight(jobId, tileId);
+					if (task == null)
+						throw new IOException("Result for a tile which wasn't sent");
+					
+					if (type == FarmProtocol.MSG_RESULT) {
+						int length = in.readInt();
+						if (length < 0 || length > MAX_RESULT_BYTES)
+							throw new IOException("Invalid result length");
+						byte[] encoded = new byte[length];
+						in.readFully(encoded);
+						int[] iters = new int[task.getWidth() * task.getHeight()];
+						IterCodec.decodeTile(encoded, iters, task.getWidth(), 0, 0, task.getWidth(), task.getHeight());
+						
+						FarmJob job = getJob(jobId);
+						if (job != null)
+							job.taskCompleted(task, iters);
+					}
+					else if (type == FarmProtocol.MSG_ERROR) {
+						String message = in.readUTF();
+						FarmJob job = getJob(jobId);
+						if (job != null)
+							job.taskFailed(task, message);
+					}
+					else
+						throw new IOException("Unexpected message " + type);
+					
+					slots.release();
+				}
+			}
+			catch (IOException ex) {
+				close();
+			}
+		}
+		
+		private synchronized FarmTask removeInFlight(int jobId, int tileId)
+		{
+			for (int t = 0; t < inFlight.size(); ++t) {
+				FarmTask task = inFlight.get(t);
+				if (task.getJobId() == jobId && task.getTileId() == tileId)
+					return inFlight.remove(t);
+			}
+			return null;
+		}
+		
+		/**
+		 * Closes the connection and hands its tiles back
+		 */
+		private void close()
+		{
+			List<FarmTask> lost;
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				lost = new ArrayList<FarmTask>(inFlight);
+				inFlight.clear();
+			}
+			try {
+				socket.close();
+			}
+			catch (IOException ex) {
+			}
+			// Wake the sender if it's waiting for a slot
+			slots.release(slots.availablePermits() + 1);
+			connectionLost(this, lost);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if (args.length < 8) {
+			System.err.println("Usage: FarmCoordinator <port> <width> <height> <maxIters> <zoom> <x> <y> <file.png> [kernel]");
+			System.exit(1);
+		}
+		
+		int port = Integer.parseInt(args[0]);
+		int width = Integer.parseInt(args[1]);
+		int height = Integer.parseInt(args[2]);
+		int maxIters = Integer.parseInt(args[3]);
+		Kernel kernel = (args.length > 8) ? Kernels.forId(args[8]) : Kernels.Z2;
+		ViewParams view = new ViewParams(kernel, false, Double.parseDouble(args[4]), Double.parseDouble(args[5]), Double.parseDouble(args[6]), 0, 0);
+		
+		FarmCoordinator coordinator = new FarmCoordinator(port);
+		System.out.println("Waiting for workers on port " + coordinator.getPort());
+		
+		long start = System.currentTimeMillis();
+		FarmJob job = coordinator.submit(view, width, height, maxIters);
+		job.addListener(new FarmListener() {
+			public void tileCompleted(FarmJob job, int x, int y, int width, int height)
+			{
+				int completed = job.getCompletedCount();
+				if (completed % 100 == 0 || completed == job.getTileCount())
+					System.out.println(completed + "/" + job.getTileCount() + " tiles");
+			}
+		});
+		job.await();
+		System.out.println("Rendered in " + (System.currentTimeMillis() - start) + " ms");
+		coordinator.shutdown();
+		
+		int[] rgb = new int[width * height];
+		Colorizer colorizer = new Colorizer(new Palette(Palette.SUNSET).createInterpolation(64), 0, 0x000000);
+		colorizer.colorize(job.getIterBuffer(), rgb, 0, width * height, maxIters);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, rgb, 0, width);
+		ImageIO.write(image, "PNG", new File(args[7]));
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.farm;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.ijuru.refract.ViewParams;
+
+/**
+ * A view being rendered by a render farm, split into tiles. Tiles are handed out in
+ * order to whichever worker asks for one next, so faster workers take more of them.
+ * Once none are left, idle workers take tiles which have been out with another worker
+ * for too long, and whichever copy comes back first is used. Tiles held by a worker
+ * whose connection is lost go back to the front of the queue.
+ */
+public class FarmJob
+{
+	private static final int MAX_ISSUES = 3; // Max number of workers a tile is sent to at once
+	
+	private final int id;
+	private final ViewParams view;
+	private final int width, height; // Dimensions of the image
+	private final int maxIters;
+	private final int[] iters; // Iteration values of the image, filled in as tiles complete
+	private final FarmTask[] tasks;
+	private final Deque<Integer> pending = new ArrayDeque<Integer>(); // Tiles waiting to be sent
+	private final long[] issuedAt; // When each tile was last sent, in nanos
+	private final int[] issues; // Number of copies of each tile out with workers
+	private final boolean[] done;
+	private int completed = 0;
+	private String error = null; // Set if a worker couldn't render a tile
+	private final List<FarmListener> listeners = new CopyOnWriteArrayList<FarmListener>();
+	
+	/**
+	 * Constructor
+	 * @param id the id of this job, unique to its coordinator
+	 * @param view the view to render
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param maxIters the max number of iterations to perform
+	 * @param tileSize the width and height of each tile
+	 */
+	FarmJob(int id, ViewParams view, int width, int height, int maxIters, int tileSize)
+	{
+		this.id = id;
+		this.view = view;
+		this.width = width;
+		this.height = height;
+		this.maxIters = maxIters;
+		this.iters = new int[width * height];
+		
+		int cols = (width + tileSize - 1) / tileSize;
+		int rows = (height + tileSize - 1) / tileSize;
+		tasks = new FarmTask[cols * rows];
+		issuedAt = new long[tasks.length];
+		issues = new int[tasks.length];
+		done = new boolean[tasks.length];
+		
+		String kernelId = view.getKernel().getId();
+		for (int row = 0, tile = 0; row < rows; ++row) {
+			for (int col = 0; col < cols; ++col, ++tile) {
+				int x = col * tileSize, y = row * tileSize;
+				tasks[tile] = new FarmTask(id, tile, kernelId, view.isJulia(), view.getZoom(), view.getXPos(), view.getYPos(), view.getJuliaX(), view.getJuliaY(), view.getBailout(),
+						width, height, x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y), maxIters);
+				pending.add(tile);
+			}
+		}
+	}
+	
+	/**
+	 * Takes the next tile to send to a worker
+	 * @param stealNanos how long a tile must have been out before another worker may take it
+	 * @return the task, or null if there is nothing to send
+	 */
+	synchronized FarmTask nextTask(long stealNanos)
+	{
+		if (isFinished())
+			return null;
+		
+		long now = System.nanoTime();
+		Integer next = pending.poll();
+		if (next == null) {
+			// Steal the tile which has been out the longest
+			long oldest = now - stealNanos;
+			for (int tile = 0; tile < tasks.length; ++tile) {
+				if (!done[tile] && issues[tile] < MAX_ISSUES && issuedAt[tile] <= oldest) {
+					oldest = issuedAt[tile];
+					next = tile;
+				}
+			}
+			if (next == null)
+				return null;
+		}
+		
+		issuedAt[next] = now;
+		++issues[next];
+		return tasks[next];
+	}
+	
+	/**
+	 * Called when a worker holding a tile has been lost
+	 */
+	synchronized void taskLost(FarmTask task)
+	{
+		int tile = task.getTileId();
+		if (--issues[tile] == 0 && !done[tile])
+			pending.addFirst(tile);
+	}
+	
+	/**
+	 * Called when a worker has rendered a tile. Results for tiles which are already
+	 * complete are ignored.
+	 * @param task the task
+	 * @param tileIters the iteration values of the tile
+	 */
+	void taskCompleted(FarmTask task, int[] tileIters)
+	{
+		int tile = task.getTileId();
+		synchronized (this) {
+			--issues[tile];
+			if (done[tile] || error != null)
+				return;
+			
+			int w = task.getWidth();
+			for (int y = 0; y < task.getHeight(); ++y)
+				System.arraycopy(tileIters, y * w, iters, (task.getY() + y) * width + task.getX(), w);
+			done[tile] = true;
+			++completed;
+			if (completed == tasks.length)
+				notifyAll();
+		}
+		
+		for (FarmListener listener : listeners)
+			listener.tileCompleted(this, task.getX(), task.getY(), task.getWidth(), task.getHeight());
+	}
+	
+	/**
+	 * Called when a worker couldn't render a tile, which fails the whole job as no other
+	 * worker will be able to either
+	 */
+	synchronized void taskFailed(FarmTask task, String message)
+	{
+		if (error == null)
+			error = "Tile " + task.getTileId() + ": " + message;
+		notifyAll();
+	}
+	
+	/**
+	 * Gets whether all tiles are complete or the job has failed
+	 */
+	public synchronized boolean isFinished()
+	{
+		return completed == tasks.length || error != null;
+	}
+	
+	/**
+	 * Waits for all tiles to complete
+	 * @throws IOException if a worker couldn't render a tile
+	 */
+	public void await() throws IOException, InterruptedException
+	{
+		await(0, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Waits for all tiles to complete, up to a time limit
+	 * @param timeout the time limit, or zero for none
+	 * @param unit the unit of the time limit
+	 * @return true if all tiles completed, false if the time limit was reached
+	 * @throws IOException if a worker couldn't render a tile
+	 */
+	public synchronized boolean await(long timeout, TimeUnit unit) throws IOException, InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!isFinished()) {
+			long remaining = deadline - System.nanoTime();
+			if (timeout > 0 && remaining <= 0)
+				return false;
+			
+			if (timeout > 0)
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			else
+				wait();
+		}
+		if (error != null)
+			throw new IOException(error);
+		return true;
+	}
+	
+	/**
+	 * Adds a listener for completed tiles
+	 */
+	public void addListener(FarmListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public int getId()
+	{
+		return id;
+	}
+	
+	public ViewParams getView()
+	{
+		return view;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	public int getMaxIters()
+	{
+		return maxIters;
+	}
+	
+	/**
+	 * Gets the iteration values of the image. Tiles which haven't completed are zero.
+	 */
+	public int[] getIterBuffer()
+	{
+		return iters;
+	}
+	
+	/**
+	 * Gets the number of tiles which have completed
+	 */
+	public synchronized int getCompletedCount()
+	{
+		return completed;
+	}
+	
+	/**
+	 * Gets the number of tiles in the job
+	 */
+	public int getTileCount()
+	{
+		return tasks.length;
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.farm;
+
+/**
+ * Listener for the progress of a render farm job
+ */
+public interface FarmListener
+{
+	/**
+	 * Called from a connection thread of the coordinator when a tile's iteration values
+	 * have been copied into the job's buffer
+	 * @param job the job
+	 * @param x the X coord of the tile
+	 * @param y the Y coord of the tile
+	 * @param width the width of the tile
+	 * @param height the height of the tile
+	 */
+	public void tileCompleted(FarmJob job, int x, int y, int width, int height);
+}
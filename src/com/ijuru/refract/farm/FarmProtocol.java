@@ -0,0 +1,74 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.farm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Constants and handshake of the protocol between a coordinator and its workers. All
+ * messages are a type byte followed by big-endian fields:
+ * 
+ *   handshake  worker sends magic, version and number of threads, coordinator replies
+ *              with magic and version
+ *   TASK       coordinator to worker, a tile to render (see FarmTask)
+ *   RESULT     worker to coordinator, job id, tile id, and the length and bytes of the
+ *              tile's iteration values encoded by IterCodec
+ *   ERROR      worker to coordinator, job id, tile id and a message if a tile can't be
+ *              rendered, e.g. because the worker doesn't know its kernel
+ *   BYE        coordinator to worker, no more tasks will be sent
+ */
+final class FarmProtocol
+{
+	static final int MAGIC = 0x5246524D; // "RFRM"
+	static final short VERSION = 3;
+	
+	static final byte MSG_TASK = 1;
+	static final byte MSG_RESULT = 2;
+	static final byte MSG_ERROR = 3;
+	static final byte MSG_BYE = 4;
+	
+	private FarmProtocol()
+	{
+	}
+	
+	/**
+	 * Checks the magic and version sent by the other end of a connection
+	 * @throws IOException if they don't match this end's
+	 */
+	static void checkHeader(DataInputStream in) throws IOException
+	{
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a render farm connection");
+		short version = in.readShort();
+		if (version != VERSION)
+			throw new IOException("Unsupported render farm version " + version);
+	}
+	
+	/**
+	 * Writes the magic and version
+	 */
+	static void writeHeader(DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+	}
+}
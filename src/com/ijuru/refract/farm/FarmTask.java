@@ -0,0 +1,209 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.farm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.ijuru.refract.kernel.Kernel;
+
+/**
+ * A single tile of a job, which is everything a worker needs to render it. Workers
+ * keep no state between tasks, so any task can be sent to any worker, and sent again
+ * to another if the first is lost or slow.
+ */
+public final class FarmTask
+{
+	private final int jobId, tileId;
+	private final String kernelId; // Id of the kernel, as understood by Kernels.forId
+	private final boolean julia;
+	private final double zoom, xpos, ypos, juliaX, juliaY;
+	private final double bailout; // Radius beyond which a point has escaped
+	private final int imageWidth, imageHeight; // Dimensions of the whole image
+	private final int x, y, width, height; // Bounds of the tile within the image
+	private final int maxIters;
+	
+	/**
+	 * Constructor
+	 */
+	FarmTask(int jobId, int tileId, String kernelId, boolean julia, double zoom, double xpos, double ypos, double juliaX, double juliaY, double bailout,
+			int imageWidth, int imageHeight, int x, int y, int width, int height, int maxIters)
+	{
+		this.jobId = jobId;
+		this.tileId = tileId;
+		this.kernelId = kernelId;
+		this.julia = julia;
+		this.zoom = zoom;
+		this.xpos = xpos;
+		this.ypos = ypos;
+		this.juliaX = juliaX;
+		this.juliaY = juliaY;
+		this.bailout = bailout;
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.maxIters = maxIters;
+	}
+	
+	/**
+	 * Writes this task as a TASK message
+	 */
+	void write(DataOutputStream out) throws IOException
+	{
+		out.writeByte(FarmProtocol.MSG_TASK);
+		out.writeInt(jobId);
+		out.writeInt(tileId);
+		out.writeUTF(kernelId);
+		out.writeBoolean(julia);
+		out.writeDouble(zoom);
+		out.writeDouble(xpos);
+		out.writeDouble(ypos);
+		out.writeDouble(juliaX);
+		out.writeDouble(juliaY);
+		out.writeDouble(bailout);
+		out.writeInt(imageWidth);
+		out.writeInt(imageHeight);
+		out.writeInt(x);
+		out.writeInt(y);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(maxIters);
+	}
+	
+	/**
+	 * Reads a task from a TASK message, after its type byte
+	 */
+	static FarmTask read(DataInputStream in) throws IOException
+	{
+		int jobId = in.readInt();
+		int tileId = in.readInt();
+		String kernelId = in.readUTF();
+		boolean julia = in.readBoolean();
+		double zoom = in.readDouble();
+		double xpos = in.readDouble();
+		double ypos = in.readDouble();
+		double juliaX = in.readDouble();
+		double juliaY = in.readDouble();
+		double bailout = in.readDouble();
+		int imageWidth = in.readInt();
+		int imageHeight = in.readInt();
+		int x = in.readInt();
+		int y = in.readInt();
+		int width = in.readInt();
+		int height = in.readInt();
+		int maxIters = in.readInt();
+		
+		if (width <= 0 || height <= 0 || x < 0 || y < 0 || x + width > imageWidth || y + height > imageHeight)
+			throw new IOException("Invalid tile bounds");
+		if (!(bailout >= Kernel.DEF_BAILOUT))
+			throw new IOException("Invalid bailout radius");
+		
+		return new FarmTask(jobId, tileId, kernelId, julia, zoom, xpos, ypos, juliaX, juliaY, bailout, imageWidth, imageHeight, x, y, width, height, maxIters);
+	}
+	
+	public int getJobId()
+	{
+		return jobId;
+	}
+	
+	public int getTileId()
+	{
+		return tileId;
+	}
+	
+	public String getKernelId()
+	{
+		return kernelId;
+	}
+	
+	public boolean isJulia()
+	{
+		return julia;
+	}
+	
+	public double getZoom()
+	{
+		return zoom;
+	}
+	
+	public double getXPos()
+	{
+		return xpos;
+	}
+	
+	public double getYPos()
+	{
+		return ypos;
+	}
+	
+	public double getJuliaX()
+	{
+		return juliaX;
+	}
+	
+	public double getJuliaY()
+	{
+		return juliaY;
+	}
+	
+	public double getBailout()
+	{
+		return bailout;
+	}
+	
+	public int getImageWidth()
+	{
+		return imageWidth;
+	}
+	
+	public int getImageHeight()
+	{
+		return imageHeight;
+	}
+	
+	public int getX()
+	{
+		return x;
+	}
+	
+	public int getY()
+	{
+		return y;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	public int getMaxIters()
+	{
+		return maxIters;
+	}
+}
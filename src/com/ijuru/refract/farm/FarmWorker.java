@@ -0,0 +1,193 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.farm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.ijuru.refract.IterCodec;
+import com.ijuru.refract.kernel.BatchBackend;
+import com.ijuru.refract.kernel.BatchTile;
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.KernelCounters;
+import com.ijuru.refract.kernel.KernelPass;
+import com.ijuru.refract.kernel.Kernels;
+import com.ijuru.refract.kernel.OrbitStatistic;
+
+/**
+ * A render farm worker, which connects to a coordinator and renders the tiles it is
+ * sent until the coordinator says goodbye or the connection is lost. Tiles are rendered
+ * on a thread per core, and the coordinator keeps enough tiles in flight to keep them
+ * all busy. Run with the coordinator's host and port, and optionally the number of
+ * threads.
+ */
+public class FarmWorker
+{
+	private final String host;
+	private final int port;
+	private final int threads;
+	private final IterCodec codec = new IterCodec(IterCodec.DEF_TILESIZE, false); // Encodes results
+	private volatile int rendered = 0; // Number of tiles rendered
+	
+	/**
+	 * Constructor
+	 * @param host the host of the coordinator
+	 * @param port the port of the coordinator
+	 * @param threads the number of threads to render with
+	 */
+	public FarmWorker(String host, int port, int threads)
+	{
+		this.host = host;
+		this.port = port;
+		this.threads = threads;
+	}
+	
+	/**
+	 * Connects to the coordinator and renders tiles until it says goodbye
+	 * @throws IOException if the connection fails or is lost
+	 */
+	public void run() throws IOException
+	{
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			
+			FarmProtocol.writeHeader(out);
+			out.writeInt(threads);
+			out.flush();
+			FarmProtocol.checkHeader(in);
+			
+			while (true) {
+				byte type = in.readByte();
+				if (type == FarmProtocol.MSG_BYE)
+					break;
+				if (type != FarmProtocol.MSG_TASK)
+					throw new IOException("Unexpected message " + type);
+				
+				final FarmTask task = FarmTask.read(in);
+				executor.execute(new Runnable() {
+					public void run()
+					{
+						sendResult(out, task);
+					}
+				});
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Renders a tile and sends the result, or an error if it can't be rendered
+	 */
+	private void sendResult(DataOutputStream out, FarmTask task)
+	{
+		byte[] encoded = null;
+		String error = null;
+		try {
+			int[] iters = render(task);
+			encoded = codec.encodeTile(iters, task.getWidth(), 0, 0, task.getWidth(), task.getHeight());
+		}
+		catch (RuntimeException ex) {
+			// Whatever went wrong, the coordinator should hear about it rather than wait forever
+			error = ex.getMessage();
+		}
+		
+		try {
+			synchronized (out) {
+				out.writeByte((encoded != null) ? FarmProtocol.MSG_RESULT : FarmProtocol.MSG_ERROR);
+				out.writeInt(task.getJobId());
+				out.writeInt(task.getTileId());
+				if (encoded != null) {
+					out.writeInt(encoded.length);
+					out.write(encoded);
+				}
+				else
+					out.writeUTF(String.valueOf(error));
+				out.flush();
+			}
+			++rendered;
+		}
+		catch (IOException ex) {
+			// The connection is gone so the coordinator will send this tile to someone else
+		}
+	}
+	
+	/**
+	 * Renders the iteration values of a tile, with the native backend if it is available
+	 * @param task the task
+	 * @return the iteration values
+	 * @throws IllegalArgumentException if the kernel isn't recognized
+	 */
+	public static int[] render(FarmTask task)
+	{
+		Kernel kernel = Kernels.forId(task.getKernelId());
+		int w = task.getWidth(), h = task.getHeight();
+		
+		// The tile's pass maps its pixels exactly as a pass over the whole image would
+		KernelPass pass = new KernelPass(task.getImageWidth(), task.getImageHeight(), task.getZoom(), task.getXPos(), task.getYPos(), task.isJulia(),
+				task.getJuliaX(), task.getJuliaY(), task.getMaxIters(), 0, false, task.getBailout(), OrbitStatistic.NONE, null).forTile(task.getX(), task.getY(), w, h);
+		KernelCounters counters = new KernelCounters();
+		
+		BatchBackend backend = BatchBackend.forPass(kernel, pass);
+		BatchTile tile = backend.createTile(w, h);
+		try {
+			backend.iterate(kernel, pass, tile, false, counters);
+			int[] iters = new int[w * h];
+			tile.copyIters(iters, 0);
+			return iters;
+		}
+		finally {
+			tile.release();
+		}
+	}
+	
+	/**
+	 * Gets the number of tiles rendered
+	 */
+	public int getRenderedCount()
+	{
+		return rendered;
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2) {
+			System.err.println("Usage: FarmWorker <host> <port> [threads]");
+			System.exit(1);
+		}
+		
+		int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		FarmWorker worker = new FarmWorker(args[0], Integer.parseInt(args[1]), threads);
+		worker.run();
+		System.out.println("Rendered " + worker.getRenderedCount() + " tiles");
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Iterates whole tiles at a time for batch renders, like farm tiles and server requests.
+ * A native backend is used where it has been built (see native/build.sh) and the JVM
+ * can load it, and otherwise tiles are iterated by the Java kernels. It is found by
+ * reflection, since it needs a newer JVM than the rest of Refract. The refract.backend
+ * system property can be set to "java" or "native" to force one or the other.
+ * 
+ * The interactive renderer doesn't use a batch backend, as it iterates a row at a time
+ * within each frame's budget, and its rows resume Z values which the tile cache and the
+ * colorizer also work on in the heap. A native tile would mean copying that state in and
+ * out for every row, and it only pays off when a whole tile is iterated at once.
+ */
+public abstract class BatchBackend
+{
+	public static final String BACKEND_PROPERTY = "refract.backend";
+	private static final String NATIVE_CLASS = "com.ijuru.refract.kernel.NativeBatchBackend";
+	
+	public static final BatchBackend JAVA = new JavaBackend();
+	
+	private static boolean nativeLoaded = false;	// True once we've tried to load the native backend
+	private static BatchBackend nativeBackend;		// The native backend, or null if it couldn't be loaded
+	private static Throwable nativeFailure;			// Why the native backend couldn't be loaded
+	
+	/**
+	 * Gets the name of this backend
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Gets whether this backend can iterate a pass with a kernel
+	 */
+	public abstract boolean supports(Kernel kernel, KernelPass pass);
+	
+	/**
+	 * Creates a tile for this backend. It should be released once it is no longer needed.
+	 */
+	public abstract BatchTile createTile(int width, int height);
+	
+	/**
+	 * Iterates every pixel of a tile
+	 * @param kernel the kernel, which this backend must support
+	 * @param pass the pass, whose dimensions must be those of the tile
+	 * @param tile the tile, created by this backend
+	 * @param resume true if resuming from the state left in the tile by a previous pass
+	 * @param counters the counters to add to
+	 */
+	public abstract void iterate(Kernel kernel, KernelPass pass, BatchTile tile, boolean resume, KernelCounters counters);
+	
+	/**
+	 * Checks that a tile has the dimensions of a pass
+	 */
+	protected static void checkTile(KernelPass pass, BatchTile tile)
+	{
+		if (tile.getWidth() != pass.getWidth() || tile.getHeight() != pass.getHeight())
+			throw new IllegalArgumentException("Tile is " + tile.getWidth() + "x" + tile.getHeight() + " but pass is " + pass.getWidth() + "x" + pass.getHeight());
+	}
+	
+	/**
+	 * Gets the backend to iterate a pass with, which is the default backend if it supports
+	 * the pass and otherwise the Java backend
+	 */
+	public static BatchBackend forPass(Kernel kernel, KernelPass pass)
+	{
+		BatchBackend backend = getDefault();
+		return backend.supports(kernel, pass) ? backend : JAVA;
+	}
+	
+	/**
+	 * Gets the default backend
+	 * @throws IllegalStateException if the native backend is forced but can't be loaded
+	 */
+	public static BatchBackend getDefault()
+	{
+		String choice = System.getProperty(BACKEND_PROPERTY, "auto");
+		if (choice.equals("java"))
+			return JAVA;
+		
+		BatchBackend backend = getNative();
+		if (backend != null)
+			return backend;
+		if (choice.equals("native"))
+			throw new IllegalStateException("Native backend is unavailable: " + getNativeFailure());
+		return JAVA;
+	}
+	
+	/**
+	 * Gets the native backend, loading it the first time
+	 * @return the backend, or null if it couldn't be loaded
+	 */
+	public static synchronized BatchBackend getNative()
+	{
+		if (!nativeLoaded) {
+			nativeLoaded = true;
+			try {
+				nativeBackend = (BatchBackend)Class.forName(NATIVE_CLASS).getConstructor().newInstance();
+			}
+			catch (Exception ex) {
+				nativeFailure = ex;
+			}
+			catch (LinkageError ex) {
+				// The class wasn't built, or was built for a newer JVM than this one
+				nativeFailure = ex;
+			}
+		}
+		return nativeBackend;
+	}
+	
+	/**
+	 * Gets why the native backend couldn't be loaded
+	 * @return the failure, or null if it was loaded or hasn't been tried
+	 */
+	public static synchronized Throwable getNativeFailure()
+	{
+		return nativeFailure;
+	}
+	
+	/**
+	 * Backend which iterates tiles row by row with the Java kernels
+	 */
+	private static class JavaBackend extends BatchBackend
+	{
+		public String getName()
+		{
+			return "java";
+		}
+		
+		public boolean supports(Kernel kernel, KernelPass pass)
+		{
+			return !pass.isDistance() && pass.getStatistic() == OrbitStatistic.NONE;
+		}
+		
+		public BatchTile createTile(int width, int height)
+		{
+			return new JavaTile(width, height);
+		}
+		
+		public void iterate(Kernel kernel, KernelPass pass, BatchTile tile, boolean resume, KernelCounters counters)
+		{
+			checkTile(pass, tile);
+			KernelBuffers buffers = ((JavaTile)tile).buffers;
+			for (int y = 0; y < pass.getHeight(); ++y)
+				kernel.iterate(pass, buffers, y, 0, pass.getWidth(), resume, counters);
+		}
+	}
+	
+	/**
+	 * Tile of the Java backend, which is just a set of kernel buffers
+	 */
+	private static class JavaTile extends BatchTile
+	{
+		private final KernelBuffers buffers;
+		
+		public JavaTile(int width, int height)
+		{
+			super(width, height);
+			buffers = new KernelBuffers(width, height, new double[width * height], new double[width * height], new int[width * height]);
+		}
+		
+		public void copyIters(int[] dest, int offset)
+		{
+			System.arraycopy(buffers.getIters(), 0, dest, offset, getWidth() * getHeight());
+		}
+	}
+}
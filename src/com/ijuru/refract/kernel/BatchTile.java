@@ -0,0 +1,63 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * The per-pixel state of a tile being iterated by a batch backend. Where it is kept
+ * depends on the backend, e.g. native backends keep it off the heap so that their
+ * kernels can work on it in place.
+ */
+public abstract class BatchTile
+{
+	private final int width, height;
+	
+	/**
+	 * Constructor
+	 */
+	protected BatchTile(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	/**
+	 * Copies the iteration values of the tile, row by row
+	 * @param dest the array to copy to
+	 * @param offset the index in the array of the first pixel
+	 */
+	public abstract void copyIters(int[] dest, int offset);
+	
+	/**
+	 * Releases the buffers of the tile, which can't be used after
+	 */
+	public void release()
+	{
+	}
+}
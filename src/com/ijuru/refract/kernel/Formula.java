@@ -0,0 +1,625 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+import java.text.ParseException;
+
+/**
+ * A parsed iteration formula such as "z^5 - z^2 + c". Formulas are made of the
+ * variables z and c, the imaginary unit i, real numbers (which may be followed by i),
+ * the operators + - * / and ^, parentheses, and the functions conj, abs, exp, sin and
+ * cos, where abs takes the absolute value of the real and imaginary parts separately.
+ * The right hand side of ^ must be a real number.
+ */
+public final class Formula
+{
+	private final String text;
+	private final Node root;
+	
+	/**
+	 * Constructor
+	 */
+	private Formula(String text, Node root)
+	{
+		this.text = text;
+		this.root = root;
+	}
+	
+	/**
+	 * Parses a formula
+	 * @param text the formula text
+	 * @return the formula
+	 * @throws ParseException if the text isn't a valid formula
+	 */
+	public static Formula parse(String text) throws ParseException
+	{
+		Parser parser = new Parser(text);
+		Node root = parser.parseExpression();
+		if (parser.peek() != 0)
+			throw new ParseException("Unexpected '" + parser.peek() + "'", parser.pos);
+		
+		return new Formula(normalize(text), root);
+	}
+	
+	/**
+	 * Normalizes formula text by removing whitespace, so that formulas which only differ
+	 * by spacing are considered the same
+	 */
+	public static String normalize(String text)
+	{
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); ++i) {
+			char ch = text.charAt(i);
+			if (!Character.isWhitespace(ch))
+				sb.append(Character.toLowerCase(ch));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Gets the normalized text of this formula
+	 */
+	public String getText()
+	{
+		return text;
+	}
+	
+	/**
+	 * Evaluates this formula
+	 * @param zr the real part of z
+	 * @param zi the imaginary part of z
+	 * @param cr the real part of c
+	 * @param ci the imaginary part of c
+	 * @param out the array to store the real and imaginary parts of the result in
+	 */
+	public void evaluate(double zr, double zi, double cr, double ci, double[] out)
+	{
+		root.evaluate(zr, zi, cr, ci, out);
+	}
+	
+	/**
+	 * Writes Java statements which calculate this formula from the local variables zr, zi,
+	 * cr and ci, and returns the expressions for the real and imaginary parts of the result
+	 */
+	String[] generate(StringBuilder code, String indent)
+	{
+		Generator gen = new Generator(code, indent);
+		String[] result = root.generate(gen);
+		if (result[1] == null)
+			result[1] = "0.0";
+		return result;
+	}
+	
+	public String toString()
+	{
+		return text;
+	}
+	
+	/**
+	 * Writes generated statements and names the temporary variables they use
+	 */
+	private static class Generator
+	{
+		private final StringBuilder code;
+		private final String indent;
+		private int temps = 0;
+		
+		public Generator(StringBuilder code, String indent)
+		{
+			this.code = code;
+			this.indent = indent;
+		}
+		
+		/**
+		 * Declares a temporary variable with the given value and returns its name
+		 */
+		public String temp(String value)
+		{
+			String name = "t" + (temps++);
+			code.append(indent).append("double ").append(name).append(" = ").append(value).append(";\n");
+			return name;
+		}
+	}
+	
+	/**
+	 * A node of the expression tree. When generating code, an imaginary part of null
+	 * means the value is known to be real, which lets most operations be simplified.
+	 */
+	private static abstract class Node
+	{
+		public abstract void evaluate(double zr, double zi, double cr, double ci, double[] out);
+		
+		public abstract String[] generate(Generator gen);
+	}
+	
+	/**
+	 * The variables z and c
+	 */
+	private static class Variable extends Node
+	{
+		private final boolean z;
+		
+		public Variable(boolean z)
+		{
+			this.z = z;
+		}
+		
+		public void evaluate(double zr, double zi, double cr, double ci, double[] out)
+		{
+			out[0] = z ? zr : cr;
+			out[1] = z ? zi : ci;
+		}
+		
+		public String[] generate(Generator gen)
+		{
+			return z ? new String[] { "zr", "zi" } : new String[] { "cr", "ci" };
+		}
+	}
+	
+	/**
+	 * A constant
+	 */
+	private static class Constant extends Node
+	{
+		private final double re, im;
+		
+		public Constant(double re, double im)
+		{
+			this.re = re;
+			this.im = im;
+		}
+		
+		public void evaluate(double zr, double zi, double cr, double ci, double[] out)
+		{
+			out[0] = re;
+			out[1] = im;
+		}
+		
+		public String[] generate(Generator gen)
+		{
+			return new String[] { literal(re), (im != 0) ? literal(im) : null };
+		}
+		
+		private static String literal(double value)
+		{
+			return "(" + Double.toString(value) + ")";
+		}
+	}
+	
+	/**
+	 * A function of one argument, including negation
+	 */
+	private static class Unary extends Node
+	{
+		private final String op;
+		private final Node arg;
+		
+		public Unary(String op, Node arg)
+		{
+			this.op = op;
+			this.arg = arg;
+		}
+		
+		public void evaluate(double zr, double zi, double cr, double ci, double[] out)
+		{
+			arg.evaluate(zr, zi, cr, ci, out);
+			double a = out[0], b = out[1];
+			
+			if (op.equals("-")) {
+				out[0] = -a;
+				out[1] = -b;
+			}
+			else if (op.equals("conj"))
+				out[1] = -b;
+			else if (op.equals("abs")) {
+				out[0] = Math.abs(a);
+				out[1] = Math.abs(b);
+			}
+			else if (op.equals("exp")) {
+				double m = Math.exp(a);
+				out[0] = m * Math.cos(b);
+				out[1] = m * Math.sin(b);
+			}
+			else if (op.equals("sin")) {
+				out[0] = Math.sin(a) * Math.cosh(b);
+				out[1] = Math.cos(a) * Math.sinh(b);
+			}
+			else {
+				out[0] = Math.cos(a) * Math.cosh(b);
+				out[1] = -Math.sin(a) * Math.sinh(b);
+			}
+		}
+		
+		public String[] generate(Generator gen)
+		{
+			String[] v = arg.generate(gen);
+			String a = v[0], b = v[1];
+			
+			if (op.equals("-"))
+				return new String[] { gen.temp("-" + a), (b != null) ? gen.temp("-" + b) : null };
+			else if (op.equals("conj"))
+				return new String[] { a, (b != null) ? gen.temp("-" + b) : null };
+			else if (op.equals("abs"))
+				return new String[] { gen.temp("Math.abs(" + a + ")"), (b != null) ? gen.temp("Math.abs(" + b + ")") : null };
+			else if (b == null) {
+				// Functions of real values are real
+				return new String[] { gen.temp("Math." + op + "(" + a + ")"), null };
+			}
+			else if (op.equals("exp")) {
+				String m = gen.temp("Math.exp(" + a + ")");
+				return new String[] { gen.temp(m + " * Math.cos(" + b + ")"), gen.temp(m + " * Math.sin(" + b + ")") };
+			}
+			else if (op.equals("sin"))
+				return new String[] { gen.temp("Math.sin(" + a + ") * Math.cosh(" + b + ")"), gen.temp("Math.cos(" + a + ") * Math.sinh(" + b + ")") };
+			else
+				return new String[] { gen.temp("Math.cos(" + a + ") * Math.cosh(" + b + ")"), gen.temp("-Math.sin(" + a + ") * Math.sinh(" + b + ")") };
+		}
+	}
+	
+	/**
+	 * One of the operators + - * and /
+	 */
+	private static class Binary extends Node
+	{
+		private final char op;
+		private final Node left, right;
+		
+		public Binary(char op, Node left, Node right)
+		{
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+		
+		public void evaluate(double zr, double zi, double cr, double ci, double[] out)
+		{
+			left.evaluate(zr, zi, cr, ci, out);
+			double a = out[0], b = out[1];
+			right.evaluate(zr, zi, cr, ci, out);
+			double c = out[0], d = out[1];
+			
+			switch (op) {
+				case '+':
+					out[0] = a + c;
+					out[1] = b + d;
+					break;
+				case '-':
+					out[0] = a - c;
+					out[1] = b - d;
+					break;
+				case '*':
+					out[0] = a * c - b * d;
+					out[1] = a * d + b * c;
+					break;
+				default:
+					double m = c * c + d * d;
+					out[0] = (a * c + b * d) / m;
+					out[1] = (b * c - a * d) / m;
+			}
+		}
+		
+		public String[] generate(Generator gen)
+		{
+			String[] l = left.generate(gen);
+			String[] r = right.generate(gen);
+			String a = l[0], b = l[1], c = r[0], d = r[1];
+			
+			switch (op) {
+				case '+':
+				case '-':
+					String im;
+					if (b == null && d == null)
+						im = null;
+					else if (d == null)
+						im = b;
+					else if (b == null)
+						im = (op == '+') ? d : gen.temp("-" + d);
+					else
+						im = gen.temp(b + " " + op + " " + d);
+					return new String[] { gen.temp(a + " " + op + " " + c), im };
+				case '*':
+					if (b == null && d == null)
+						return new String[] { gen.temp(a + " * " + c), null };
+					else if (d == null)
+						return new String[] { gen.temp(a + " * " + c), gen.temp(b + " * " + c) };
+					else if (b == null)
+						return new String[] { gen.temp(a + " * " + c), gen.temp(a + " * " + d) };
+					else
+						return new String[] { gen.temp(a + " * " + c + " - " + b + " * " + d), gen.temp(a + " * " + d + " + " + b + " * " + c) };
+				default:
+					if (d == null)
+						return new String[] { gen.temp(a + " / " + c), (b != null) ? gen.temp(b + " / " + c) : null };
+					
+					String m = gen.temp(c + " * " + c + " + " + d + " * " + d);
+					if (b == null)
+						return new String[] { gen.temp(a + " * " + c + " / " + m), gen.temp("-" + a + " * " + d + " / " + m) };
+					else
+						return new String[] { gen.temp("(" + a + " * " + c + " + " + b + " * " + d + ") / " + m), gen.temp("(" + b + " * " + c + " - " + a + " * " + d + ") / " + m) };
+			}
+		}
+	}
+	
+	/**
+	 * Raising to a real power. Integer powers are calculated by multiplication and other
+	 * powers in polar form.
+	 */
+	private static class Power extends Node
+	{
+		private final Node base;
+		private final double power;
+		
+		public Power(Node base, double power)
+		{
+			this.base = base;
+			this.power = power;
+		}
+		
+		private boolean isInteger()
+		{
+			return power == Math.rint(power) && Math.abs(power) <= 64;
+		}
+		
+		public void evaluate(double zr, double zi, double cr, double ci, double[] out)
+		{
+			base.evaluate(zr, zi, cr, ci, out);
+			double a = out[0], b = out[1];
+			
+			if (isInteger()) {
+				int n = (int)Math.abs(power);
+				double pr = 1, pi = 0;
+				while (n > 0) {
+					if ((n & 1) != 0) {
+						double t = pr * a - pi * b;
+						pi = pr * b + pi * a;
+						pr = t;
+					}
+					double t = a * a - b * b;
+					b = 2 * a * b;
+					a = t;
+					n >>= 1;
+				}
+				if (power < 0) {
+					double m = pr * pr + pi * pi;
+					pr = pr / m;
+					pi = -pi / m;
+				}
+				out[0] = pr;
+				out[1] = pi;
+			}
+			else {
+				double r = Math.pow(a * a + b * b, power / 2);
+				double theta = power * Math.atan2(b, a);
+				out[0] = r * Math.cos(theta);
+				out[1] = r * Math.sin(theta);
+			}
+		}
+		
+		public String[] generate(Generator gen)
+		{
+			String[] v = base.generate(gen);
+			String a = v[0], b = v[1];
+			
+			if (!isInteger()) {
+				if (b == null)
+					b = "0.0";
+				String r = gen.temp("Math.pow(" + a + " * " + a + " + " + b + " * " + b + ", " + (power / 2) + ")");
+				String theta = gen.temp("(" + power + ") * Math.atan2(" + b + ", " + a + ")");
+				return new String[] { gen.temp(r + " * Math.cos(" + theta + ")"), gen.temp(r + " * Math.sin(" + theta + ")") };
+			}
+			
+			// Square and multiply, unrolled since the power is known
+			int n = (int)Math.abs(power);
+			String[] result = null;
+			String[] square = { a, b };
+			while (n > 0) {
+				if ((n & 1) != 0)
+					result = (result == null) ? square : multiply(gen, result, square);
+				n >>= 1;
+				if (n > 0)
+					square = square(gen, square);
+			}
+			if (result == null)
+				result = new String[] { "1.0", null };
+			
+			if (power < 0) {
+				if (result[1] == null)
+					return new String[] { gen.temp("1.0 / " + result[0]), null };
+				
+				String m = gen.temp(result[0] + " * " + result[0] + " + " + result[1] + " * " + result[1]);
+				return new String[] { gen.temp(result[0] + " / " + m), gen.temp("-" + result[1] + " / " + m) };
+			}
+			return result;
+		}
+		
+		private static String[] square(Generator gen, String[] v)
+		{
+			if (v[1] == null)
+				return new String[] { gen.temp(v[0] + " * " + v[0]), null };
+			
+			return new String[] { gen.temp(v[0] + " * " + v[0] + " - " + v[1] + " * " + v[1]), gen.temp("2 * " + v[0] + " * " + v[1]) };
+		}
+		
+		private static String[] multiply(Generator gen, String[] l, String[] r)
+		{
+			if (l[1] == null && r[1] == null)
+				return new String[] { gen.temp(l[0] + " * " + r[0]), null };
+			else if (r[1] == null)
+				return new String[] { gen.temp(l[0] + " * " + r[0]), gen.temp(l[1] + " * " + r[0]) };
+			else if (l[1] == null)
+				return new String[] { gen.temp(l[0] + " * " + r[0]), gen.temp(l[0] + " * " + r[1]) };
+			
+			return new String[] { gen.temp(l[0] + " * " + r[0] + " - " + l[1] + " * " + r[1]), gen.temp(l[0] + " * " + r[1] + " + " + l[1] + " * " + r[0]) };
+		}
+	}
+	
+	/**
+	 * Recursive descent parser for formulas
+	 */
+	private static class Parser
+	{
+		private final String text;
+		private int pos = 0;
+		
+		public Parser(String text)
+		{
+			this.text = text;
+		}
+		
+		/**
+		 * Gets the next non-whitespace character without consuming it, or 0 at the end
+		 */
+		public char peek()
+		{
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				++pos;
+			return (pos < text.length()) ? Character.toLowerCase(text.charAt(pos)) : 0;
+		}
+		
+		private void expect(char ch) throws ParseException
+		{
+			if (peek() != ch)
+				throw new ParseException("Expected '" + ch + "'", pos);
+			++pos;
+		}
+		
+		public Node parseExpression() throws ParseException
+		{
+			Node node = parseTerm();
+			while (peek() == '+' || peek() == '-') {
+				char op = text.charAt(pos++);
+				node = new Binary(op, node, parseTerm());
+			}
+			return node;
+		}
+		
+		private Node parseTerm() throws ParseException
+		{
+			Node node = parseUnary();
+			while (peek() == '*' || peek() == '/') {
+				char op = text.charAt(pos++);
+				node = new Binary(op, node, parseUnary());
+			}
+			return node;
+		}
+		
+		private Node parseUnary() throws ParseException
+		{
+			if (peek() == '-') {
+				++pos;
+				return new Unary("-", parseUnary());
+			}
+			else if (peek() == '+') {
+				++pos;
+				return parseUnary();
+			}
+			return parsePower();
+		}
+		
+		private Node parsePower() throws ParseException
+		{
+			Node node = parseAtom();
+			if (peek() == '^') {
+				++pos;
+				boolean negative = false;
+				if (peek() == '-') {
+					negative = true;
+					++pos;
+				}
+				
+				// Allow the power to be in parentheses, e.g. z^(2.5)
+				boolean parens = (peek() == '(');
+				if (parens)
+					++pos;
+				double power = parseNumber();
+				if (parens)
+					expect(')');
+				
+				node = new Power(node, negative ? -power : power);
+			}
+			return node;
+		}
+		
+		private Node parseAtom() throws ParseException
+		{
+			char ch = peek();
+			if (ch == '(') {
+				++pos;
+				Node node = parseExpression();
+				expect(')');
+				return node;
+			}
+			else if (Character.isDigit(ch) || ch == '.') {
+				double value = parseNumber();
+				if (peek() == 'i' && !isNameAt(pos)) {
+					++pos;
+					return new Constant(0, value);
+				}
+				return new Constant(value, 0);
+			}
+			else if (Character.isLetter(ch)) {
+				int start = pos;
+				while (pos < text.length() && Character.isLetter(text.charAt(pos)))
+					++pos;
+				String name = text.substring(start, pos).toLowerCase();
+				
+				if (name.equals("z"))
+					return new Variable(true);
+				else if (name.equals("c"))
+					return new Variable(false);
+				else if (name.equals("i"))
+					return new Constant(0, 1);
+				else if (name.equals("conj") || name.equals("abs") || name.equals("exp") || name.equals("sin") || name.equals("cos")) {
+					expect('(');
+					Node arg = parseExpression();
+					expect(')');
+					return new Unary(name, arg);
+				}
+				throw new ParseException("Unknown name '" + name + "'", start);
+			}
+			else if (ch == 0)
+				throw new ParseException("Unexpected end of formula", pos);
+			
+			throw new ParseException("Unexpected '" + ch + "'", pos);
+		}
+		
+		/**
+		 * Checks if a name of more than one letter starts at the given position
+		 */
+		private boolean isNameAt(int p)
+		{
+			return p + 1 < text.length() && Character.isLetter(text.charAt(p + 1));
+		}
+		
+		private double parseNumber() throws ParseException
+		{
+			peek();
+			int start = pos;
+			while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'))
+				++pos;
+			
+			try {
+				return Double.parseDouble(text.substring(start, pos));
+			}
+			catch (NumberFormatException ex) {
+				throw new ParseException("Invalid number", start);
+			}
+		}
+	}
+}
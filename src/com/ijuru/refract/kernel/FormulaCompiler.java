@@ -0,0 +1,336 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.CodeSource;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles formulas into kernels. Each formula gets its own kernel class, generated
+ * from the same template as the built-in kernels with the formula written directly
+ * into the inner loop, so that it is optimized like any other kernel. The class is
+ * compiled in memory and loaded by its own class loader so that it can be unloaded
+ * once it's no longer used. If there is no compiler available, formulas are
+ * interpreted instead.
+ */
+public final class FormulaCompiler
+{
+	public static final String ID_PREFIX = "formula:"; // Prefix of the ids of formula kernels
+	
+	private static final int MAX_CACHED = 16; // Max number of compiled kernels to keep
+	private static final String PACKAGE = "com.ijuru.refract.kernel";
+	
+	/**
+	 * Compiled kernels by formula text, least recently used first
+	 */
+	private static final Map<String, Kernel> cache = new LinkedHashMap<String, Kernel>(MAX_CACHED, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Kernel> eldest)
+		{
+			return size() > MAX_CACHED;
+		}
+	};
+	
+	private static int classCount = 0; // Used to give every generated class a different name
+	
+	private FormulaCompiler()
+	{
+	}
+	
+	/**
+	 * Gets the kernel for a formula, compiling it if it hasn't been already
+	 * @param text the formula text
+	 * @return the kernel
+	 * @throws ParseException if the text isn't a valid formula
+	 */
+	public static Kernel forFormula(String text) throws ParseException
+	{
+		String key = Formula.normalize(text);
+		synchronized (cache) {
+			Kernel kernel = cache.get(key);
+			if (kernel != null)
+				return kernel;
+		}
+		
+		// Compile outside of the lock as it can take a while
+		Kernel kernel = compile(Formula.parse(text));
+		
+		synchronized (cache) {
+			Kernel existing = cache.get(key);
+			if (existing != null)
+				return existing;
+			
+			cache.put(key, kernel);
+			return kernel;
+		}
+	}
+	
+	/**
+	 * Compiles a formula into a kernel, or creates an interpreted kernel if it can't be compiled
+	 * @param formula the formula
+	 * @return the kernel
+	 */
+	public static Kernel compile(Formula formula)
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			return new InterpretedKernel(formula);
+		
+		String className = "FormulaKernel" + nextClassNumber();
+		String source = generateSource(formula, className);
+		
+		try {
+			byte[] bytecode = compileSource(compiler, PACKAGE + "." + className, source);
+			if (bytecode == null)
+				return new InterpretedKernel(formula);
+			
+			Class<?> cls = new KernelClassLoader(PACKAGE + "." + className, bytecode).loadClass(PACKAGE + "." + className);
+			return (Kernel)cls.getConstructor().newInstance();
+		}
+		catch (Exception ex) {
+			return new InterpretedKernel(formula);
+		}
+		catch (LinkageError err) {
+			return new InterpretedKernel(formula);
+		}
+	}
+	
+	private static synchronized int nextClassNumber()
+	{
+		return ++classCount;
+	}
+	
+	/**
+	 * Generates the source of a kernel class for a formula
+	 */
+	static String generateSource(Formula formula, String className)
+	{
+		StringBuilder loopBody = new StringBuilder();
+		String[] result = formula.generate(loopBody, "\t\t\t\t");
+		loopBody.append("\t\t\t\tdouble nr = ").append(result[0]).append(";\n");
+		loopBody.append("\t\t\t\tdouble ni = ").append(result[1]).append(";\n");
+		loopBody.append("\t\t\t\tzr = nr;\n");
+		loopBody.append("\t\t\t\tzi = ni;\n");
+		
+		StringBuilder pointBody = new StringBuilder();
+		result = formula.generate(pointBody, "\t\t\t");
+		pointBody.append("\t\t\tdouble nr = ").append(result[0]).append(";\n");
+		pointBody.append("\t\t\tdouble ni = ").append(result[1]).append(";\n");
+		pointBody.append("\t\t\tzr = nr;\n");
+		pointBody.append("\t\t\tzi = ni;\n");
+		
+		String id = ID_PREFIX + formula.getText();
+		
+		return "package " + PACKAGE + ";\n" +
+			"\n" +
+			"public final class " + className + " extends Kernel\n" +
+			"{\n" +
+			"\tpublic String getId()\n" +
+			"\t{\n" +
+			"\t\treturn \"" + id.replace("\\", "\\\\").replace("\"", "\\\"") + "\";\n" +
+			"\t}\n" +
+			"\n" +
+			"\tpublic void iterate(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)\n" +
+			"\t{\n" +
+			"\t\tdouble[] cacheX = buffers.getZX();\n" +
+			"\t\tdouble[] cacheY = buffers.getZY();\n" +
+			"\t\tint[] iters = buffers.getIters();\n" +
+			"\t\tint halfCX = pass.getCenterX();\n" +
+			"\t\tint halfCY = pass.getCenterY();\n" +
+			"\t\tdouble zoom = pass.getZoom();\n" +
+			"\t\tdouble re = pass.getRe();\n" +
+			"\t\tdouble im = pass.getIm();\n" +
+			"\t\tboolean julia = pass.isJulia();\n" +
+			"\t\tdouble jr = pass.getJuliaRe();\n" +
+			"\t\tdouble ji = pass.getJuliaIm();\n" +
+			"\t\tint maxIters = pass.getMaxIters();\n" +
+			"\t\tint prevMaxIters = pass.getPrevMaxIters();\n" +
+			"\t\tdouble bailout2 = pass.getBailout() * pass.getBailout();\n" +
+			"\t\tint nescaped = 0;\n" +
+			"\t\tlong niterations = 0;\n" +
+			"\n" +
+			"\t\tfor (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {\n" +
+			"\t\t\tdouble cr = (x - halfCX) / zoom + re;\n" +
+			"\t\t\tdouble ci = (y - halfCY) / zoom - im;\n" +
+			"\t\t\tdouble zr, zi;\n" +
+			"\t\t\tint niters;\n" +
+			"\t\t\tif (resume) {\n" +
+			"\t\t\t\tzr = cacheX[index];\n" +
+			"\t\t\t\tzi = cacheY[index];\n" +
+			"\t\t\t\tniters = iters[index];\n" +
+			"\t\t\t}\n" +
+			"\t\t\telse {\n" +
+			"\t\t\t\tzr = cr;\n" +
+			"\t\t\t\tzi = ci;\n" +
+			"\t\t\t\tniters = 0;\n" +
+			"\t\t\t}\n" +
+			"\t\t\tint startIters = niters;\n" +
+			"\t\t\tif (julia) {\n" +
+			"\t\t\t\tcr = jr;\n" +
+			"\t\t\t\tci = ji;\n" +
+			"\t\t\t}\n" +
+			"\n" +
+			"\t\t\twhile ((zr * zr + zi * zi < bailout2) && niters < maxIters) {\n" +
+			loopBody +
+			"\t\t\t\t++niters;\n" +
+			"\t\t\t}\n" +
+			"\n" +
+			"\t\t\tcacheX[index] = zr;\n" +
+			"\t\t\tcacheY[index] = zi;\n" +
+			"\t\t\titers[index] = niters;\n" +
+			"\t\t\tif (niters < maxIters && startIters >= prevMaxIters)\n" +
+			"\t\t\t\t++nescaped;\n" +
+			"\t\t\tniterations += niters - startIters;\n" +
+			"\t\t}\n" +
+			"\t\tcounters.add(nescaped, niterations);\n" +
+			"\t}\n" +
+			"\n" +
+			"\tpublic int iteratePoint(double zr, double zi, double cr, double ci, int maxIters, double bailout)\n" +
+			"\t{\n" +
+			"\t\tdouble bailout2 = bailout * bailout;\n" +
+			"\t\tint niters = 0;\n" +
+			"\t\twhile ((zr * zr + zi * zi < bailout2) && niters < maxIters) {\n" +
+			pointBody +
+			"\t\t\t++niters;\n" +
+			"\t\t}\n" +
+			"\t\treturn niters;\n" +
+			"\t}\n" +
+			"\n" +
+			"\tpublic int traceOrbit(double zr, double zi, double cr, double ci, int maxIters, double bailout, double[] orbit)\n" +
+			"\t{\n" +
+			"\t\tdouble bailout2 = bailout * bailout;\n" +
+			"\t\tint niters = 0;\n" +
+			"\t\twhile ((zr * zr + zi * zi < bailout2) && niters < maxIters) {\n" +
+			pointBody +
+			"\t\t\torbit[2 * niters] = zr;\n" +
+			"\t\t\torbit[2 * niters + 1] = zi;\n" +
+			"\t\t\t++niters;\n" +
+			"\t\t}\n" +
+			"\t\treturn (niters < maxIters) ? niters : -1;\n" +
+			"\t}\n" +
+			"}\n";
+	}
+	
+	/**
+	 * Compiles the source of a single class in memory
+	 * @return the bytecode, or null if it didn't compile
+	 */
+	private static byte[] compileSource(JavaCompiler compiler, final String className, final String source) throws Exception
+	{
+		JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+			public CharSequence getCharContent(boolean ignoreEncodingErrors)
+			{
+				return source;
+			}
+		};
+		
+		final ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+		StandardJavaFileManager standardManager = compiler.getStandardFileManager(null, null, null);
+		ForwardingJavaFileManager<StandardJavaFileManager> manager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager) {
+			public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling)
+			{
+				return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + ".class"), kind) {
+					public OutputStream openOutputStream()
+					{
+						return bytecode;
+					}
+				};
+			}
+		};
+		
+		// The generated class needs to see the kernel classes, which may not be on the class path
+		List<String> options = new ArrayList<String>(Arrays.asList("-g:none", "-proc:none", "-nowarn"));
+		String classPath = getKernelClassPath();
+		if (classPath != null) {
+			options.add("-classpath");
+			options.add(classPath);
+		}
+		
+		try {
+			Boolean success = compiler.getTask(null, manager, null, options, null, Arrays.asList(sourceFile)).call();
+			return (success != null && success) ? bytecode.toByteArray() : null;
+		}
+		finally {
+			manager.close();
+		}
+	}
+	
+	/**
+	 * Gets the class path which the kernel classes were loaded from, if it is known
+	 */
+	private static String getKernelClassPath()
+	{
+		try {
+			CodeSource source = Kernel.class.getProtectionDomain().getCodeSource();
+			if (source != null && source.getLocation() != null && "file".equals(source.getLocation().getProtocol())) {
+				String path = new File(source.getLocation().toURI()).getPath();
+				String existing = System.getProperty("java.class.path");
+				return (existing != null && existing.length() > 0) ? path + File.pathSeparator + existing : path;
+			}
+		}
+		catch (Exception ex) {
+			// Fall back to the default class path
+		}
+		return null;
+	}
+	
+	/**
+	 * Loads a single generated class. Every generated class has its own loader so that
+	 * it is unloaded when it is no longer used.
+	 */
+	private static class KernelClassLoader extends ClassLoader
+	{
+		private final String className;
+		private byte[] bytecode;
+		
+		public KernelClassLoader(String className, byte[] bytecode)
+		{
+			super(Kernel.class.getClassLoader());
+			this.className = className;
+			this.bytecode = bytecode;
+		}
+		
+		protected synchronized Class<?> findClass(String name) throws ClassNotFoundException
+		{
+			if (!name.equals(className) || bytecode == null)
+				throw new ClassNotFoundException(name);
+			
+			Class<?> cls = defineClass(name, bytecode, 0, bytecode.length);
+			bytecode = null;
+			return cls;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Kernel which iterates a formula by walking its expression tree. This is much slower
+ * than a compiled kernel and is only used when formulas can't be compiled.
+ */
+public class InterpretedKernel extends Kernel
+{
+	private final Formula formula;
+	
+	/**
+	 * Constructor
+	 * @param formula the formula
+	 */
+	public InterpretedKernel(Formula formula)
+	{
+		this.formula = formula;
+	}
+	
+	public String getId()
+	{
+		return FormulaCompiler.ID_PREFIX + formula.getText();
+	}
+	
+	public void iterate(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		double[] z = new double[2];
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double cr = (x - halfCX) / zoom + pass.getRe();
+			double ci = (y - halfCY) / zoom - pass.getIm();
+			int niters;
+			
+			if (resume) {
+				z[0] = cacheX[index];
+				z[1] = cacheY[index];
+				niters = iters[index];
+			}
+			else {
+				z[0] = cr;
+				z[1] = ci;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (pass.isJulia()) {
+				cr = pass.getJuliaRe();
+				ci = pass.getJuliaIm();
+			}
+			
+			while ((z[0] * z[0] + z[1] * z[1] < bailout2) && niters < maxIters) {
+				formula.evaluate(z[0], z[1], cr, ci, z);
+				++niters;
+			}
+			
+			cacheX[index] = z[0];
+			cacheY[index] = z[1];
+			iters[index] = niters;
+			
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	public int iteratePoint(double zr, double zi, double cr, double ci, int maxIters, double bailout)
+	{
+		double bailout2 = bailout * bailout;
+		double[] z = { zr, zi };
+		int niters = 0;
+		
+		while ((z[0] * z[0] + z[1] * z[1] < bailout2) && niters < maxIters) {
+			formula.evaluate(z[0], z[1], cr, ci, z);
+			++niters;
+		}
+		return niters;
+	}
+	
+	public int traceOrbit(double zr, double zi, double cr, double ci, int maxIters, double bailout, double[] orbit)
+	{
+		double bailout2 = bailout * bailout;
+		double[] z = { zr, zi };
+		int niters = 0;
+		
+		while ((z[0] * z[0] + z[1] * z[1] < bailout2) && niters < maxIters) {
+			formula.evaluate(z[0], z[1], cr, ci, z);
+			orbit[2 * niters] = z[0];
+			orbit[2 * niters + 1] = z[1];
+			++niters;
+		}
+		return (niters < maxIters) ? niters : -1;
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Base class of iteration functions. Each function is a separate subclass whose iterate
+ * method contains its own inner loop, so the loop is never shared between functions
+ * and the only virtual call is made once per run of pixels rather than per iteration.
+ * Kernels are stateless so a single instance can be used by any number of threads.
+ */
+public abstract class Kernel
+{
+	/**
+	 * Escaped points are iterated on until they pass this squared radius before their
+	 * distance is estimated, as the estimate is poor for points which have only just escaped
+	 */
+	protected static final double DISTANCE_BAILOUT = 1e10;
+	protected static final int MAX_DISTANCE_ITERS = 64;
+	
+	/**
+	 * The escape radius used unless a view specifies its own. Larger radii give smoother
+	 * continuous coloring at the cost of a few more iterations per escaped point.
+	 */
+	public static final double DEF_BAILOUT = 2;
+	
+	/**
+	 * Gets the identifier of this kernel, from which it can be recreated by Kernels.forId
+	 */
+	public abstract String getId();
+	
+	/**
+	 * Iterates a run of pixels in a single row. The z values and iteration values of each
+	 * pixel are read from the buffers if resuming, and are always written back to them.
+	 * @param pass the parameters of the pass
+	 * @param buffers the buffers
+	 * @param y the row
+	 * @param x0 the first column
+	 * @param x1 the column after the last
+	 * @param resume true to resume from the values in the buffers
+	 * @param counters the counters to add the escaped pixels and executed iterations to
+	 */
+	public abstract void iterate(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters);
+	
+	/**
+	 * Iterates a single point without using any buffers
+	 * @param zr the real part of the initial z
+	 * @param zi the imaginary part of the initial z
+	 * @param cr the real part of c
+	 * @param ci the imaginary part of c
+	 * @param maxIters the max number of iterations to perform
+	 * @param bailout the escape radius
+	 * @return the iteration value
+	 */
+	public abstract int iteratePoint(double zr, double zi, double cr, double ci, int maxIters, double bailout);
+	
+	/**
+	 * Iterates a single point and records its orbit
+	 * @param zr the real part of the initial z
+	 * @param zi the imaginary part of the initial z
+	 * @param cr the real part of c
+	 * @param ci the imaginary part of c
+	 * @param maxIters the max number of iterations to perform
+	 * @param bailout the escape radius
+	 * @param orbit the array to store the real and imaginary parts of each z in, which
+	 *        must hold at least 2 * maxIters values
+	 * @return the number of z values stored if the point escaped, or -1 if it didn't
+	 */
+	public abstract int traceOrbit(double zr, double zi, double cr, double ci, int maxIters, double bailout, double[] orbit);
+	
+	/**
+	 * Gets whether this kernel can track derivatives to estimate distances. Kernels
+	 * which can't ignore the distance flag of a pass.
+	 */
+	public boolean supportsDistance()
+	{
+		return false;
+	}
+	
+	/**
+	 * Gets whether this kernel can accumulate orbit statistics. Kernels which can't ignore
+	 * the statistic of a pass.
+	 */
+	public boolean supportsStatistics()
+	{
+		return false;
+	}
+	
+	/**
+	 * Gets whether this kernel can iterate Mandelbrot passes by perturbation of a reference
+	 * orbit. Kernels which can't mustn't be given a pass with a reference orbit.
+	 */
+	public boolean supportsPerturbation()
+	{
+		return false;
+	}
+	
+	/**
+	 * Estimates the distance to the set of an escaped point from its final z and dz
+	 */
+	protected static float estimateDistance(double zr, double zi, double dr, double di)
+	{
+		double z = Math.sqrt(zr * zr + zi * zi);
+		double dz = Math.sqrt(dr * dr + di * di);
+		return (float)(0.5 * z * Math.log(z) / dz);
+	}
+	
+	/**
+	 * Gets the stripe function 0.5 + 0.5 sin(4 arg z) of a point. This is Im(z^4) / |z|^4
+	 * which costs a few flops, where atan2 and sin would cost far more than an iteration.
+	 */
+	protected static double stripe(double zr, double zi, double zr2, double zi2)
+	{
+		double r2 = zr2 + zi2;
+		return (r2 > 0) ? 0.5 + 2 * zr * zi * (zr2 - zi2) / (r2 * r2) : 0.5;
+	}
+	
+	/**
+	 * Averages the stripe function over the orbit of an escaped point. The averages with
+	 * and without the final point are mixed according to how far past the bailout radius
+	 * that point is, so that the average is continuous across iteration bands.
+	 * @param sum the sum of the stripe function over the orbit, excluding its first point
+	 * @param n the number of points summed
+	 * @param zr the real part of the final z
+	 * @param zi the imaginary part of the final z
+	 * @param bailout the bailout radius
+	 * @param power the power of z in the function, e.g. 2 for z^2 + c
+	 */
+	protected static double stripeAverage(double sum, int n, double zr, double zi, double bailout, double power)
+	{
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		double last = stripe(zr, zi, zr2, zi2);
+		if (n < 2)
+			return last;
+		
+		double f = 1 - Math.log(0.5 * Math.log(zr2 + zi2) / Math.log(bailout)) / Math.log(power);
+		f = Math.max(0, Math.min(1, f));
+		return f * sum / n + (1 - f) * (sum - last) / (n - 1);
+	}
+	
+	public String toString()
+	{
+		return getId();
+	}
+}
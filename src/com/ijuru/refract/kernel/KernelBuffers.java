@@ -0,0 +1,151 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * The per-pixel state that kernels resume from between passes
+ */
+public final class KernelBuffers
+{
+	private final int width, height;
+	private final double[] zx; // Real(Z) values
+	private final double[] zy; // Imag(Z) values
+	private final int[] iters; // Iteration values
+	private final double[] dx; // Real(dZ) values, or null if distances aren't estimated
+	private final double[] dy; // Imag(dZ) values, or null if distances aren't estimated
+	private final float[] distance; // Estimated distances to the set, or null
+	private final double[] orbit; // Orbit statistics, or null if they aren't accumulated
+	private final int[] refIters; // Positions in the reference orbit, or null if not perturbing
+	
+	/**
+	 * Constructor for buffers which can only be used for passes of iteration values
+	 */
+	public KernelBuffers(int width, int height, double[] zx, double[] zy, int[] iters)
+	{
+		this(width, height, zx, zy, iters, null, null, null, null, null);
+	}
+	
+	/**
+	 * Constructor
+	 */
+	public KernelBuffers(int width, int height, double[] zx, double[] zy, int[] iters, double[] dx, double[] dy, float[] distance, double[] orbit, int[] refIters)
+	{
+		this.width = width;
+		this.height = height;
+		this.zx = zx;
+		this.zy = zy;
+		this.iters = iters;
+		this.dx = dx;
+		this.dy = dy;
+		this.distance = distance;
+		this.orbit = orbit;
+		this.refIters = refIters;
+	}
+	
+	/**
+	 * Gets whether these buffers can be used for passes which estimate distances
+	 */
+	public boolean hasDerivatives()
+	{
+		return dx != null;
+	}
+	
+	/**
+	 * Gets whether these buffers can be used for passes which accumulate orbit statistics
+	 */
+	public boolean hasOrbit()
+	{
+		return orbit != null;
+	}
+	
+	/**
+	 * Gets whether these buffers can be used for passes which iterate by perturbation
+	 */
+	public boolean hasRefIters()
+	{
+		return refIters != null;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	public double[] getZX()
+	{
+		return zx;
+	}
+	
+	public double[] getZY()
+	{
+		return zy;
+	}
+	
+	public int[] getIters()
+	{
+		return iters;
+	}
+	
+	/**
+	 * Gets the Real(dZ/dC) values, where dZ/dC is the derivative with respect to the pixel
+	 */
+	public double[] getDX()
+	{
+		return dx;
+	}
+	
+	/**
+	 * Gets the Imag(dZ/dC) values
+	 */
+	public double[] getDY()
+	{
+		return dy;
+	}
+	
+	/**
+	 * Gets the estimated distance of each escaped pixel to the set in complex space
+	 */
+	public float[] getDistance()
+	{
+		return distance;
+	}
+	
+	/**
+	 * Gets the statistic accumulated over each pixel's orbit, as described by OrbitStatistic
+	 */
+	public double[] getOrbit()
+	{
+		return orbit;
+	}
+	
+	/**
+	 * Gets the position of each pixel in the reference orbit of a perturbation pass, which
+	 * is its iteration value plus one until it is first rebased
+	 */
+	public int[] getRefIters()
+	{
+		return refIters;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Counts what kernels have done. Each thread should use its own counters.
+ */
+public final class KernelCounters
+{
+	private int escaped = 0; // Pixels which escaped
+	private long iterations = 0; // Iterations executed
+	
+	/**
+	 * Adds to the counts
+	 */
+	public void add(int escaped, long iterations)
+	{
+		this.escaped += escaped;
+		this.iterations += iterations;
+	}
+	
+	/**
+	 * Resets the counts to zero
+	 */
+	public void reset()
+	{
+		escaped = 0;
+		iterations = 0;
+	}
+	
+	/**
+	 * Gets the number of pixels which escaped
+	 */
+	public int getEscaped()
+	{
+		return escaped;
+	}
+	
+	/**
+	 * Gets the number of iterations executed
+	 */
+	public long getIterations()
+	{
+		return iterations;
+	}
+}
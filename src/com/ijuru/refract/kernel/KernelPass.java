@@ -0,0 +1,219 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * The parameters of a single pass of iteration over an image
+ */
+public final class KernelPass
+{
+	private final int width, height; // Dimensions of the pixels iterated, which are the image's unless a tile of it
+	private final int centerX, centerY; // Pixel coords of the center of the image, which complex coords are relative to
+	private final double zoom; // Zoom factor for pixel space -> complex space mapping
+	private final double re, im; // Offsets in complex space
+	private final boolean julia; // True if c is constant and z starts at the pixel
+	private final double jr, ji; // The constant c of a Julia set
+	private final int maxIters; // Max number of iterations to perform
+	private final int prevMaxIters; // The max iterations of the previous pass
+	private final boolean distance; // True if derivatives should be tracked to estimate distances
+	private final double bailout; // Radius beyond which a point has escaped
+	private final OrbitStatistic statistic; // What kernels accumulate over each orbit
+	private final ReferenceOrbit reference; // Orbit to iterate pixels relative to, or null
+	
+	/**
+	 * Constructor for a pass of iteration values only, with the default bailout radius
+	 */
+	public KernelPass(int width, int height, double zoom, double re, double im, boolean julia, double jr, double ji, int maxIters, int prevMaxIters)
+	{
+		this(width, height, zoom, re, im, julia, jr, ji, maxIters, prevMaxIters, false, Kernel.DEF_BAILOUT, OrbitStatistic.NONE, null);
+	}
+	
+	/**
+	 * Constructor
+	 */
+	public KernelPass(int width, int height, double zoom, double re, double im, boolean julia, double jr, double ji, int maxIters, int prevMaxIters, boolean distance, double bailout,
+			OrbitStatistic statistic, ReferenceOrbit reference)
+	{
+		this.width = width;
+		this.height = height;
+		this.centerX = width / 2;
+		this.centerY = height / 2;
+		this.zoom = zoom;
+		this.re = re;
+		this.im = im;
+		this.julia = julia;
+		this.jr = jr;
+		this.ji = ji;
+		this.maxIters = maxIters;
+		this.prevMaxIters = prevMaxIters;
+		this.distance = distance;
+		this.bailout = bailout;
+		this.statistic = statistic;
+		this.reference = reference;
+	}
+	
+	/**
+	 * Creates a pass over a tile of the image of this pass. Kernels map the pixels of the
+	 * tile to exactly the same complex coords as they would the same pixels of the image.
+	 * @param x the X coord of the tile in the image
+	 * @param y the Y coord of the tile in the image
+	 * @param width the width of the tile
+	 * @param height the height of the tile
+	 */
+	public KernelPass forTile(int x, int y, int width, int height)
+	{
+		return new KernelPass(this, width, height, centerX - x, centerY - y);
+	}
+	
+	/**
+	 * Constructor for a pass over a tile of another pass's image
+	 */
+	private KernelPass(KernelPass image, int width, int height, int centerX, int centerY)
+	{
+		this.width = width;
+		this.height = height;
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.zoom = image.zoom;
+		this.re = image.re;
+		this.im = image.im;
+		this.julia = image.julia;
+		this.jr = image.jr;
+		this.ji = image.ji;
+		this.maxIters = image.maxIters;
+		this.prevMaxIters = image.prevMaxIters;
+		this.distance = image.distance;
+		this.bailout = image.bailout;
+		this.statistic = image.statistic;
+		this.reference = image.reference;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	/**
+	 * Gets the X coord in the pixels of this pass of the center of the image, which maps
+	 * to Real(c) = re
+	 */
+	public int getCenterX()
+	{
+		return centerX;
+	}
+	
+	/**
+	 * Gets the Y coord in the pixels of this pass of the center of the image, which maps
+	 * to Imag(c) = -im
+	 */
+	public int getCenterY()
+	{
+		return centerY;
+	}
+	
+	public double getZoom()
+	{
+		return zoom;
+	}
+	
+	public double getRe()
+	{
+		return re;
+	}
+	
+	public double getIm()
+	{
+		return im;
+	}
+	
+	public boolean isJulia()
+	{
+		return julia;
+	}
+	
+	public double getJuliaRe()
+	{
+		return jr;
+	}
+	
+	public double getJuliaIm()
+	{
+		return ji;
+	}
+	
+	public int getMaxIters()
+	{
+		return maxIters;
+	}
+	
+	/**
+	 * Gets the max iterations of the previous pass, which a pixel must have reached to not
+	 * have already escaped in an earlier pass
+	 */
+	public int getPrevMaxIters()
+	{
+		return prevMaxIters;
+	}
+	
+	/**
+	 * Gets whether kernels should track derivatives and estimate the distance of each
+	 * escaped pixel to the set. The buffers must then include derivative and distance
+	 * buffers.
+	 */
+	public boolean isDistance()
+	{
+		return distance;
+	}
+	
+	/**
+	 * Gets the escape radius. A point has escaped once |z| is no longer less than this.
+	 */
+	public double getBailout()
+	{
+		return bailout;
+	}
+	
+	/**
+	 * Gets the statistic which kernels should accumulate over the orbit of each pixel, if
+	 * any. The buffers must then include an orbit buffer.
+	 */
+	public OrbitStatistic getStatistic()
+	{
+		return statistic;
+	}
+	
+	/**
+	 * Gets the reference orbit which kernels should iterate pixels by perturbation of, or
+	 * null to iterate them directly. A reference orbit is only given to kernels which
+	 * support perturbation, for Mandelbrot passes which don't estimate distances or
+	 * accumulate statistics, and it has at least maxIters + 2 values unless it escaped. The
+	 * buffers must then include a reference iterations buffer, and the Z buffers hold the
+	 * differences from the reference orbit.
+	 */
+	public ReferenceOrbit getReference()
+	{
+		return reference;
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+import java.text.ParseException;
+
+/**
+ * Factory for kernels. The common kernels are shared constants, and powers with a
+ * specialized kernel always get that kernel rather than a generic one.
+ */
+public final class Kernels
+{
+	public static final Kernel Z2 = new Z2Kernel();
+	public static final Kernel Z3 = new Z3Kernel();
+	public static final Kernel Z4 = new Z4Kernel();
+	public static final Kernel BURNING_SHIP = new BurningShipKernel();
+	public static final Kernel TRICORN = new TricornKernel();
+	
+	private Kernels()
+	{
+	}
+	
+	/**
+	 * Gets a kernel for z = z^power + c
+	 * @param power the power, which must be greater than 1
+	 * @return the kernel
+	 */
+	public static Kernel forPower(double power)
+	{
+		if (!(power > 1) || Double.isInfinite(power))
+			throw new IllegalArgumentException("Power must be a finite number greater than 1");
+		
+		if (power == 2)
+			return Z2;
+		else if (power == 3)
+			return Z3;
+		else if (power == 4)
+			return Z4;
+		else if (power == Math.rint(power) && power <= IntPowerKernel.MAX_POWER)
+			return new IntPowerKernel((int)power);
+		else
+			return new RealPowerKernel(power);
+	}
+	
+	/**
+	 * Gets a kernel from its identifier
+	 * @param id the identifier, e.g. "z^5", "burningship" or "formula:z^5-z^2+c"
+	 * @return the kernel
+	 * @throws IllegalArgumentException if the identifier isn't recognized
+	 */
+	public static Kernel forId(String id)
+	{
+		if (id.equals(BURNING_SHIP.getId()))
+			return BURNING_SHIP;
+		else if (id.equals(TRICORN.getId()))
+			return TRICORN;
+		else if (id.startsWith(FormulaCompiler.ID_PREFIX)) {
+			try {
+				return FormulaCompiler.forFormula(id.substring(FormulaCompiler.ID_PREFIX.length()));
+			}
+			catch (ParseException ex) {
+				throw new IllegalArgumentException("Invalid formula in kernel id: " + id);
+			}
+		}
+		else if (id.startsWith("z^")) {
+			try {
+				return forPower(Double.parseDouble(id.substring(2)));
+			}
+			catch (NumberFormatException ex) {
+				// Fall through to the exception below
+			}
+		}
+		throw new IllegalArgumentException("Unknown kernel: " + id);
+	}
+}
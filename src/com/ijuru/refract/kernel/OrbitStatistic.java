@@ -0,0 +1,31 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Statistics of each pixel's orbit which kernels can accumulate as they iterate, for
+ * coloring by more than the iteration value without a second pass over the orbits
+ */
+public enum OrbitStatistic
+{
+	NONE,		// Nothing is accumulated
+	STRIPES,	// Sum of the stripe function over the orbit, replaced by its average when the pixel escapes
+	TRAP		// Smallest |z|^2 of the orbit, i.e. its closest approach to a point trap at the origin
+}
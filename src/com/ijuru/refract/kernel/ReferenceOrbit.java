@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * The orbit of a reference point under z = z^2 + c, calculated to high precision and
+ * rounded to doubles, from which kernels iterate nearby pixels by perturbation. The orbit
+ * starts at Z0 = 0, so Zn+1 is where a pixel is after n iterations. This is a snapshot of
+ * the values calculated so far, which aren't changed by later calculation.
+ */
+public final class ReferenceOrbit
+{
+	private final double re, im; // The reference point
+	private final double[] orbitRe, orbitIm; // Values of the orbit, which may be longer than it
+	private final int length; // Number of values
+	private final boolean escaped; // True if the orbit escaped so can't be extended
+	
+	/**
+	 * Constructor. Only the first length values of the arrays are used, which mustn't change.
+	 */
+	public ReferenceOrbit(double re, double im, double[] orbitRe, double[] orbitIm, int length, boolean escaped)
+	{
+		this.re = re;
+		this.im = im;
+		this.orbitRe = orbitRe;
+		this.orbitIm = orbitIm;
+		this.length = length;
+		this.escaped = escaped;
+	}
+	
+	/**
+	 * Gets the Real(C) value of the reference point
+	 */
+	public double getRe()
+	{
+		return re;
+	}
+	
+	/**
+	 * Gets the Imag(C) value of the reference point
+	 */
+	public double getIm()
+	{
+		return im;
+	}
+	
+	/**
+	 * Gets the Real(Z) values of the orbit. The array may be longer than the orbit.
+	 */
+	public double[] getOrbitRe()
+	{
+		return orbitRe;
+	}
+	
+	/**
+	 * Gets the Imag(Z) values of the orbit. The array may be longer than the orbit.
+	 */
+	public double[] getOrbitIm()
+	{
+		return orbitIm;
+	}
+	
+	/**
+	 * Gets the number of values in the orbit, including Z0
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+	
+	/**
+	 * Gets whether the orbit escaped, in which case its last value is outside the escape
+	 * radius and it is shorter than asked for
+	 */
+	public boolean isEscaped()
+	{
+		return escaped;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Kernel for the Tricorn fractal, z = conj(z)^2 + c
+ */
+public class TricornKernel extends Kernel
+{
+	public String getId()
+	{
+		return "tricorn";
+	}
+	
+	public void iterate(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, cr, ci;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				// Load X, Y and ITERS from cache if refinement
+				zr = cacheX[index];
+				zi = cacheY[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			// Precalculate squares
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Iterate z = conj(z)^2 + c
+			while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+				zi = -2 * zr * zi + ci;
+				zr = zr2 - zi2 + cr;
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			// Store X, Y and ITERS in cache for next pass which maybe a refinement
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			iters[index] = niters;
+			
+			// Pixels which weren't already escaped at the start of this pass but are now
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	public int iteratePoint(double zr, double zi, double cr, double ci, int maxIters, double bailout)
+	{
+		double bailout2 = bailout * bailout;
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		int niters = 0;
+		
+		while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+			zi = -2 * zr * zi + ci;
+			zr = zr2 - zi2 + cr;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			++niters;
+		}
+		return niters;
+	}
+	
+	public int traceOrbit(double zr, double zi, double cr, double ci, int maxIters, double bailout, double[] orbit)
+	{
+		double bailout2 = bailout * bailout;
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		int niters = 0;
+		
+		while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+			zi = -2 * zr * zi + ci;
+			zr = zr2 - zi2 + cr;
+			orbit[2 * niters] = zr;
+			orbit[2 * niters + 1] = zi;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			++niters;
+		}
+		return (niters < maxIters) ? niters : -1;
+	}
+}
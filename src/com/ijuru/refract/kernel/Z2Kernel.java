@@ -0,0 +1,490 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Kernel for the standard z = z^2 + c mandelbrot/julia sets
+ */
+public class Z2Kernel extends Kernel
+{
+	private static final int UNROLL = 8; // Iterations between escape checks in the unrolled loop
+	
+	public String getId()
+	{
+		return "z^2";
+	}
+	
+	public boolean supportsDistance()
+	{
+		return true;
+	}
+	
+	public boolean supportsStatistics()
+	{
+		return true;
+	}
+	
+	public boolean supportsPerturbation()
+	{
+		return true;
+	}
+	
+	public void iterate(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		if (pass.getReference() != null) {
+			iteratePerturbed(pass, buffers, y, x0, x1, resume, counters);
+			return;
+		}
+		if (pass.isDistance()) {
+			iterateDistance(pass, buffers, y, x0, x1, resume, counters);
+			return;
+		}
+		if (pass.getStatistic() != OrbitStatistic.NONE) {
+			iterateStatistic(pass, buffers, y, x0, x1, resume, counters);
+			return;
+		}
+		
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		double unrollMax = 0.999 * (bailout2 - pass.getBailout());
+		unrollMax *= unrollMax;
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, cr, ci;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				// Load X, Y and ITERS from cache if refinement
+				zr = cacheX[index];
+				zi = cacheY[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			// Precalculate squares
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Iterate z = z^2 + c in blocks, only checking for escape at the end of each. When
+			// |c| <= R^2 - R an escaped point can never come back inside the radius R, so if
+			// a block ends inside then no step within it escaped. Otherwise we return to the
+			// start of the block and let the plain loop find the exact step it escaped on.
+			if (cr * cr + ci * ci <= unrollMax) {
+				while ((zr2 + zi2 < bailout2) && niters + UNROLL <= maxIters) {
+					double zr0 = zr, zi0 = zi;
+					for (int i = 0; i < UNROLL; ++i) {
+						zi = 2 * zr * zi + ci;
+						zr = zr2 - zi2 + cr;
+						zr2 = zr * zr;
+						zi2 = zi * zi;
+					}
+					
+					// Note NaN, from iterating far beyond the radius, also counts as escaped
+					if (!(zr2 + zi2 < bailout2)) {
+						zr = zr0;
+						zi = zi0;
+						zr2 = zr * zr;
+						zi2 = zi * zi;
+						break;
+					}
+					niters += UNROLL;
+				}
+			}
+			
+			// Iterate z = z^2 + c
+			while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+				zi = 2 * zr * zi + ci;
+				zr = zr2 - zi2 + cr;
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			// Store X, Y and ITERS in cache for next pass which maybe a refinement
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			iters[index] = niters;
+			
+			// Pixels which weren't already escaped at the start of this pass but are now
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Iterates a run of pixels by perturbation of the pass's reference orbit Z, i.e. only
+	 * iterating the difference d between each pixel's orbit and Z, which unlike the pixels
+	 * themselves can be told apart with doubles at deep zooms. The difference is rebased onto
+	 * the start of Z whenever the pixel gets closer to zero than to Z, or Z has escaped and
+	 * ended, so the one reference orbit is good for every pixel.
+	 */
+	private void iteratePerturbed(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		ReferenceOrbit reference = pass.getReference();
+		double[] refRe = reference.getOrbitRe();
+		double[] refIm = reference.getOrbitIm();
+		int refLast = reference.getLength() - 1;
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		int[] iters = buffers.getIters();
+		int[] refIters = buffers.getRefIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		int nescaped = 0;
+		long niterations = 0;
+		
+		// Offset of the pass from the reference point, which is exact as they're so close
+		double offsetRe = pass.getRe() - reference.getRe();
+		double offsetIm = -pass.getIm() - reference.getIm();
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double dr, di;
+			int niters, m;
+			
+			// Convert from pixel space to the difference from the reference point
+			double dcr = (x - halfCX) / zoom + offsetRe;
+			double dci = (y - halfCY) / zoom + offsetIm;
+			
+			if (resume) {
+				dr = cacheX[index];
+				di = cacheY[index];
+				niters = iters[index];
+				m = refIters[index];
+			}
+			else {
+				// z starts at c, which is Z1 + dc
+				dr = dcr;
+				di = dci;
+				niters = 0;
+				m = 1;
+			}
+			int startIters = niters;
+			
+			while (niters < maxIters) {
+				double zr = refRe[m] + dr;
+				double zi = refIm[m] + di;
+				double zmag2 = zr * zr + zi * zi;
+				if (!(zmag2 < bailout2))
+					break;
+				
+				if (zmag2 < dr * dr + di * di || m == refLast) {
+					dr = zr;
+					di = zi;
+					m = 0;
+				}
+				
+				// d = 2Zd + d^2 + dc
+				double tr = refRe[m], ti = refIm[m];
+				double ndr = 2 * (tr * dr - ti * di) + dr * dr - di * di + dcr;
+				di = 2 * (tr * di + ti * dr) + 2 * dr * di + dci;
+				dr = ndr;
+				++m;
+				++niters;
+			}
+			
+			cacheX[index] = dr;
+			cacheY[index] = di;
+			iters[index] = niters;
+			refIters[index] = m;
+			
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Iterates a run of pixels while tracking dz/dc to estimate distances
+	 */
+	private void iterateDistance(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		double[] cacheDX = buffers.getDX();
+		double[] cacheDY = buffers.getDY();
+		float[] distance = buffers.getDistance();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		double dc = julia ? 0 : 1; // Derivative of c, which is constant for Julia sets
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, dr, di, cr, ci;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				zr = cacheX[index];
+				zi = cacheY[index];
+				dr = cacheDX[index];
+				di = cacheDY[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				dr = 1;
+				di = 0;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Iterate dz = 2z.dz + dc and z = z^2 + c
+			while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+				double t = 2 * (zr * dr - zi * di) + dc;
+				di = 2 * (zr * di + zi * dr);
+				dr = t;
+				zi = 2 * zr * zi + ci;
+				zr = zr2 - zi2 + cr;
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			cacheDX[index] = dr;
+			cacheDY[index] = di;
+			iters[index] = niters;
+			
+			// Only pixels which escaped during this pass need their distance estimated
+			if (niters < maxIters && (niters > startIters || !resume))
+				distance[index] = escapeDistance(zr, zi, dr, di, cr, ci, dc);
+			
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Iterates a run of pixels while accumulating a statistic of each orbit
+	 */
+	private void iterateStatistic(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		double[] orbit = buffers.getOrbit();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout = pass.getBailout();
+		double bailout2 = bailout * bailout;
+		boolean stripes = (pass.getStatistic() == OrbitStatistic.STRIPES);
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, cr, ci, stat;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				zr = cacheX[index];
+				zi = cacheY[index];
+				stat = orbit[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				stat = stripes ? 0 : zr * zr + zi * zi;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Separate loops so that neither tests which statistic it is accumulating
+			if (stripes) {
+				// Iterate z = z^2 + c, summing the stripe function of each new z
+				while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+					zi = 2 * zr * zi + ci;
+					zr = zr2 - zi2 + cr;
+					zr2 = zr * zr;
+					zi2 = zi * zi;
+					stat += stripe(zr, zi, zr2, zi2);
+					++niters;
+				}
+			}
+			else {
+				// Iterate z = z^2 + c, keeping the closest approach of z to the trap
+				while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+					zi = 2 * zr * zi + ci;
+					zr = zr2 - zi2 + cr;
+					zr2 = zr * zr;
+					zi2 = zi * zi;
+					if (zr2 + zi2 < stat)
+						stat = zr2 + zi2;
+					++niters;
+				}
+			}
+			
+			// The stripe sum of a pixel which escaped during this pass is replaced by its average. A
+			// pixel may escape on the last iteration of a pass, in which case it is only seen to have
+			// escaped in the next, as the pass couldn't tell it apart from a pixel in the set.
+			if (stripes && niters < maxIters && startIters >= prevMaxIters)
+				stat = stripeAverage(stat, niters, zr, zi, bailout, 2);
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			orbit[index] = stat;
+			iters[index] = niters;
+			
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Continues iterating an escaped point, without storing anything, until its distance
+	 * can be estimated accurately
+	 */
+	private float escapeDistance(double zr, double zi, double dr, double di, double cr, double ci, double dc)
+	{
+		for (int n = 0; n < MAX_DISTANCE_ITERS; ++n) {
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			if (zr2 + zi2 >= DISTANCE_BAILOUT)
+				break;
+			
+			double t = 2 * (zr * dr - zi * di) + dc;
+			di = 2 * (zr * di + zi * dr);
+			dr = t;
+			zi = 2 * zr * zi + ci;
+			zr = zr2 - zi2 + cr;
+		}
+		return estimateDistance(zr, zi, dr, di);
+	}
+	
+	public int iteratePoint(double zr, double zi, double cr, double ci, int maxIters, double bailout)
+	{
+		double bailout2 = bailout * bailout;
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		int niters = 0;
+		
+		while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+			zi = 2 * zr * zi + ci;
+			zr = zr2 - zi2 + cr;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			++niters;
+		}
+		return niters;
+	}
+	
+	public int traceOrbit(double zr, double zi, double cr, double ci, int maxIters, double bailout, double[] orbit)
+	{
+		double bailout2 = bailout * bailout;
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		int niters = 0;
+		
+		while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+			zi = 2 * zr * zi + ci;
+			zr = zr2 - zi2 + cr;
+			orbit[2 * niters] = zr;
+			orbit[2 * niters + 1] = zi;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			++niters;
+		}
+		return (niters < maxIters) ? niters : -1;
+	}
+}
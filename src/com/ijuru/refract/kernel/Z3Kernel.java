@@ -0,0 +1,365 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.kernel;
+
+/**
+ * Kernel for the z = z^3 + c mandelbrot/julia sets
+ */
+public class Z3Kernel extends Kernel
+{
+	public String getId()
+	{
+		return "z^3";
+	}
+	
+	public boolean supportsDistance()
+	{
+		return true;
+	}
+	
+	public boolean supportsStatistics()
+	{
+		return true;
+	}
+	
+	public void iterate(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		if (pass.isDistance()) {
+			iterateDistance(pass, buffers, y, x0, x1, resume, counters);
+			return;
+		}
+		if (pass.getStatistic() != OrbitStatistic.NONE) {
+			iterateStatistic(pass, buffers, y, x0, x1, resume, counters);
+			return;
+		}
+		
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, cr, ci;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				// Load X, Y and ITERS from cache if refinement
+				zr = cacheX[index];
+				zi = cacheY[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			// Precalculate squares
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Iterate z = z^3 + c
+			while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+				zi = zi * (3 * zr2 - zi2) + ci;
+				zr = zr * (zr2 - 3 * zi2) + cr;
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			// Store X, Y and ITERS in cache for next pass which maybe a refinement
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			iters[index] = niters;
+			
+			// Pixels which weren't already escaped at the start of this pass but are now
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Iterates a run of pixels while tracking dz/dc to estimate distances
+	 */
+	private void iterateDistance(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		double[] cacheDX = buffers.getDX();
+		double[] cacheDY = buffers.getDY();
+		float[] distance = buffers.getDistance();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout2 = pass.getBailout() * pass.getBailout();
+		double dc = julia ? 0 : 1; // Derivative of c, which is constant for Julia sets
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, dr, di, cr, ci;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				zr = cacheX[index];
+				zi = cacheY[index];
+				dr = cacheDX[index];
+				di = cacheDY[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				dr = 1;
+				di = 0;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Iterate dz = 3z^2.dz + dc and z = z^3 + c
+			while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+				double pr = zr2 - zi2, pi = 2 * zr * zi;
+				double t = 3 * (pr * dr - pi * di) + dc;
+				di = 3 * (pr * di + pi * dr);
+				dr = t;
+				zi = zi * (3 * zr2 - zi2) + ci;
+				zr = zr * (zr2 - 3 * zi2) + cr;
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+			}
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			cacheDX[index] = dr;
+			cacheDY[index] = di;
+			iters[index] = niters;
+			
+			// Only pixels which escaped during this pass need their distance estimated
+			if (niters < maxIters && (niters > startIters || !resume))
+				distance[index] = escapeDistance(zr, zi, dr, di, cr, ci, dc);
+			
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Iterates a run of pixels while accumulating a statistic of each orbit
+	 */
+	private void iterateStatistic(KernelPass pass, KernelBuffers buffers, int y, int x0, int x1, boolean resume, KernelCounters counters)
+	{
+		double[] cacheX = buffers.getZX();
+		double[] cacheY = buffers.getZY();
+		double[] orbit = buffers.getOrbit();
+		int[] iters = buffers.getIters();
+		int halfCX = pass.getCenterX();
+		int halfCY = pass.getCenterY();
+		double zoom = pass.getZoom();
+		double re = pass.getRe();
+		double im = pass.getIm();
+		boolean julia = pass.isJulia();
+		double jr = pass.getJuliaRe();
+		double ji = pass.getJuliaIm();
+		int maxIters = pass.getMaxIters();
+		int prevMaxIters = pass.getPrevMaxIters();
+		double bailout = pass.getBailout();
+		double bailout2 = bailout * bailout;
+		boolean stripes = (pass.getStatistic() == OrbitStatistic.STRIPES);
+		int nescaped = 0;
+		long niterations = 0;
+		
+		for (int x = x0, index = y * pass.getWidth() + x0; x < x1; ++x, ++index) {
+			double zr, zi, cr, ci, stat;
+			int niters;
+			
+			// Convert from pixel space to complex space
+			cr = (x - halfCX) / zoom + re;
+			ci = (y - halfCY) / zoom - im;
+			
+			if (resume) {
+				zr = cacheX[index];
+				zi = cacheY[index];
+				stat = orbit[index];
+				niters = iters[index];
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				stat = stripes ? 0 : zr * zr + zi * zi;
+				niters = 0;
+			}
+			int startIters = niters;
+			if (julia) {
+				cr = jr;
+				ci = ji;
+			}
+			
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			
+			// Separate loops so that neither tests which statistic it is accumulating
+			if (stripes) {
+				// Iterate z = z^3 + c, summing the stripe function of each new z
+				while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+					zi = zi * (3 * zr2 - zi2) + ci;
+					zr = zr * (zr2 - 3 * zi2) + cr;
+					zr2 = zr * zr;
+					zi2 = zi * zi;
+					stat += stripe(zr, zi, zr2, zi2);
+					++niters;
+				}
+			}
+			else {
+				// Iterate z = z^3 + c, keeping the closest approach of z to the trap
+				while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+					zi = zi * (3 * zr2 - zi2) + ci;
+					zr = zr * (zr2 - 3 * zi2) + cr;
+					zr2 = zr * zr;
+					zi2 = zi * zi;
+					if (zr2 + zi2 < stat)
+						stat = zr2 + zi2;
+					++niters;
+				}
+			}
+			
+			// The stripe sum of a pixel which escaped during this pass is replaced by its average. A
+			// pixel may escape on the last iteration of a pass, in which case it is only seen to have
+			// escaped in the next, as the pass couldn't tell it apart from a pixel in the set.
+			if (stripes && niters < maxIters && startIters >= prevMaxIters)
+				stat = stripeAverage(stat, niters, zr, zi, bailout, 3);
+			
+			cacheX[index] = zr;
+			cacheY[index] = zi;
+			orbit[index] = stat;
+			iters[index] = niters;
+			
+			if (niters < maxIters && startIters >= prevMaxIters)
+				++nescaped;
+			
+			niterations += niters - startIters;
+		}
+		counters.add(nescaped, niterations);
+	}
+	
+	/**
+	 * Continues iterating an escaped point, without storing anything, until its distance
+	 * can be estimated accurately
+	 */
+	private float escapeDistance(double zr, double zi, double dr, double di, double cr, double ci, double dc)
+	{
+		for (int n = 0; n < MAX_DISTANCE_ITERS; ++n) {
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+			if (zr2 + zi2 >= DISTANCE_BAILOUT)
+				break;
+			
+			double pr = zr2 - zi2, pi = 2 * zr * zi;
+			double t = 3 * (pr * dr - pi * di) + dc;
+			di = 3 * (pr * di + pi * dr);
+			dr = t;
+			zi = zi * (3 * zr2 - zi2) + ci;
+			zr = zr * (zr2 - 3 * zi2) + cr;
+		}
+		return estimateDistance(zr, zi, dr, di);
+	}
+	
+	public int iteratePoint(double zr, double zi, double cr, double ci, int maxIters, double bailout)
+	{
+		double bailout2 = bailout * bailout;
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		int niters = 0;
+		
+		while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+			zi = zi * (3 * zr2 - zi2) + ci;
+			zr = zr * (zr2 - 3 * zi2) + cr;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			++niters;
+		}
+		return niters;
+	}
+	
+	public int traceOrbit(double zr, double zi, double cr, double ci, int maxIters, double bailout, double[] orbit)
+	{
+		double bailout2 = bailout * bailout;
+		double zr2 = zr * zr;
+		double zi2 = zi * zi;
+		int niters = 0;
+		
+		while ((zr2 + zi2 < bailout2) && niters < maxIters) {
+			zi = zi * (3 * zr2 - zi2) + ci;
+			zr = zr * (zr2 - 3 * zi2) + cr;
+			orbit[2 * niters] = zr;
+			orbit[2 * niters + 1] = zi;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			++niters;
+		}
+		return (niters < maxIters) ? niters : -1;
+	}
+}
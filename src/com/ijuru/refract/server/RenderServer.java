@@ -0,0 +1,534 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.ijuru.refract.Colorizer;
+import com.ijuru.refract.Palette;
+import com.ijuru.refract.kernel.BatchBackend;
+import com.ijuru.refract.kernel.BatchTile;
+import com.ijuru.refract.kernel.FormulaCompiler;
+import com.ijuru.refract.kernel.Kernel;
+import com.ijuru.refract.kernel.KernelCounters;
+import com.ijuru.refract.kernel.KernelPass;
+import com.ijuru.refract.kernel.Kernels;
+import com.ijuru.refract.kernel.OrbitStatistic;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves rendered views as PNG images over HTTP, e.g. for dashboards. A request to
+ * /render takes the view as query parameters:
+ * 
+ *   w, h       image dimensions (default 256x256)
+ *   zoom, x, y view coords (default 100, 0, 0)
+ *   kernel     kernel id (default z^2), though not formulas or powers above 64
+ *   jx, jy     Julia coords, which make it a Julia set if given
+ *   iters      max iterations (default 256)
+ *   bailout    escape radius (default 2)
+ *   palette    palette name (default sunset)
+ *   deadline   millis the client will wait (default and max are set by the server)
+ * 
+ * Requests are handled on virtual threads where the JVM has them, and otherwise on a
+ * cached pool, but they only wait: the kernels run on a fixed pool with a thread per
+ * core, in bands of rows so that concurrent requests share it fairly. A request must be
+ * admitted before anything is allocated or any kernel is created, and at most a fixed
+ * number are admitted at once, so a burst can't exhaust memory or CPU. A request which
+ * can't be admitted in time gets 503, and one which isn't rendered by its deadline gets
+ * 504. Its bands stop at the next row once the deadline has passed, and it isn't counted
+ * as finished until they have. /stats returns counts of how requests have been handled.
+ */
+public class RenderServer
+{
+	private static final int DEF_SIZE = 256;				// The default width and height of images
+	private static final int MAX_PIXELS = 4096 * 4096;		// Largest image we'll render
+	private static final int DEF_ITERS = 256;
+	private static final int MAX_ITERS = 1000000;
+	private static final double MAX_POWER = 64;			// Largest power of z, as kernels take longer with the power
+	private static final int BAND_ROWS = 16;				// Rows rendered by each task
+	private static final int DEF_DEADLINE = 10000;			// The default deadline in millis
+	private static final int MAX_DEADLINE = 60000;			// The max deadline which a client may ask for
+	private static final int MAX_ADMIT_MILLIS = 1000;		// The max time a request waits to be admitted
+	private static final String[] PALETTE_NAMES = { "sunset", "hubble", "rainbow", "chrome", "evening", "electric" };
+	private static final Object[][] PALETTES = { Palette.SUNSET, Palette.HUBBLE, Palette.RAINBOW, Palette.CHROME, Palette.EVENING, Palette.ELECTRIC };
+	
+	private final HttpServer server;
+	private final ExecutorService requestExecutor; // Runs request handlers, which mostly wait
+	private final ExecutorService renderExecutor; // Runs kernels, one thread per core
+	private final Semaphore admission; // Permits for requests being rendered
+	private final int maxRequests;
+	private final AtomicLong rendered = new AtomicLong(), rejected = new AtomicLong(), timedOut = new AtomicLong(), failed = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * @param port the port to listen on, or zero for any free port
+	 * @param threads the number of threads to run kernels on
+	 * @param maxRequests the max number of requests being rendered at once
+	 */
+	public RenderServer(int port, int threads, int maxRequests) throws IOException
+	{
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Refract server renderer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		
+		this.renderExecutor = Executors.newFixedThreadPool(threads, factory);
+		this.requestExecutor = createRequestExecutor();
+		this.admission = new Semaphore(maxRequests, true);
+		this.maxRequests = maxRequests;
+		
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(requestExecutor);
+		server.createContext("/render", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleRender(exchange);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				String stats = "rendered " + rendered.get() + "\nrejected " + rejected.get() + "\ntimedout " + timedOut.get()
+						+ "\nfailed " + failed.get() + "\nadmitted " + (maxRequests - admission.availablePermits()) + "\n";
+				send(exchange, 200, "text/plain", stats.getBytes("UTF-8"));
+			}
+		});
+	}
+	
+	/**
+	 * Creates the executor for request handlers. Virtual threads are found by reflection
+	 * so that this still runs on JVMs which don't have them.
+	 */
+	private static ExecutorService createRequestExecutor()
+	{
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		}
+		catch (Exception ex) {
+			// Handlers spend their time waiting, and admission control bounds how many wait
+			// for long, so an unbounded pool of platform threads is the next best thing
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Refract server request");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Starts serving requests
+	 */
+	public void start()
+	{
+		server.start();
+	}
+	
+	/**
+	 * Stops serving requests
+	 */
+	public void stop()
+	{
+		server.stop(0);
+		requestExecutor.shutdownNow();
+		renderExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Gets the port being listened on
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+	
+	private void handleRender(HttpExchange exchange) throws IOException
+	{
+		long start = System.nanoTime();
+		int width, height, maxIters, deadlineMillis;
+		double zoom, x, y;
+		String kernelId;
+		boolean julia;
+		double jx, jy, bailout;
+		Object[] palette;
+		try {
+			Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			width = getInt(params, "w", DEF_SIZE);
+			height = getInt(params, "h", DEF_SIZE);
+			zoom = getDouble(params, "zoom", 100);
+			x = getDouble(params, "x", 0);
+			y = getDouble(params, "y", 0);
+			maxIters = getInt(params, "iters", DEF_ITERS);
+			deadlineMillis = Math.min(MAX_DEADLINE, getInt(params, "deadline", DEF_DEADLINE));
+			julia = params.containsKey("jx") || params.containsKey("jy");
+			jx = getDouble(params, "jx", 0);
+			jy = getDouble(params, "jy", 0);
+			bailout = getDouble(params, "bailout", Kernel.DEF_BAILOUT);
+			kernelId = params.containsKey("kernel") ? params.get("kernel") : "z^2";
+			palette = getPalette(params.containsKey("palette") ? params.get("palette") : "sunset");
+			
+			if (width <= 0 || height <= 0 || (long)width * height > MAX_PIXELS)
+				throw new IllegalArgumentException("Image must be between 1 and " + MAX_PIXELS + " pixels");
+			if (maxIters <= 0 || maxIters > MAX_ITERS)
+				throw new IllegalArgumentException("Iterations must be between 1 and " + MAX_ITERS);
+			if (!(zoom > 0) || deadlineMillis <= 0)
+				throw new IllegalArgumentException("Zoom and deadline must be positive");
+			if (bailout < Kernel.DEF_BAILOUT)
+				throw new IllegalArgumentException("Bailout radius must be at least " + Kernel.DEF_BAILOUT);
+			checkKernelId(kernelId);
+		}
+		catch (IllegalArgumentException ex) {
+			sendError(exchange, 400, ex.getMessage());
+			return;
+		}
+		
+		long deadline = start + deadlineMillis * 1000000L;
+		
+		// Nothing is allocated until the request is admitted, so queued requests cost next to nothing
+		boolean admitted;
+		try {
+			long admitMillis = Math.min(MAX_ADMIT_MILLIS, (deadline - System.nanoTime()) / 1000000L);
+			admitted = admitMillis > 0 && admission.tryAcquire(admitMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+		if (!admitted) {
+			rejected.incrementAndGet();
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			sendError(exchange, 503, "Server is busy");
+			return;
+		}
+		
+		byte[] png;
+		try {
+			Kernel kernel;
+			try {
+				kernel = Kernels.forId(kernelId);
+			}
+			catch (IllegalArgumentException ex) {
+				sendError(exchange, 400, ex.getMessage());
+				return;
+			}
+			
+			int[] iters = render(kernel, width, height, zoom, x, y, julia, jx, jy, bailout, maxIters, deadline);
+			if (iters == null) {
+				timedOut.incrementAndGet();
+				sendError(exchange, 504, "Render did not complete within " + deadlineMillis + " ms");
+				return;
+			}
+			
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			int[] rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			Colorizer colorizer = new Colorizer(new Palette(palette).createInterpolation(64), 0, 0x000000);
+			colorizer.colorize(iters, rgb, 0, width * height, maxIters);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "PNG", out);
+			png = out.toByteArray();
+		}
+		catch (RuntimeException ex) {
+			failed.incrementAndGet();
+			sendError(exchange, 500, String.valueOf(ex.getMessage()));
+			return;
+		}
+		finally {
+			admission.release();
+		}
+		
+		rendered.incrementAndGet();
+		send(exchange, 200, "image/png", png);
+	}
+	
+	/**
+	 * Checks a kernel id without creating the kernel, as creating a formula kernel compiles
+	 * it, which isn't something a client should be able to make the server do
+	 * @throws IllegalArgumentException if the kernel isn't allowed
+	 */
+	private static void checkKernelId(String id)
+	{
+		if (id.startsWith(FormulaCompiler.ID_PREFIX))
+			throw new IllegalArgumentException("Formula kernels aren't supported");
+		if (id.startsWith("z^")) {
+			double power;
+			try {
+				power = Double.parseDouble(id.substring(2));
+			}
+			catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Unknown kernel: " + id);
+			}
+			if (!(power <= MAX_POWER))
+				throw new IllegalArgumentException("Power must be at most " + MAX_POWER);
+		}
+	}
+	
+	/**
+	 * Renders the iteration values of a view on the render pool, in bands of rows. This
+	 * doesn't return until every band which started has stopped.
+	 * @return the iteration values, or null if the deadline passed first
+	 */
+	private int[] render(final Kernel kernel, final int width, final int height, final double zoom, final double x, final double y,
+			final boolean julia, final double jx, final double jy, final double bailout, final int maxIters, final long deadline)
+	{
+		final int[] iters = new int[width * height];
+		final BandTracker tracker = new BandTracker();
+		List<Future<Object>> bands = new ArrayList<Future<Object>>();
+		for (int y0 = 0; y0 < height; y0 += BAND_ROWS) {
+			final int top = y0;
+			bands.add(renderExecutor.submit(new Callable<Object>() {
+				public Object call()
+				{
+					// Bands of requests which have already timed out aren't worth starting
+					if (System.nanoTime() >= deadline || !tracker.begin())
+						return null;
+					try {
+						renderBand(kernel, width, height, zoom, x, y, julia, jx, jy, bailout, maxIters, top, Math.min(BAND_ROWS, height - top), iters, deadline, tracker);
+					}
+					finally {
+						tracker.end();
+					}
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (Future<Object> band : bands)
+				band.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			return (System.nanoTime() < deadline) ? iters : null;
+		}
+		catch (TimeoutException ex) {
+			return null;
+		}
+		catch (CancellationException ex) {
+			return null;
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+		finally {
+			for (Future<Object> band : bands)
+				band.cancel(false);
+			
+			// Bands which have started hold their render threads until they notice, so the
+			// request must be admitted until then for admission to limit the CPU used
+			tracker.abandon();
+		}
+	}
+	
+	/**
+	 * Renders a band of rows, with the native backend if it is available, stopping at the
+	 * next row if the deadline passes or the request is abandoned. Rows have their own Z
+	 * buffers so that only the iteration values of the whole image are allocated.
+	 */
+	private static void renderBand(Kernel kernel, int width, int height, double zoom, double x, double y, boolean julia, double jx, double jy,
+			double bailout, int maxIters, int top, int rows, int[] iters, long deadline, BandTracker tracker)
+	{
+		// Each row's pass maps its pixels exactly as a pass over the whole image would
+		KernelPass image = new KernelPass(width, height, zoom, x, y, julia, jx, jy, maxIters, 0, false, bailout, OrbitStatistic.NONE, null);
+		KernelCounters counters = new KernelCounters();
+		
+		BatchBackend backend = BatchBackend.forPass(kernel, image);
+		BatchTile tile = backend.createTile(width, 1);
+		try {
+			for (int row = top; row < top + rows; ++row) {
+				if (System.nanoTime() >= deadline || tracker.isAbandoned())
+					return;
+				
+				backend.iterate(kernel, image.forTile(0, row, width, 1), tile, false, counters);
+				tile.copyIters(iters, row * width);
+			}
+		}
+		finally {
+			tile.release();
+		}
+	}
+	
+	/**
+	 * Tracks the bands of a request which are running, so that the request can wait for
+	 * them to stop once it's abandoned
+	 */
+	private static final class BandTracker
+	{
+		private volatile boolean abandoned = false;
+		private int running = 0;
+		
+		/**
+		 * Called when a band starts
+		 * @return false if the request has been abandoned so the band shouldn't run
+		 */
+		public synchronized boolean begin()
+		{
+			if (abandoned)
+				return false;
+			++running;
+			return true;
+		}
+		
+		/**
+		 * Called when a band which started has stopped
+		 */
+		public synchronized void end()
+		{
+			--running;
+			notifyAll();
+		}
+		
+		/**
+		 * Abandons the request, so that no more bands start, and waits for those running to stop
+		 */
+		public synchronized void abandon()
+		{
+			abandoned = true;
+			boolean interrupted = false;
+			while (running > 0) {
+				try {
+					wait();
+				}
+				catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		
+		public boolean isAbandoned()
+		{
+			return abandoned;
+		}
+	}
+	
+	private static Object[] getPalette(String name)
+	{
+		for (int p = 0; p < PALETTE_NAMES.length; ++p) {
+			if (PALETTE_NAMES[p].equalsIgnoreCase(name))
+				return PALETTES[p];
+		}
+		throw new IllegalArgumentException("Unknown palette: " + name);
+	}
+	
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+	{
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null)
+			return params;
+		
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+	
+	private static int getInt(Map<String, String> params, String name, int def)
+	{
+		String value = params.get(name);
+		try {
+			return (value != null) ? Integer.parseInt(value) : def;
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+	}
+	
+	private static double getDouble(Map<String, String> params, String name, double def)
+	{
+		String value = params.get(name);
+		try {
+			double result = (value != null) ? Double.parseDouble(value) : def;
+			if (Double.isNaN(result) || Double.isInfinite(result))
+				throw new NumberFormatException();
+			return result;
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+	}
+	
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+	{
+		send(exchange, status, "text/plain", (message + "\n").getBytes("UTF-8"));
+	}
+	
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int maxRequests = (args.length > 2) ? Integer.parseInt(args[2]) : 2 * threads;
+		
+		RenderServer server = new RenderServer(port, threads, maxRequests);
+		server.start();
+		System.out.println("Serving on port " + server.getPort());
+	}
+}